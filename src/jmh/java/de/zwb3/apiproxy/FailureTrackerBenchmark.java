@@ -0,0 +1,66 @@
+package de.zwb3.apiproxy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records failures from many threads at once, as happens during an upstream outage when every pending lookup
+ * fails at about the same time.
+ * <p>
+ * {@link #synchronizedLastException()} is how the user ID resolver used to keep its last exception: every failing
+ * thread takes the same monitor. {@link #recordFailure()} records into the lock-free ring and the striped window
+ * counters of the {@link FailureTracker}, {@link #acquireAndRecordSuccess()} is the overhead every lookup pays
+ * while the upstream is healthy.
+ * <p>
+ * Run with {@code ./gradlew jmh}, the results are the total throughput of all threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Threads(8)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FailureTrackerBenchmark {
+
+    private static final IOException FAILURE = new IOException("Upstream unavailable");
+
+    private final FailureTracker tracker = new FailureTracker(FailureTracker.DEFAULT_CAPACITY,
+            FailureTracker.DEFAULT_WINDOW_SECONDS, FailureTracker.DEFAULT_MULTIPLIER);
+
+    private Instant lastExceptionTime;
+
+    private Throwable lastException;
+
+    @Benchmark
+    public void synchronizedLastException() {
+        synchronized (this) {
+            lastExceptionTime = Instant.now();
+            lastException = FAILURE;
+        }
+    }
+
+    @Benchmark
+    public void recordFailure() {
+        tracker.recordFailure("user lookup", FAILURE);
+    }
+
+    @Benchmark
+    public boolean acquireAndRecordSuccess() {
+        boolean acquired = tracker.tryAcquire();
+        tracker.recordSuccess();
+        return acquired;
+    }
+}
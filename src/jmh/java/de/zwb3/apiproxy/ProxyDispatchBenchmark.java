@@ -0,0 +1,126 @@
+package de.zwb3.apiproxy;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link ProxyFilter} ({@code leanDispatch=true}) to the Spring MVC controller
+ * ({@code leanDispatch=false}) end to end: the whole application runs against a local stub upstream, and
+ * requests are sent over loopback.
+ * <p>
+ * Run with {@code ./gradlew jmh}. The {@code gc} profiler reports the allocations per request
+ * ({@code gc.alloc.rate.norm}), which include the benchmark's own http client and the stub upstream. Those are
+ * the same for both variants, so only the difference between the variants is meaningful.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ProxyDispatchBenchmark {
+
+    @Param({"true", "false"})
+    public boolean leanDispatch;
+
+    private HttpServer upstream;
+    private ExecutorService upstreamExecutor;
+    private ConfigurableApplicationContext context;
+    private CloseableHttpClient client;
+    private String baseUrl;
+
+    @Setup
+    public void setUp() throws IOException {
+        upstream = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        upstream.createContext("/", exchange -> {
+            String body = exchange.getRequestURI().getPath().equals("/kraken/users") ?
+                    "{\"_total\":1,\"users\":[{\"name\":\"forsen\",\"_id\":\"22484632\"}]}" :
+                    "{\"stream\":null}";
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        });
+        upstreamExecutor = Executors.newFixedThreadPool(4);
+        upstream.setExecutor(upstreamExecutor);
+        upstream.start();
+
+        context = new SpringApplicationBuilder()
+                .bannerMode(Banner.Mode.OFF)
+                .sources(ApiProxy.class)
+                .properties("server.address=127.0.0.1",
+                        "server.port=0",
+                        "logging.level.root=WARN",
+                        "clientId=benchmark",
+                        "clientIdPool.requestsPerMinute=1000000",
+                        "upstreamUrl=http://127.0.0.1:" + upstream.getAddress().getPort(),
+                        "hedging.enabled=false",
+                        "accessLog.enabled=false",
+                        "proxy.leanDispatch=" + leanDispatch)
+                .run();
+
+        client = HttpClients.createDefault();
+        baseUrl = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        context.close();
+        upstream.stop(0);
+        upstreamExecutor.shutdownNow();
+    }
+
+    private int get(String path) throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(baseUrl + path))) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    /**
+     * A proxied request with a cached username.
+     */
+    @Benchmark
+    public int proxyRequest() throws IOException {
+        return get("/kraken/streams/forsen");
+    }
+
+    /**
+     * A request that fails without any upstream request, measuring the error path.
+     */
+    @Benchmark
+    public int invalidUsername() throws IOException {
+        return get("/kraken/streams/not-a-username");
+    }
+}
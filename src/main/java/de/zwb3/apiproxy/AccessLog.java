@@ -0,0 +1,264 @@
+package de.zwb3.apiproxy;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records one line per received request to a rolling access log file, without blocking the request threads.
+ * <p>
+ * Request threads copy their record into a preallocated ring buffer, claiming a slot with a single CAS.
+ * A background thread drains the buffer to the file. If the writer falls behind and the buffer is full,
+ * records are dropped (and the number of dropped records is written to the log) instead of waiting.
+ * <p>
+ * Each line looks like this, with all durations in milliseconds:
+ * <pre><code>
+ * 2018-12-01T12:00:00.123Z GET /kraken/streams/:channel /kraken/streams/22484632 200 1234 0.120 45.310 45.600
+ * </code></pre>
+ * i.e. time, method, matched route, mapped path, status, response bytes, resolve time, upstream time and
+ * total time. Values that are unknown for a request are written as {@code -}.
+ * <p>
+ * Disabled unless {@code accessLog.enabled=true}.
+ */
+@Component
+public class AccessLog {
+
+    private static final Logger log = LoggerFactory.getLogger(AccessLog.class);
+
+    /**
+     * How long the writer sleeps when the buffer is empty.
+     */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Entry[] entries;
+    private final int mask;
+
+    /**
+     * The next sequence number to be claimed by a request thread.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /**
+     * The next sequence number to be written by the writer thread. Only modified by the writer thread.
+     */
+    private final AtomicLong consumed = new AtomicLong();
+
+    private final LongAdder dropped = new LongAdder();
+
+    @Nullable
+    private final RollingFile file;
+
+    @Nullable
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+
+    @Autowired
+    public AccessLog(@Value("${accessLog.enabled:false}") boolean enabled,
+                     @Value("${accessLog.file:access.log}") String fileName,
+                     @Value("${accessLog.bufferSize:16384}") int bufferSize,
+                     @Value("${accessLog.maxFileSizeMegabytes:100}") long maxFileSizeMegabytes,
+                     @Value("${accessLog.maxFiles:5}") int maxFiles) {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        this.entries = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+        }
+        this.mask = capacity - 1;
+
+        RollingFile rollingFile = null;
+        if (enabled) {
+            try {
+                rollingFile = new RollingFile(Paths.get(fileName), maxFileSizeMegabytes * 1024 * 1024, maxFiles);
+                log.info("Writing access log to {}", rollingFile);
+            } catch (IOException e) {
+                log.warn("Could not open access log file {}, access log is disabled", fileName, e);
+            }
+        }
+        this.file = rollingFile;
+
+        if (file != null) {
+            writerThread = new Thread(this::writeLoop, "access-log-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            writerThread = null;
+        }
+    }
+
+    /**
+     * Record a completed request. Never blocks.
+     *
+     * @param method   The HTTP method of the received request.
+     * @param uri      The path of the received request.
+     * @param status   The response status.
+     * @param timing   The timing of the request.
+     * @param endNanos The {@link System#nanoTime()} the request completed at.
+     * @return false if the access log is disabled, or the record was dropped because the buffer is full.
+     */
+    public boolean record(String method, String uri, int status, RequestTiming timing, long endNanos) {
+        if (file == null) {
+            return false;
+        }
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() >= entries.length) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Entry entry = entries[(int) (sequence & mask)];
+        entry.timestampMillis = System.currentTimeMillis();
+        entry.method = method;
+        entry.route = timing.getRoute();
+        entry.path = timing.getMappedPath() != null ? timing.getMappedPath() : uri;
+        entry.status = status;
+        entry.bytes = timing.getBytes();
+        entry.resolveNanos = timing.getResolveNanos();
+        entry.upstreamNanos = timing.getUpstreamNanos();
+        entry.totalNanos = endNanos - timing.getStartNanos();
+        // publishes the fields above to the writer thread.
+        entry.published = sequence;
+        return true;
+    }
+
+    /**
+     * @return The number of records dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long next = consumed.get();
+        long reportedDropped = 0;
+        boolean unflushed = false;
+
+        while (true) {
+            Entry entry = entries[(int) (next & mask)];
+            if (entry.published == next) {
+                line.setLength(0);
+                format(entry, line);
+                entry.method = null;
+                entry.route = null;
+                entry.path = null;
+                // the slot may be reused from here on.
+                consumed.lazySet(++next);
+
+                write(line);
+                unflushed = true;
+                continue;
+            }
+
+            long droppedNow = dropped.sum();
+            if (droppedNow != reportedDropped) {
+                line.setLength(0);
+                line.append("# ").append(droppedNow - reportedDropped).append(" records dropped");
+                write(line);
+                reportedDropped = droppedNow;
+                unflushed = true;
+            }
+
+            if (unflushed) {
+                try {
+                    file.flush();
+                } catch (IOException e) {
+                    log.warn("Failed to flush access log", e);
+                }
+                unflushed = false;
+            }
+
+            if (!running) {
+                return;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+    }
+
+    private void write(CharSequence line) {
+        try {
+            file.appendLine(line);
+        } catch (IOException e) {
+            log.warn("Failed to write access log", e);
+        }
+    }
+
+    static void format(Entry entry, StringBuilder line) {
+        line.append(Instant.ofEpochMilli(entry.timestampMillis)).append(' ');
+        line.append(entry.method).append(' ');
+        line.append(entry.route != null ? entry.route.getRouteFormat() : "-").append(' ');
+        line.append(entry.path).append(' ');
+        line.append(entry.status).append(' ');
+        appendOrDash(line, entry.bytes).append(' ');
+        appendMillisOrDash(line, entry.resolveNanos).append(' ');
+        appendMillisOrDash(line, entry.upstreamNanos).append(' ');
+        appendMillisOrDash(line, entry.totalNanos);
+    }
+
+    private static StringBuilder appendOrDash(StringBuilder line, long value) {
+        return value >= 0 ? line.append(value) : line.append('-');
+    }
+
+    private static StringBuilder appendMillisOrDash(StringBuilder line, long nanos) {
+        return nanos >= 0 ? RequestTiming.appendMillis(line, nanos) : line.append('-');
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (writerThread == null || file == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            log.warn("Failed to close access log", e);
+        }
+    }
+
+    /**
+     * A preallocated slot of the ring buffer.
+     */
+    static class Entry {
+        /**
+         * The sequence number of the record currently in this slot, or -1 if none was published yet.
+         * Written last by the request thread, read first by the writer thread.
+         */
+        volatile long published = -1;
+
+        long timestampMillis;
+        @Nullable
+        String method;
+        @Nullable
+        ApiRoute route;
+        @Nullable
+        String path;
+        int status;
+        long bytes;
+        long resolveNanos;
+        long upstreamNanos;
+        long totalNanos;
+    }
+}
@@ -0,0 +1,108 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Starts the {@link RequestTiming} of every received request, and records it to the {@link AccessLog}
+ * once the request completed.
+ * <p>
+ * Responses that were not committed yet (e.g. errors of Spring MVC handlers) get a {@code Server-Timing} header
+ * here, the proxy endpoint adds its own before it starts sending the body or an error.
+ * <p>
+ * Asynchronous requests (e.g. the {@code text/event-stream} of {@code /apiproxy/watch}) are recorded when
+ * they complete, not when the request thread returns.
+ */
+@Component
+@Order(AccessLogFilter.ORDER)
+public class AccessLogFilter implements Filter {
+
+    /**
+     * Runs before all other filters, so their time is included.
+     */
+    static final int ORDER = Ordered.HIGHEST_PRECEDENCE;
+
+    static final String SERVER_TIMING_HEADER = "Server-Timing";
+
+    private final AccessLog accessLog;
+
+    @Autowired
+    public AccessLogFilter(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) servletRequest;
+        HttpServletResponse response = (HttpServletResponse) servletResponse;
+
+        RequestTiming timing = new RequestTiming(System.nanoTime());
+        request.setAttribute(RequestTiming.ATTRIBUTE, timing);
+
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            if (!failed && request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new RecordOnComplete(request, response, timing));
+            } else {
+                long endNanos = System.nanoTime();
+                if (!response.isCommitted() && !response.containsHeader(SERVER_TIMING_HEADER)) {
+                    response.setHeader(SERVER_TIMING_HEADER, timing.toServerTiming(endNanos));
+                }
+                // exceptions that made it through the dispatcher end up as 500.
+                int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus();
+                accessLog.record(request.getMethod(), request.getRequestURI(), status, timing, endNanos);
+            }
+        }
+    }
+
+    /**
+     * Records an asynchronous request once it completed, timed out or failed (which all end in
+     * {@link #onComplete(AsyncEvent)}).
+     */
+    private class RecordOnComplete implements AsyncListener {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final RequestTiming timing;
+
+        private RecordOnComplete(HttpServletRequest request, HttpServletResponse response, RequestTiming timing) {
+            this.request = request;
+            this.response = response;
+            this.timing = timing;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            long endNanos = System.nanoTime();
+            accessLog.record(request.getMethod(), request.getRequestURI(), response.getStatus(), timing, endNanos);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
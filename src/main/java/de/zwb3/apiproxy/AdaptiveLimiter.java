@@ -0,0 +1,253 @@
+package de.zwb3.apiproxy;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight, adapting the limit to the measured upstream latency in the style of
+ * TCP Vegas.
+ * <p>
+ * The lowest latency seen recently is taken as the latency without load. Every sample estimates how many requests
+ * are queued somewhere (in the upstream, or in front of it) as {@code limit * (1 - noLoadLatency / latency)}.
+ * While that queue is short, the limit grows; once it gets long, or requests time out, the limit shrinks. The
+ * steps are logarithmic in the limit, so large limits move in proportion. Every now and then the no-load latency
+ * is reset to the current latency, so the limit can recover when the upstream got slower for good.
+ * <p>
+ * The no-load latency is kept per route: a route that is always slow, e.g. a search, must not look like a queue
+ * compared to the fastest route. The limit itself is shared by all routes.
+ * <p>
+ * Releasing a request never blocks: the limit is updated by one releasing thread at a time, and latency samples of
+ * requests released while another thread updates it are skipped. Drops are counted and never skipped.
+ * <p>
+ * Every request has a {@link Priority}, which may only fill a share of the limit: low priority requests are
+ * rejected first.
+ */
+@ThreadSafe
+public class AdaptiveLimiter {
+
+    public enum Priority {
+        HIGH(1.0),
+        NORMAL(0.9),
+        LOW(0.5);
+
+        private final double share;
+
+        Priority(double share) {
+            this.share = share;
+        }
+
+        /**
+         * @return Share of the limit requests of this priority may fill, between 0 and 1.
+         */
+        public double getShare() {
+            return share;
+        }
+    }
+
+    /**
+     * The no-load latency is reset about every {@code PROBE_MULTIPLIER * limit} samples.
+     */
+    private static final int PROBE_MULTIPLIER = 30;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * {@link #estimatedLimit}, rounded down. Read on every acquire.
+     */
+    private volatile int limit;
+
+    /**
+     * Drops not applied to the limit yet.
+     */
+    private final AtomicInteger pendingDrops = new AtomicInteger();
+
+    /**
+     * Held while the limit is updated, only ever taken with {@link Lock#tryLock()}.
+     */
+    private final Lock updateLock = new ReentrantLock();
+
+    @GuardedBy("updateLock")
+    private double estimatedLimit;
+
+    /**
+     * By route key, see {@link UpstreamClient#routeKey}.
+     */
+    @GuardedBy("updateLock")
+    private final Map<String, Baseline> baselines = new HashMap<>();
+
+    /**
+     * @param initialLimit The limit until enough samples were taken.
+     * @param minLimit     The limit never goes below this.
+     * @param maxLimit     The limit never goes above this.
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException(String.format("Bad limits: initial %d, min %d, max %d",
+                    initialLimit, minLimit, maxLimit));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+    }
+
+    /**
+     * Take a slot for a request, if the limit for its priority has not been reached.
+     *
+     * @param priority The priority of the request.
+     * @return true if the request may go ahead, and {@link #release(String, long, boolean)} or {@link #release()}
+     * must be called once it completed. false if it must be rejected.
+     */
+    public boolean tryAcquire(Priority priority) {
+        int priorityLimit = Math.max(1, (int) (limit * priority.share));
+        while (true) {
+            int current = inFlight.get();
+            if (current >= priorityLimit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release the slot of a request that did not produce a latency sample, e.g. because it failed before the
+     * upstream request was sent.
+     */
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Release the slot of a request and adapt the limit.
+     *
+     * @param routeKey     The route of the request, its latency is compared to the no-load latency of this route.
+     * @param latencyNanos The upstream latency of the request, ignored if {@code dropped}.
+     * @param dropped      Whether the upstream request failed or timed out.
+     */
+    public void release(String routeKey, long latencyNanos, boolean dropped) {
+        int inFlightBefore = inFlight.getAndDecrement();
+        update(routeKey, latencyNanos, dropped, inFlightBefore);
+    }
+
+    void update(String routeKey, long latencyNanos, boolean dropped, int inFlight) {
+        if (dropped) {
+            pendingDrops.incrementAndGet();
+        }
+        boolean sampled = dropped;
+        // loops for drops counted while the limit was updated, whose threads found the lock taken.
+        do {
+            if (!updateLock.tryLock()) {
+                // the thread holding the lock applies the drops.
+                return;
+            }
+            try {
+                double current = estimatedLimit;
+                for (int drops = pendingDrops.getAndSet(0); drops > 0; drops--) {
+                    current = Math.max(minLimit, current - step(current));
+                }
+                if (!sampled) {
+                    current = Math.min(maxLimit, Math.max(minLimit, adapt(current, routeKey, latencyNanos, inFlight)));
+                    sampled = true;
+                }
+                if (current != estimatedLimit) {
+                    estimatedLimit = current;
+                    limit = (int) current;
+                }
+            } finally {
+                updateLock.unlock();
+            }
+        } while (pendingDrops.get() > 0);
+    }
+
+    /**
+     * @return The new limit according to a latency sample.
+     */
+    @GuardedBy("updateLock")
+    private double adapt(double current, String routeKey, long latencyNanos, int inFlight) {
+        if (latencyNanos <= 0) {
+            return current;
+        }
+        Baseline baseline = baselines.get(routeKey);
+        if (baseline == null) {
+            baselines.put(routeKey, new Baseline(latencyNanos, nextProbe(current)));
+            return current;
+        }
+        if (--baseline.samplesUntilProbe <= 0) {
+            baseline.noLoadLatencyNanos = latencyNanos;
+            baseline.samplesUntilProbe = nextProbe(current);
+            return current;
+        }
+        if (latencyNanos < baseline.noLoadLatencyNanos) {
+            baseline.noLoadLatencyNanos = latencyNanos;
+            return current;
+        }
+        if (inFlight * 2 < current) {
+            // far below the limit, so the latency says nothing about whether the limit is too high.
+            return current;
+        }
+
+        double step = step(current);
+        double queue = Math.ceil(current * (1 - (double) baseline.noLoadLatencyNanos / latencyNanos));
+        if (queue <= step) {
+            return current + 6 * step;
+        } else if (queue < 3 * step) {
+            return current + step;
+        } else if (queue > 6 * step) {
+            return current - step;
+        }
+        return current;
+    }
+
+    private static double step(double limit) {
+        return Math.max(1, Math.log10(limit));
+    }
+
+    /**
+     * The no-load latency of one route.
+     */
+    private static class Baseline {
+        long noLoadLatencyNanos;
+
+        /**
+         * The no-load latency is reset once this reaches 0.
+         */
+        long samplesUntilProbe;
+
+        Baseline(long noLoadLatencyNanos, long samplesUntilProbe) {
+            this.noLoadLatencyNanos = noLoadLatencyNanos;
+            this.samplesUntilProbe = samplesUntilProbe;
+        }
+    }
+
+    private static long nextProbe(double limit) {
+        // jittered, so several instances don't probe at the same time.
+        return (long) (PROBE_MULTIPLIER * limit * (1 + ThreadLocalRandom.current().nextDouble() / 2));
+    }
+
+    /**
+     * @return The current limit, for requests of {@link Priority#HIGH high} priority.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return The number of requests currently in flight.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -1,22 +1,9 @@
 package de.zwb3.apiproxy;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.tuple.Pair;
-import org.apache.http.Header;
-import org.apache.http.HeaderIterator;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.methods.RequestBuilder;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.HttpClients;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -28,16 +15,10 @@ import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.net.InetAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static org.springframework.web.bind.annotation.RequestMethod.*;
 
@@ -48,127 +29,23 @@ public class ApiResponseController {
 
     private final RouteMapper mapper;
 
-    /**
-     * This counter is incremented on every received request to the proxy endpoint.
-     */
-    private final AtomicLong requestCounter = new AtomicLong(0);
-
-    @Autowired
-    public ApiResponseController(@Value("${clientId}") String clientId) throws IOException {
-        log.info("Initialized with clientId={}", clientId);
-
-        List<ApiRoute> knownRoutes = ApiRoutes.getApiRoutes();
-        UserIdResolver userIdResolver = new UserIdResolver(clientId);
-
-        mapper = new RouteMapper(knownRoutes, userIdResolver);
-    }
-
-    private final ThreadLocal<HttpClient> proxyHttpClients = new ThreadLocal<>();
-
-    // default endpoint, proxy to twitch
-    @RequestMapping(value = "/**", method = {GET, HEAD, POST, PUT, PATCH, DELETE, OPTIONS, TRACE})
-    public void proxyTwitchAPI(HttpServletRequest request, HttpServletResponse response) throws ExecutionException,
-            NoSuchUserException, URISyntaxException, IOException {
-
-        requestCounter.incrementAndGet();
+    private final ProxyHandler proxyHandler;
 
-        // mappedPath is for example "/kraken/streams/22484632"
-        String mappedPath = mapper.mapApiPath(request.getMethod(), request.getRequestURI());
+    private final UpstreamPool upstreamPool;
 
-        URI proxyUri = new URIBuilder()
-                .setScheme("https")
-                .setHost("api.twitch.tv")
-                .setPath(mappedPath)
-                .setQuery(request.getQueryString())
-                .build();
-
-        // request is the received request, proxyUri is the URI to make the proxy request to.
-        HttpResponse proxyResponse = makeProxyRequest(request, proxyUri);
-
-        // copy status
-        response.setStatus(proxyResponse.getStatusLine().getStatusCode());
-
-        HeaderIterator proxyResponseHeaders = proxyResponse.headerIterator();
-        // copy headers
-        while (proxyResponseHeaders.hasNext()) {
-            Header proxyResponseHeader = proxyResponseHeaders.nextHeader();
-            response.addHeader(proxyResponseHeader.getName(), proxyResponseHeader.getValue());
-        }
-
-        // copy body
-        HttpEntity responseEntity = proxyResponse.getEntity();
-        try (InputStream inputStream = responseEntity.getContent();
-             BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
-             OutputStream outputStream = response.getOutputStream();
-             BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(outputStream)) {
-            IOUtils.copy(bufferedInputStream, bufferedOutputStream);
-        }
-
-    }
-
-    /**
-     * Make a proxy request similar to the given originalRequest, but to the given proxyUri.
-     *
-     * @param originalRequest The request that was sent to this application.
-     * @param proxyUri        The URI to proxy to.
-     * @return The response of the proxy request.
-     * @throws IOException If an I/O exception occurs.
-     */
-    private HttpResponse makeProxyRequest(HttpServletRequest originalRequest, URI proxyUri) throws IOException {
-        HttpResponse proxyResponse;
-        try (InputStream inputStream = originalRequest.getInputStream();
-             BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream)) {
-
-            // If this is a POST request, copy the request body.
-            InputStreamEntity entity;
-            if ("POST".equalsIgnoreCase(originalRequest.getMethod())) {
-                entity = new InputStreamEntity(bufferedInputStream);
-            } else {
-                entity = null;
-            }
-
-            HttpUriRequest proxyRequest = RequestBuilder.create(originalRequest.getMethod())
-                    .setUri(proxyUri)
-                    .addHeader("Accept", "application/vnd.twitchtv.v5+json")
-                    .setEntity(entity)
-                    .build();
-
-            // copy input headers to proxy request, except for "Accept" header
-            Enumeration<String> headerNames = originalRequest.getHeaderNames();
-            while (headerNames.hasMoreElements()) {
-                String headerName = headerNames.nextElement();
-
-                // don't proxy the Accept header, since we set our own Accept header for API v5.
-                if ("Accept".equalsIgnoreCase(headerName) ||
-                        "Host".equalsIgnoreCase(headerName) ||
-                        "Content-Length".equalsIgnoreCase(headerName)) {
-                    continue;
-                }
-
-                Enumeration<String> headerValues = originalRequest.getHeaders(headerName);
-                while (headerValues.hasMoreElements()) {
-                    String headerValue = headerValues.nextElement();
-
-                    proxyRequest.addHeader(headerName, headerValue);
-                }
-            }
-
-            HttpClient client = getHttpClient();
-            proxyResponse = client.execute(proxyRequest);
-        }
-        return proxyResponse;
+    @Autowired
+    public ApiResponseController(RouteMapper mapper, ProxyHandler proxyHandler, UpstreamPool upstreamPool) {
+        this.mapper = mapper;
+        this.proxyHandler = proxyHandler;
+        this.upstreamPool = upstreamPool;
     }
 
     /**
-     * @return The http client for the current thread.
+     * Proxies requests to all paths that are not handled by the {@link ProxyFilter} or another endpoint.
      */
-    private HttpClient getHttpClient() {
-        HttpClient client = proxyHttpClients.get();
-        if (client == null) {
-            client = HttpClients.createDefault();
-            proxyHttpClients.set(client);
-        }
-        return client;
+    @RequestMapping(value = "/**", method = {GET, HEAD, POST, PUT, PATCH, DELETE, OPTIONS, TRACE})
+    public void proxyTwitchAPI(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        proxyHandler.handle(request, response);
     }
 
     @RequestMapping(value = "/apiproxy/status", produces = MediaType.TEXT_PLAIN_VALUE)
@@ -194,26 +71,45 @@ public class ApiResponseController {
         // the maximum amount of memory the JVM will ever allocate/use is maxMemory
         long usedMemory = totalMemory - freeMemory;
 
-        Pair<Instant, Throwable> lastException = mapper.getUserIdResolver().getLastException();
-        String exceptionMessage;
-        // left = timestamp of last exception, right = the exception
-        if (lastException.getLeft() != null && lastException.getRight() != null) {
-
-//            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss O", Locale.ROOT)
-//                    .withZone(ZoneOffset.UTC);
-//            String lastExceptionTimeFormatted = formatter.format(lastException.getLeft());
-
-            String timeSinceLastException = formatUptimeDuration(Duration.between(lastException.getLeft(), Instant.now()));
-            exceptionMessage = "last exception in the user ID resolver was " + timeSinceLastException + " ago";
+        FailureTracker failureTracker = mapper.getUserIdResolver().getFailureTracker();
+        FailureTracker.Failure lastFailure = failureTracker.getLastFailure();
+        String exceptionMessage = String.format("%d failures in the user ID resolver in the last %d seconds (%.0f%%), ",
+                failureTracker.getWindowFailures(), failureTracker.getWindowSeconds(),
+                failureTracker.getWindowFailureRate() * 100);
+        if (lastFailure != null) {
+            String timeSinceLastException = formatUptimeDuration(Duration.between(lastFailure.getTime(), Instant.now()));
+            exceptionMessage += "last exception was " + timeSinceLastException + " ago (" +
+                    lastFailure.getSource() + ": " + lastFailure.getCause() + ")";
         } else {
-            exceptionMessage = "no last exception in the user ID resolver";
+            exceptionMessage += "no last exception";
         }
 
-        String statusLine = String.format("twitch-api-v3-proxy online for %s, %d usernames in cache, %d requests served, " +
+        String loadSheddingMessage = proxyHandler.getLoadShedder()
+                .map(loadShedder -> String.format("%d of %d requests in flight, %d requests shed",
+                        loadShedder.getLimiter().getInFlight(), loadShedder.getLimiter().getLimit(),
+                        loadShedder.getRejectedCount()))
+                .orElse("load shedding disabled");
+
+        String prefetchMessage = proxyHandler.getPagePrefetcher()
+                .map(pagePrefetcher -> String.format("%d of %d prefetched pages used",
+                        pagePrefetcher.getHitCount(), pagePrefetcher.getPrefetchCount()))
+                .orElse("prefetching disabled");
+
+        String statusLine = String.format("twitch-api-v3-proxy online for %s, %d usernames in cache, " +
+                        "%d unknown usernames in negative cache, %d of %d client IDs available, " +
+                        "%d of %d upstreams available, " +
+                        "%d requests served, %s, %s, " +
                         "Memory: %s (%s allocated), running on host %s, %s",
                 formattedUptime,
                 mapper.getUserIdResolver().getCacheCount(),
-                requestCounter.get(),
+                mapper.getUserIdResolver().getNegativeCacheCount(),
+                mapper.getUserIdResolver().getClientIdPool().getAvailableCount(),
+                mapper.getUserIdResolver().getClientIdPool().size(),
+                upstreamPool.getAvailableCount(),
+                upstreamPool.size(),
+                proxyHandler.getRequestCount(),
+                loadSheddingMessage,
+                prefetchMessage,
                 humanReadableByteCount(usedMemory, true),
                 humanReadableByteCount(totalMemory, true),
                 InetAddress.getLocalHost().getHostName(),
@@ -222,6 +118,25 @@ public class ApiResponseController {
         return statusLine;
     }
 
+    /**
+     * Lists the recent failures of user ID lookups, other cluster nodes and proxied requests, the most recent
+     * first, one per line.
+     */
+    @RequestMapping(value = "/apiproxy/status/failures", produces = MediaType.TEXT_PLAIN_VALUE)
+    @ResponseBody
+    public String failures() {
+        StringBuilder builder = new StringBuilder();
+        for (FailureTracker.Failure failure : mapper.getUserIdResolver().getFailureTracker().getRecentFailures()) {
+            builder.append(failure.getTime())
+                    .append(' ')
+                    .append(failure.getSource())
+                    .append(": ")
+                    .append(failure.getCause())
+                    .append('\n');
+        }
+        return builder.toString();
+    }
+
     /**
      * utility method to format a number of bytes into a human readable representation.
      * <p>
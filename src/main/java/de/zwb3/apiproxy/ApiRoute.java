@@ -17,11 +17,21 @@ public class ApiRoute {
      */
     private final String httpMethod;
 
+    /**
+     * The route format this route was created from, e.g. "/kraken/channels/:channel"
+     */
+    private final String routeFormat;
+
     /**
      * The segments of this route, e.g. "kraken", "channels", ":channel"
      */
     private final ImmutableList<String> segments;
 
+    /**
+     * Whether responses of this route are pages of a list, see {@link PagePrefetcher}.
+     */
+    private final boolean pageable;
+
     /**
      * @param httpMethod  The HTTP method that this route uses, e.g. "GET", "PUT", "DELETE", etc.
      * @param routeFormat This is a string separating all the route segments with / forward slashes.
@@ -33,8 +43,20 @@ public class ApiRoute {
      *                    non-username variable. All values will be accepted in this place and the value
      */
     public ApiRoute(String httpMethod, String routeFormat) {
+        this(httpMethod, routeFormat, false);
+    }
+
+    /**
+     * @param httpMethod  The HTTP method that this route uses, e.g. "GET", "PUT", "DELETE", etc.
+     * @param routeFormat The route format, see {@link #ApiRoute(String, String)}.
+     * @param pageable    Whether responses of this route are pages of a list, paginated with {@code offset} and
+     *                    {@code limit} or {@code cursor}.
+     */
+    public ApiRoute(String httpMethod, String routeFormat, boolean pageable) {
         this.httpMethod = httpMethod;
+        this.routeFormat = routeFormat;
         this.segments = splitIntoSegments(routeFormat);
+        this.pageable = pageable;
     }
 
     /**
@@ -76,6 +98,13 @@ public class ApiRoute {
         return httpMethod;
     }
 
+    /**
+     * @return The route format this route was created from, e.g. "/kraken/channels/:channel"
+     */
+    public String getRouteFormat() {
+        return routeFormat;
+    }
+
     /**
      * @return A immutable list of segments of this route.
      */
@@ -89,4 +118,17 @@ public class ApiRoute {
     public int getSegmentCount() {
         return segments.size();
     }
+
+    /**
+     * @return Whether responses of this route are pages of a list, paginated with {@code offset} and
+     * {@code limit} or {@code cursor}.
+     */
+    public boolean isPageable() {
+        return pageable;
+    }
+
+    @Override
+    public String toString() {
+        return httpMethod + " " + routeFormat;
+    }
 }
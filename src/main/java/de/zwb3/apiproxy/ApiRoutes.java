@@ -24,7 +24,8 @@ public class ApiRoutes {
      * The file expects either empty lines or lines only consisting of whitespace,
      * lines beginning with a {@code #} character (those lines will be silently ignored as comments)
      * and lines formatted exactly {@code HTTPMETHOD /api/endpoint/:channel/example/!team},
-     * with {@code :channel} and {@code !team} being variables.
+     * with {@code :channel} and {@code !team} being variables. A route may be followed by flags, separated by
+     * spaces: {@code pageable} marks routes whose responses are pages of a list (see {@link PagePrefetcher}).
      * <p>
      * Unexpectedly skipped lines will be printed to the logger.
      *
@@ -53,8 +54,8 @@ public class ApiRoutes {
                     continue;
                 }
 
-                // split at first space to separate method and api route path
-                String[] split = StringUtils.split(line, " ", 2);
+                // split at spaces to separate method, api route path and flags
+                String[] split = StringUtils.split(line, " ");
                 if (split.length < 2) {
                     log.warn("Invalid line skipped in routes file: at line " + lineId + ": " + line);
                     continue;
@@ -63,7 +64,16 @@ public class ApiRoutes {
                 String httpMethod = split[0];
                 String routePath = split[1];
 
-                list.add(new ApiRoute(httpMethod, routePath));
+                boolean pageable = false;
+                for (int i = 2; i < split.length; i++) {
+                    if (split[i].equals("pageable")) {
+                        pageable = true;
+                    } else {
+                        log.warn("Unknown flag " + split[i] + " ignored in routes file: at line " + lineId);
+                    }
+                }
+
+                list.add(new ApiRoute(httpMethod, routePath, pageable));
                 log.debug("Successfully loaded route " + httpMethod + " " + routePath + " from line " + lineId);
             }
 
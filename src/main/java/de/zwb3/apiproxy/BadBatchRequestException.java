@@ -0,0 +1,22 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class BadBatchRequestException extends IllegalArgumentException {
+    public BadBatchRequestException() {
+    }
+
+    public BadBatchRequestException(String s) {
+        super(s);
+    }
+
+    public BadBatchRequestException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public BadBatchRequestException(Throwable cause) {
+        super(cause);
+    }
+}
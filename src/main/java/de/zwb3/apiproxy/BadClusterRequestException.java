@@ -0,0 +1,22 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class BadClusterRequestException extends IllegalArgumentException {
+    public BadClusterRequestException() {
+    }
+
+    public BadClusterRequestException(String s) {
+        super(s);
+    }
+
+    public BadClusterRequestException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public BadClusterRequestException(Throwable cause) {
+        super(cause);
+    }
+}
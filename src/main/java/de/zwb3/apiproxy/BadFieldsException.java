@@ -0,0 +1,22 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.BAD_REQUEST)
+public class BadFieldsException extends IllegalArgumentException {
+    public BadFieldsException() {
+    }
+
+    public BadFieldsException(String s) {
+        super(s);
+    }
+
+    public BadFieldsException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public BadFieldsException(Throwable cause) {
+        super(cause);
+    }
+}
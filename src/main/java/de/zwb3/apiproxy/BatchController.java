@@ -0,0 +1,347 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.springframework.web.bind.annotation.RequestMethod.POST;
+
+/**
+ * Executes many API v3 calls in a single round trip.
+ * <p>
+ * All usernames of a batch are resolved together, identical {@code GET}/{@code HEAD} calls are only made once,
+ * and the upstream calls run concurrently (up to a configurable limit per batch). The results are streamed back
+ * in the order of the request, each one as soon as it and all results before it are available.
+ * <p>
+ * The calls of all batches share a bounded pool of threads. Calls that do not even fit into its queue fail
+ * with {@code 503 Service Unavailable}.
+ */
+@Controller
+public class BatchController {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchController.class);
+
+    private static final Gson gson = new Gson();
+
+    private final RouteMapper mapper;
+    private final UpstreamClient upstreamClient;
+    private final int maxItems;
+    private final int concurrency;
+
+    /**
+     * Maximum number of calls (of all batches) waiting for a thread.
+     */
+    private static final int MAX_QUEUED_CALLS = 1000;
+
+    private final ThreadPoolExecutor batchExecutor;
+
+    @Autowired
+    public BatchController(RouteMapper mapper,
+                           UpstreamClient upstreamClient,
+                           @Value("${batch.maxItems:100}") int maxItems,
+                           @Value("${batch.concurrency:8}") int concurrency,
+                           @Value("${batch.threads:32}") int threads) {
+        this.mapper = mapper;
+        this.upstreamClient = upstreamClient;
+        this.maxItems = maxItems;
+        this.concurrency = concurrency;
+        this.batchExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED_CALLS), new ThreadFactoryBuilder()
+                .setNameFormat("batch-%d")
+                .setDaemon(true)
+                .build());
+        this.batchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Execute a batch of API v3 calls.
+     * <p>
+     * The request body is a JSON array of {@link BatchItem}s. The {@code Authorization} and {@code Client-ID}
+     * headers (and all other forwarded headers) of the batch request are used for every call.
+     * <p>
+     * The response is a JSON array with one {@code {"status": 200, "body": {...}}} object per item, in the same
+     * order. With {@code ?format=ndjson}, the objects are instead sent as newline-delimited JSON.
+     */
+    @RequestMapping(value = "/apiproxy/batch", method = POST)
+    public void batch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        List<BatchItem> items = readItems(request);
+        boolean ndjson = "ndjson".equals(request.getParameter("format"));
+
+        // resolve the usernames of all items at once, so the mapping below only hits the cache.
+        Set<String> usernames = new HashSet<>();
+        List<Optional<ApiRoute>> routes = new ArrayList<>(items.size());
+        for (BatchItem item : items) {
+            Optional<ApiRoute> apiRoute = mapper.findRoute(item.getMethod(), item.getPath());
+            apiRoute.ifPresent(route -> usernames.addAll(mapper.getUsernames(route, item.getPath())));
+            routes.add(apiRoute);
+        }
+        try {
+            mapper.getUserIdResolver().translateUsernames(usernames);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            // the affected items will fail individually below.
+            log.debug("Failed to resolve usernames of batch", e);
+        }
+
+        List<CompletableFuture<BatchResult>> results = new ArrayList<>(items.size());
+        List<PendingCall> calls = new ArrayList<>();
+        Map<String, PendingCall> sharedCalls = new HashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            BatchItem item = items.get(i);
+            Optional<ApiRoute> apiRoute = routes.get(i);
+
+            URI proxyUri;
+            try {
+                String mappedPath = mapper.mapApiPath(apiRoute.orElse(null), item.getPath());
+                proxyUri = upstreamClient.buildUri(mappedPath, item.getQuery());
+            } catch (NoSuchUserException | ExecutionException | UncheckedExecutionException |
+                    URISyntaxException e) {
+                results.add(CompletableFuture.completedFuture(BatchResult.error(e)));
+                continue;
+            }
+
+            // identical reads are only made once.
+            boolean shareable = "GET".equals(item.getMethod()) || "HEAD".equals(item.getMethod());
+            String callKey = item.getMethod() + " " + proxyUri;
+            PendingCall call = shareable ? sharedCalls.get(callKey) : null;
+            if (call == null) {
+                RequestBuilder builder = upstreamClient.newRequest(item.getMethod(), proxyUri);
+                ProxyHandler.copyForwardedHeaders(request, builder);
+                // the batch request's own body is not forwarded.
+                builder.removeHeaders("Content-Type");
+
+                call = new PendingCall(UpstreamClient.routeKey(apiRoute, item.getMethod()), builder);
+                calls.add(call);
+                if (shareable) {
+                    sharedCalls.put(callKey, call);
+                }
+            }
+            results.add(call.result);
+        }
+
+        AtomicInteger nextCall = new AtomicInteger();
+        for (int i = 0; i < Math.min(concurrency, calls.size()); i++) {
+            launchNext(calls, nextCall);
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(ndjson ? "application/x-ndjson" : "application/json");
+        response.setCharacterEncoding("UTF-8");
+        try {
+            writeResults(results, ndjson, response.getOutputStream());
+        } finally {
+            // e.g. if the client went away: don't make the calls that were not launched yet.
+            for (PendingCall call : calls) {
+                call.result.cancel(false);
+            }
+        }
+    }
+
+    private List<BatchItem> readItems(HttpServletRequest request) throws IOException {
+        BatchItem[] items;
+        try (Reader reader = new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8)) {
+            items = gson.fromJson(reader, BatchItem[].class);
+        } catch (JsonParseException e) {
+            throw new BadBatchRequestException("Malformed batch request: " + e.getMessage(), e);
+        }
+
+        if (items == null) {
+            throw new BadBatchRequestException("Batch request must be a JSON array of calls");
+        }
+        if (items.length > maxItems) {
+            throw new BadBatchRequestException("Batch request contains " + items.length +
+                    " calls, at most " + maxItems + " are allowed");
+        }
+        for (BatchItem item : items) {
+            if (item == null || item.getPath() == null || !item.getPath().startsWith("/")) {
+                throw new BadBatchRequestException("Every call in a batch request needs a path starting with /");
+            }
+        }
+        return Arrays.asList(items);
+    }
+
+    /**
+     * Start the next call that was not started yet. When it completes, the call after it is started,
+     * so at most as many calls run at the same time as this method was initially called.
+     */
+    private void launchNext(List<PendingCall> calls, AtomicInteger nextCall) {
+        int index = nextCall.getAndIncrement();
+        if (index >= calls.size()) {
+            return;
+        }
+        PendingCall call = calls.get(index);
+        if (call.result.isDone()) {
+            // cancelled
+            launchNext(calls, nextCall);
+            return;
+        }
+
+        try {
+            batchExecutor.execute(() -> {
+                try {
+                    call.result.complete(execute(call));
+                } catch (Throwable t) {
+                    call.result.complete(BatchResult.error(t));
+                } finally {
+                    launchNext(calls, nextCall);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            call.result.complete(BatchResult.error(new OverloadedException("Too many batch calls in progress")));
+            launchNext(calls, nextCall);
+        }
+    }
+
+    private BatchResult execute(PendingCall call) throws IOException {
+        try (CloseableHttpResponse response = upstreamClient.execute(call.routeKey, call.request)) {
+            Header contentType = response.getFirstHeader("Content-Type");
+            byte[] body = response.getEntity() != null ? EntityUtils.toByteArray(response.getEntity()) : new byte[0];
+            return new BatchResult(response.getStatusLine().getStatusCode(),
+                    contentType != null ? contentType.getValue() : null,
+                    body);
+        }
+    }
+
+    private void writeResults(List<CompletableFuture<BatchResult>> results, boolean ndjson,
+                              OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        JsonWriter arrayWriter = new JsonWriter(writer);
+        if (!ndjson) {
+            arrayWriter.beginArray();
+        }
+
+        for (CompletableFuture<BatchResult> future : results) {
+            BatchResult result = awaitResult(future);
+            if (ndjson) {
+                JsonWriter lineWriter = new JsonWriter(writer);
+                result.writeTo(lineWriter);
+                lineWriter.flush();
+                writer.write('\n');
+            } else {
+                result.writeTo(arrayWriter);
+            }
+            writer.flush();
+        }
+
+        if (!ndjson) {
+            arrayWriter.endArray();
+        }
+        writer.flush();
+    }
+
+    private static BatchResult awaitResult(CompletableFuture<BatchResult> future) throws InterruptedIOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for batch results");
+        } catch (ExecutionException | CancellationException e) {
+            return BatchResult.error(e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        batchExecutor.shutdownNow();
+    }
+
+    /**
+     * An upstream call of a batch, shared by all identical items.
+     */
+    private static class PendingCall {
+        private final String routeKey;
+        private final RequestBuilder request;
+        private final CompletableFuture<BatchResult> result = new CompletableFuture<>();
+
+        private PendingCall(String routeKey, RequestBuilder request) {
+            this.routeKey = routeKey;
+            this.request = request;
+        }
+    }
+
+    /**
+     * The result of a single call of a batch.
+     */
+    static class BatchResult {
+        private final int status;
+        @Nullable
+        private final String contentType;
+        private final byte[] body;
+
+        BatchResult(int status, @Nullable String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        /**
+         * @param t The exception that made the call fail.
+         * @return A result with the same status and Twitch-style error body a single request would get.
+         */
+        static BatchResult error(Throwable t) {
+            t = ErrorResponses.unwrap(t);
+            HttpStatus status = ErrorResponses.statusOf(t);
+            return new BatchResult(status.value(), ErrorResponses.CONTENT_TYPE,
+                    ErrorResponses.encode(status, String.valueOf(t.getMessage())));
+        }
+
+        /**
+         * Write this result as a {@code {"status": 200, "body": ...}} object. JSON bodies are embedded as-is,
+         * other bodies (and JSON bodies that turn out to be malformed, e.g. truncated) as a string.
+         */
+        void writeTo(JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("status").value(status);
+            writer.name("body");
+            String bodyString = new String(body, StandardCharsets.UTF_8);
+            if (body.length == 0) {
+                writer.nullValue();
+            } else if (contentType != null && contentType.contains("json") && isJson(bodyString)) {
+                writer.jsonValue(bodyString);
+            } else {
+                writer.value(bodyString);
+            }
+            writer.endObject();
+        }
+
+        /**
+         * @return true if the given string is exactly one well-formed JSON value, which can be embedded into
+         * the response without breaking it.
+         */
+        static boolean isJson(String s) {
+            try {
+                JsonReader reader = new JsonReader(new StringReader(s));
+                reader.skipValue();
+                return reader.peek() == JsonToken.END_DOCUMENT;
+            } catch (IOException | IllegalStateException | NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package de.zwb3.apiproxy;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+
+/**
+ * A single API v3 call in a request to the batch endpoint, e.g.
+ * <pre><code>
+ * {"method": "GET", "path": "/kraken/channels/forsen/follows", "query": "limit=100"}
+ * </code></pre>
+ */
+public class BatchItem {
+
+    /**
+     * The HTTP method, defaults to {@code GET}.
+     */
+    @Nullable
+    private String method;
+
+    /**
+     * The API v3 path, e.g. {@code /kraken/streams/forsen}
+     */
+    @Nullable
+    private String path;
+
+    /**
+     * The raw (encoded) query string, without the leading {@code ?}, if any.
+     */
+    @Nullable
+    private String query;
+
+    public BatchItem() {
+    }
+
+    public BatchItem(@Nullable String method, @Nullable String path, @Nullable String query) {
+        this.method = method;
+        this.path = path;
+        this.query = query;
+    }
+
+    public String getMethod() {
+        return method != null ? method.toUpperCase(Locale.ROOT) : "GET";
+    }
+
+    @Nullable
+    public String getPath() {
+        return path;
+    }
+
+    @Nullable
+    public String getQuery() {
+        return query;
+    }
+}
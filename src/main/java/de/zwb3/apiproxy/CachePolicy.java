@@ -0,0 +1,68 @@
+package de.zwb3.apiproxy;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Eviction policies available for the {@link UserIdCache}. Set with {@code userIdCache.policy}.
+ */
+public enum CachePolicy {
+
+    /**
+     * Guava's segmented, approximately least recently used eviction. A scan over many names that are only
+     * requested once pushes everything else out of the cache.
+     */
+    LRU {
+        @Override
+        public UserIdCache create(long maximumWeight, long expireAfterWriteMillis, UserIdCache.Loader loader,
+                                  Executor maintenanceExecutor) {
+            return new GuavaUserIdCache(maximumWeight, expireAfterWriteMillis, loader);
+        }
+    },
+
+    /**
+     * Caffeine's W-TinyLFU: new entries go through a small LRU window, and are only admitted to the main
+     * cache if they were requested more often (according to a compact frequency sketch) than the entry they
+     * would evict. Frequently requested names survive scans over names that are only requested once.
+     */
+    TINY_LFU {
+        @Override
+        public UserIdCache create(long maximumWeight, long expireAfterWriteMillis, UserIdCache.Loader loader,
+                                  Executor maintenanceExecutor) {
+            return new CaffeineUserIdCache(maximumWeight, expireAfterWriteMillis, loader, maintenanceExecutor);
+        }
+    };
+
+    /**
+     * Weight of a single cache entry, roughly its size in bytes without any implementation overhead.
+     */
+    static int weigh(String loginName) {
+        return loginName.length() + 8;
+    }
+
+    /**
+     * @param maximumWeight          Maximum total {@link #weigh(String) weight} of all entries.
+     * @param expireAfterWriteMillis Entries are reloaded this long after they were loaded.
+     * @param loader                 Loads user IDs for login names that are not cached.
+     * @param maintenanceExecutor    Runs eviction and other maintenance, if the implementation does that
+     *                               asynchronously. {@code Runnable::run} makes eviction deterministic.
+     * @return A new, empty cache.
+     */
+    public abstract UserIdCache create(long maximumWeight, long expireAfterWriteMillis, UserIdCache.Loader loader,
+                                       Executor maintenanceExecutor);
+
+    /**
+     * @param name A policy name as configured, e.g. {@code tiny_lfu}, case insensitive.
+     * @return The policy.
+     * @throws IllegalArgumentException If there is no such policy.
+     */
+    public static CachePolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+
+    /**
+     * Default time after which cached user IDs are reloaded.
+     */
+    public static final long DEFAULT_EXPIRE_AFTER_WRITE_MILLIS = TimeUnit.DAYS.toMillis(7);
+}
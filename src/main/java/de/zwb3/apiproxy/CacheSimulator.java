@@ -0,0 +1,176 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.base.Splitter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Replays a recorded username access trace against the {@link CachePolicy cache policies} and maximum weights,
+ * and reports hit rate, memory use and throughput for each, to pick {@code userIdCache.policy} and
+ * {@code userIdCache.maximumWeight} from real traffic.
+ * <p>
+ * The trace is a text file with one login name per line. Empty lines and lines starting with {@code #} are
+ * ignored, if a line has multiple whitespace-separated fields, the last one is used. Usage:
+ * <pre><code>
+ * ./gradlew simulateCache -Ptrace=usernames.txt [-Ppolicies=lru,tiny_lfu] [-Pweights=131072,524288]
+ * </code></pre>
+ */
+public class CacheSimulator {
+
+    private static final List<Long> DEFAULT_WEIGHTS = Arrays.asList(
+            64L * 1024, 128L * 1024, 256L * 1024, 512L * 1024, 1024L * 1024);
+
+    /**
+     * Number of trace entries replayed (and thrown away) per policy before measuring, to warm up the JIT.
+     */
+    private static final int WARMUP_REQUESTS = 100_000;
+
+    public static void main(String[] args) throws IOException, ExecutionException {
+        if (args.length < 1) {
+            System.err.println("Usage: CacheSimulator <trace file> [policies, e.g. lru,tiny_lfu] " +
+                    "[maximum weights, e.g. 131072,524288]");
+            System.exit(1);
+        }
+
+        List<String> trace = readTrace(Files.readAllLines(Paths.get(args[0]), StandardCharsets.UTF_8));
+        List<CachePolicy> policies = args.length > 1 ?
+                parseList(args[1], CachePolicy::fromName) : Arrays.asList(CachePolicy.values());
+        List<Long> weights = args.length > 2 ? parseList(args[2], Long::parseLong) : DEFAULT_WEIGHTS;
+
+        System.out.printf("%d requests for %d distinct login names%n", trace.size(),
+                trace.stream().distinct().count());
+        System.out.printf("%-10s %12s %10s %10s %12s %14s%n",
+                "policy", "max weight", "hit rate", "entries", "memory", "requests/s");
+
+        for (CachePolicy policy : policies) {
+            simulate(trace.subList(0, Math.min(trace.size(), WARMUP_REQUESTS)), policy, weights.get(0));
+
+            for (long weight : weights) {
+                Result result = simulate(trace, policy, weight);
+                System.out.printf("%-10s %12d %9.2f%% %10d %12s %14.0f%n",
+                        policy.name().toLowerCase(Locale.ROOT), weight, result.getHitRate() * 100,
+                        result.getEntries(),
+                        ApiResponseController.humanReadableByteCount(result.getMemoryBytes(), false),
+                        result.getRequestsPerSecond());
+            }
+        }
+    }
+
+    /**
+     * @param lines The lines of a trace file.
+     * @return The lower case login names of the trace, in order.
+     */
+    static List<String> readTrace(List<String> lines) {
+        List<String> trace = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            trace.add(StringUtils.substringAfterLast(" " + trimmed.replace('\t', ' '), " ")
+                    .toLowerCase(Locale.ROOT));
+        }
+        return trace;
+    }
+
+    private static <T> List<T> parseList(String list, Function<String, T> parser) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(list).stream()
+                .map(parser)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Replay the trace against a new cache. Every miss is "loaded" instantly, so the throughput is that of the
+     * cache itself.
+     *
+     * @param trace         Lower case login names.
+     * @param policy        The policy to simulate.
+     * @param maximumWeight The maximum weight to simulate.
+     * @return The results of the replay.
+     * @throws ExecutionException Never, the simulated loads do not fail.
+     */
+    static Result simulate(List<String> trace, CachePolicy policy, long maximumWeight) throws ExecutionException {
+        long[] loads = new long[1];
+        UserIdCache.Loader loader = loginNames -> {
+            loads[0] += loginNames.size();
+            return loginNames.stream().collect(Collectors.toMap(Function.identity(),
+                    loginName -> Optional.of((long) loginName.hashCode()), (a, b) -> a));
+        };
+
+        long usedBefore = usedMemory();
+        // eviction on the calling thread, so the results are deterministic.
+        UserIdCache cache = policy.create(maximumWeight, TimeUnit.DAYS.toMillis(365), loader, Runnable::run);
+
+        long start = System.nanoTime();
+        for (String loginName : trace) {
+            cache.get(loginName);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        long memory = Math.max(0, usedMemory() - usedBefore);
+        double hitRate = trace.isEmpty() ? 0 : 1 - (double) loads[0] / trace.size();
+        double requestsPerSecond = trace.size() / Math.max(elapsedNanos / 1e9, 1e-9);
+        // also keeps the cache reachable until after the memory was measured.
+        return new Result(hitRate, cache.size(), memory, requestsPerSecond);
+    }
+
+    private static long usedMemory() {
+        // twice, see ApiResponseController#statusMessage
+        System.gc();
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static class Result {
+        private final double hitRate;
+        private final long entries;
+        private final long memoryBytes;
+        private final double requestsPerSecond;
+
+        Result(double hitRate, long entries, long memoryBytes, double requestsPerSecond) {
+            this.hitRate = hitRate;
+            this.entries = entries;
+            this.memoryBytes = memoryBytes;
+            this.requestsPerSecond = requestsPerSecond;
+        }
+
+        /**
+         * @return Share of requests answered from the cache, between 0 and 1.
+         */
+        public double getHitRate() {
+            return hitRate;
+        }
+
+        /**
+         * @return Number of entries in the cache after the replay.
+         */
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return Approximate heap used by the cache after the replay, including all overhead.
+         */
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
+
+        public double getRequestsPerSecond() {
+            return requestsPerSecond;
+        }
+    }
+}
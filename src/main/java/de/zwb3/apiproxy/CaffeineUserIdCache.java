@@ -0,0 +1,103 @@
+package de.zwb3.apiproxy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Weigher;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UserIdCache} backed by a Caffeine {@link Cache}, which uses W-TinyLFU eviction.
+ *
+ * @see CachePolicy#TINY_LFU
+ */
+class CaffeineUserIdCache implements UserIdCache {
+
+    /**
+     * Only holds login names that were found.
+     */
+    private final Cache<String, Long> cache;
+
+    private final Loader loader;
+
+    CaffeineUserIdCache(long maximumWeight, long expireAfterWriteMillis, Loader loader, Executor executor) {
+        this.cache = Caffeine.newBuilder()
+                .weigher((Weigher<String, Long>) (key, value) -> CachePolicy.weigh(key))
+                .maximumWeight(maximumWeight)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .executor(executor)
+                .build();
+        this.loader = loader;
+    }
+
+    @Override
+    public Optional<Long> get(String loginName) throws ExecutionException {
+        try {
+            // concurrent gets of the same name wait for a single load, a null result is not cached.
+            return Optional.ofNullable(cache.get(loginName, name -> {
+                try {
+                    return loader.loadAll(Collections.singletonList(name)).get(name).orElse(null);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        } catch (CompletionException e) {
+            throw translate(e.getCause());
+        } catch (RuntimeException e) {
+            throw new UncheckedExecutionException(e);
+        }
+    }
+
+    @Override
+    public Map<String, Optional<Long>> getAll(Iterable<String> loginNames) throws ExecutionException {
+        Map<String, Optional<Long>> result = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String loginName : loginNames) {
+            Long userId = cache.getIfPresent(loginName);
+            if (userId != null) {
+                result.put(loginName, Optional.of(userId));
+            } else {
+                missing.add(loginName);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (Map.Entry<String, Optional<Long>> entry : UserIdCache.loadInChunks(loader, missing).entrySet()) {
+                entry.getValue().ifPresent(userId -> cache.put(entry.getKey(), userId));
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Caffeine passes exceptions of the mapping function through, checked ones are wrapped in a
+     * {@link CompletionException} above. Translate them the way Guava does.
+     */
+    private static ExecutionException translate(Throwable cause) {
+        if (cause instanceof Error) {
+            throw new ExecutionError((Error) cause);
+        }
+        if (cause instanceof RuntimeException) {
+            throw new UncheckedExecutionException(cause);
+        }
+        return new ExecutionException(cause);
+    }
+
+    @Override
+    public long size() {
+        return cache.estimatedSize();
+    }
+}
@@ -0,0 +1,148 @@
+package de.zwb3.apiproxy;
+
+import net.jcip.annotations.GuardedBy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A circuit breaker guarding calls to a single upstream route.
+ * <p>
+ * While closed, all calls are permitted and their outcomes are counted in a fixed time window. Once at least
+ * {@code minimumRequests} calls were made in the window and the failure rate reaches the threshold, the breaker
+ * opens and rejects all calls for the configured open duration. After that, a single trial call is let through
+ * (half-open state). If it succeeds the breaker closes again, otherwise it is opened for another open duration.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final double failureRateThreshold;
+    private final int minimumRequests;
+    private final long windowNanos;
+    private final long openNanos;
+
+    @GuardedBy("this")
+    private volatile State state = State.CLOSED;
+
+    /**
+     * {@link System#nanoTime()} of the last transition into the {@link State#OPEN} or {@link State#HALF_OPEN} state.
+     */
+    @GuardedBy("this")
+    private long stateSince;
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param failureRateThreshold Failure rate (between 0 and 1) at which the breaker opens.
+     * @param minimumRequests      Minimum amount of calls in a window before the failure rate is evaluated.
+     * @param window               Length of the window the failure rate is calculated over.
+     * @param openDuration         How long the breaker stays open before letting a trial call through.
+     * @param unit                 Unit of {@code window} and {@code openDuration}.
+     */
+    public CircuitBreaker(double failureRateThreshold, int minimumRequests, long window, long openDuration,
+                          TimeUnit unit) {
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumRequests = minimumRequests;
+        this.windowNanos = unit.toNanos(window);
+        this.openNanos = unit.toNanos(openDuration);
+    }
+
+    /**
+     * Ask for permission to make a call. Every permitted call must be followed by exactly one call to
+     * {@link #record(boolean)}.
+     *
+     * @return true if the call may be made, false if the caller should fail fast.
+     */
+    public boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                case HALF_OPEN:
+                    // in the half-open state, a new trial is permitted if the previous one never reported back
+                    // within the open duration.
+                    if (now - stateSince >= openNanos) {
+                        state = State.HALF_OPEN;
+                        stateSince = now;
+                        return true;
+                    }
+                    return false;
+                default:
+                    throw new IllegalStateException("Unknown state " + state);
+            }
+        }
+    }
+
+    /**
+     * Record the outcome of a permitted call.
+     *
+     * @param success Whether the call succeeded.
+     */
+    public void record(boolean success) {
+        if (state != State.CLOSED) {
+            synchronized (this) {
+                if (state == State.HALF_OPEN) {
+                    if (success) {
+                        resetWindow(System.nanoTime());
+                        state = State.CLOSED;
+                    } else {
+                        open();
+                    }
+                    return;
+                }
+            }
+        }
+
+        long now = System.nanoTime();
+        long start = windowStart.get();
+        if (now - start >= windowNanos && windowStart.compareAndSet(start, now)) {
+            successes.set(0);
+            failures.set(0);
+        }
+
+        if (success) {
+            successes.incrementAndGet();
+            return;
+        }
+
+        long failed = failures.incrementAndGet();
+        long total = failed + successes.get();
+        if (total >= minimumRequests && failed >= total * failureRateThreshold) {
+            synchronized (this) {
+                if (state == State.CLOSED) {
+                    open();
+                }
+            }
+        }
+    }
+
+    @GuardedBy("this")
+    private void open() {
+        state = State.OPEN;
+        stateSince = System.nanoTime();
+    }
+
+    private void resetWindow(long now) {
+        windowStart.set(now);
+        successes.set(0);
+        failures.set(0);
+    }
+
+    /**
+     * @return The current state of this breaker.
+     */
+    public State getState() {
+        return state;
+    }
+}
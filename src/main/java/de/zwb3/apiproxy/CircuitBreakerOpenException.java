@@ -0,0 +1,33 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class CircuitBreakerOpenException extends RuntimeException {
+    static final long serialVersionUID = -3387516993124690246L;
+
+    public CircuitBreakerOpenException() {
+        super();
+    }
+
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+
+    public CircuitBreakerOpenException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public CircuitBreakerOpenException(Throwable cause) {
+        super(cause);
+    }
+
+    /**
+     * Thrown for every request while the upstream is failing, the stack trace would only add to the load.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,368 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import net.jcip.annotations.ThreadSafe;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The client IDs the proxy makes its own upstream requests with (username lookups and stream polls).
+ * <p>
+ * Requests are spread over all configured client IDs in round-robin order, with a token bucket per client ID
+ * so no single ID exceeds its rate limit. Client IDs that Twitch reports as invalid are quarantined for a while,
+ * client IDs that recently failed repeatedly are only used once all healthy ones are used up.
+ */
+@ThreadSafe
+public class ClientIdPool {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientIdPool.class);
+
+    /**
+     * Client IDs with at least this many failures in a row are only used if no healthy client ID is available.
+     */
+    private static final int UNHEALTHY_CONSECUTIVE_FAILURES = 3;
+
+    private final ImmutableList<ClientIdState> clientIds;
+
+    private final double requestsPerMinute;
+
+    private final int burst;
+
+    private final long maxWaitNanos;
+
+    private final long quarantineNanos;
+
+    /**
+     * Round-robin position.
+     */
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    /**
+     * @param clientIds         The client IDs to use.
+     * @param requestsPerMinute The rate limit of a single client ID.
+     * @param burst             How many requests a single client ID may make at once after being idle.
+     * @param maxWaitMillis     How long {@link #acquire()} waits at most if all client IDs are rate limited.
+     * @param quarantineMinutes How long client IDs that were reported as invalid are not used.
+     */
+    public ClientIdPool(List<String> clientIds, double requestsPerMinute, int burst, long maxWaitMillis,
+                        long quarantineMinutes) {
+        long now = System.nanoTime();
+        ImmutableList.Builder<ClientIdState> states = ImmutableList.builder();
+        for (String clientId : clientIds) {
+            states.add(new ClientIdState(clientId, new TokenBucket(requestsPerMinute, burst, now)));
+        }
+        this.clientIds = states.build();
+        this.requestsPerMinute = requestsPerMinute;
+        this.burst = burst;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.quarantineNanos = TimeUnit.MINUTES.toNanos(quarantineMinutes);
+    }
+
+    /**
+     * @param clientIds A comma-separated list of client IDs, as configured.
+     * @return The individual, trimmed client IDs.
+     */
+    public static List<String> parse(String clientIds) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(clientIds);
+    }
+
+    /**
+     * @param status The status code of an upstream response.
+     * @param body   The body of the response, if any.
+     * @return true if the response says that the client ID the request was made with is invalid, i.e. it is a
+     * {@code 400 Bad Request} with a body like
+     * {@code {"error":"Bad Request","status":400,"message":"Invalid client id specified"}}
+     */
+    public static boolean isBadClientIdResponse(int status, @Nullable String body) {
+        if (status != 400 || body == null) {
+            return false;
+        }
+        try {
+            // very defensive programming regarding the JSON, since it could technically be anything.
+            JsonElement root = new JsonParser().parse(body);
+            if (!root.isJsonObject()) {
+                return false;
+            }
+            JsonElement message = root.getAsJsonObject().get("message");
+            return message != null && message.isJsonPrimitive() && isBadClientIdMessage(message.getAsString());
+        } catch (JsonParseException e) {
+            return false;
+        }
+    }
+
+    private static boolean isBadClientIdMessage(String message) {
+        return "No client id specified".equals(message) || "Invalid client id specified".equals(message);
+    }
+
+    /**
+     * @param ratelimitReset The {@code Ratelimit-Reset} header (in epoch seconds) of a
+     *                       {@code 429 Too Many Requests} response, if any.
+     * @return The {@link System#nanoTime()} at which the rate limit is reset, or one minute from now if the
+     * header is missing or malformed.
+     */
+    public static long rateLimitResetNanos(@Nullable String ratelimitReset) {
+        long delayMillis = TimeUnit.MINUTES.toMillis(1);
+        if (ratelimitReset != null) {
+            try {
+                long resetMillis = TimeUnit.SECONDS.toMillis(Long.parseLong(ratelimitReset.trim()));
+                delayMillis = Math.max(0, resetMillis - System.currentTimeMillis());
+            } catch (NumberFormatException e) {
+                // keep the default
+            }
+        }
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+    }
+
+    /**
+     * Take a permit to make a single upstream request with one of the client IDs. Waits for a permit if all
+     * client IDs are rate limited right now, up to the configured maximum wait time.
+     *
+     * @return The client ID to make the request with.
+     * @throws BadClientIDException         If no client ID is configured, or all of them are quarantined.
+     * @throws ClientIdRateLimitedException If all client IDs are rate limited for longer than the maximum wait time.
+     * @throws InterruptedIOException       If interrupted while waiting.
+     */
+    public String acquire() throws InterruptedIOException {
+        long now = System.nanoTime();
+        Selection selection = select(now);
+        if (selection.acquired) {
+            return selection.state.clientId;
+        }
+
+        ClientIdState earliest = selection.state;
+        long wait = earliest.bucket.reserve(now, maxWaitNanos);
+        if (wait < 0) {
+            throw new ClientIdRateLimitedException("All configured client IDs are rate limited");
+        }
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a client ID");
+            }
+        }
+        return earliest.clientId;
+    }
+
+    /**
+     * Take a permit to make a single upstream request with one of the client IDs, if one is available right now.
+     * Never waits, e.g. for requests made on a scheduler thread that can try again later.
+     *
+     * @return The client ID to make the request with, or {@code null} if all client IDs are rate limited.
+     * @throws BadClientIDException If no client ID is configured, or all of them are quarantined.
+     */
+    @Nullable
+    public String tryAcquire() {
+        Selection selection = select(System.nanoTime());
+        return selection.acquired ? selection.state.clientId : null;
+    }
+
+    /**
+     * Create the attempts of an upstream call for the {@link UpstreamExecutor}, each of them charged to a client
+     * ID: the first attempt is made with the given client ID, a hedged attempt only if another permit is available
+     * right away. Otherwise, there is no hedged attempt.
+     *
+     * @param clientId The client ID already acquired for the first attempt.
+     * @param attempt  Creates an attempt of the call made with the given client ID.
+     * @param <T>      Type of the call result.
+     * @return The attempts, {@code null} for a hedged attempt without a permit.
+     */
+    public <T> Supplier<HedgedAttempt<T>> attempts(String clientId, Function<String, HedgedAttempt<T>> attempt) {
+        AtomicBoolean first = new AtomicBoolean(true);
+        return () -> {
+            if (first.getAndSet(false)) {
+                return attempt.apply(clientId);
+            }
+            String hedgeClientId;
+            try {
+                hedgeClientId = tryAcquire();
+            } catch (BadClientIDException e) {
+                // all of them were quarantined in the meantime.
+                hedgeClientId = null;
+            }
+            return hedgeClientId != null ? attempt.apply(hedgeClientId) : null;
+        };
+    }
+
+    /**
+     * Take a permit from the next available client ID in round-robin order, healthy client IDs first.
+     *
+     * @return The client ID a permit was taken from (its {@link Selection#acquired} is true), or otherwise the
+     * client ID whose next permit becomes available first.
+     * @throws BadClientIDException If no client ID is configured, or all of them are quarantined.
+     */
+    private Selection select(long now) {
+        int size = clientIds.size();
+        int start = Math.floorMod(nextIndex.getAndIncrement(), Math.max(size, 1));
+
+        ClientIdState earliest = null;
+        long earliestWait = Long.MAX_VALUE;
+        // first pass: healthy client IDs only, second pass: all that are not quarantined.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < size; i++) {
+                ClientIdState state = clientIds.get((start + i) % size);
+                if (state.isQuarantined(now) || (pass == 0 && !state.isHealthy())) {
+                    continue;
+                }
+                if (state.bucket.tryAcquire(now)) {
+                    return new Selection(state, true);
+                }
+                long wait = state.bucket.waitNanos(now);
+                if (wait < earliestWait) {
+                    earliest = state;
+                    earliestWait = wait;
+                }
+            }
+        }
+
+        if (earliest == null) {
+            throw new BadClientIDException(size == 0 ? "No client ID configured" :
+                    "All configured client IDs are invalid or empty!");
+        }
+        return new Selection(earliest, false);
+    }
+
+    /**
+     * Record a successful request made with the given client ID.
+     */
+    public void recordSuccess(String clientId) {
+        ClientIdState state = find(clientId);
+        if (state != null) {
+            state.consecutiveFailures.set(0);
+        }
+    }
+
+    /**
+     * Record a failed request (connection error, server error) made with the given client ID.
+     */
+    public void recordFailure(String clientId) {
+        ClientIdState state = find(clientId);
+        if (state != null) {
+            state.consecutiveFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stop using the given client ID until the upstream rate limit is reset.
+     *
+     * @param clientId   The client ID the upstream responded with {@code 429 Too Many Requests} to.
+     * @param resetNanos The time the upstream rate limit is reset at.
+     */
+    public void recordRateLimited(String clientId, long resetNanos) {
+        ClientIdState state = find(clientId);
+        if (state != null) {
+            state.bucket.drainUntil(resetNanos);
+        }
+    }
+
+    /**
+     * Stop using the given client ID for the configured quarantine time.
+     *
+     * @param clientId The client ID the upstream reported as invalid.
+     */
+    public void quarantine(String clientId) {
+        ClientIdState state = find(clientId);
+        if (state != null) {
+            log.warn("Client ID {} was reported as invalid, not using it for {} minutes", clientId,
+                    TimeUnit.NANOSECONDS.toMinutes(quarantineNanos));
+            state.quarantinedUntilNanos = System.nanoTime() + quarantineNanos;
+            state.quarantined = true;
+        }
+    }
+
+    /**
+     * @return The rate limit of all configured client IDs together, per minute.
+     */
+    public double getRequestsPerMinute() {
+        return requestsPerMinute * clientIds.size();
+    }
+
+    /**
+     * @return How many requests a single client ID may make at once after being idle.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * @return The number of configured client IDs.
+     */
+    public int size() {
+        return clientIds.size();
+    }
+
+    /**
+     * @return The number of configured client IDs that are not quarantined.
+     */
+    public int getAvailableCount() {
+        long now = System.nanoTime();
+        int available = 0;
+        for (ClientIdState state : clientIds) {
+            if (!state.isQuarantined(now)) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    @Nullable
+    private ClientIdState find(String clientId) {
+        for (ClientIdState state : clientIds) {
+            if (state.clientId.equals(clientId)) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    private static class Selection {
+        private final ClientIdState state;
+
+        /**
+         * Whether a permit of the client ID was taken.
+         */
+        private final boolean acquired;
+
+        private Selection(ClientIdState state, boolean acquired) {
+            this.state = state;
+            this.acquired = acquired;
+        }
+    }
+
+    private static class ClientIdState {
+        private final String clientId;
+        private final TokenBucket bucket;
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        private volatile boolean quarantined;
+        private volatile long quarantinedUntilNanos;
+
+        private ClientIdState(String clientId, TokenBucket bucket) {
+            this.clientId = clientId;
+            this.bucket = bucket;
+        }
+
+        private boolean isQuarantined(long nowNanos) {
+            return quarantined && nowNanos - quarantinedUntilNanos < 0;
+        }
+
+        private boolean isHealthy() {
+            return consecutiveFailures.get() < UNHEALTHY_CONSECUTIVE_FAILURES;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when all configured client IDs have used up their rate limit for upstream requests.
+ */
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class ClientIdRateLimitedException extends RuntimeException {
+    public ClientIdRateLimitedException() {
+    }
+
+    public ClientIdRateLimitedException(String message) {
+        super(message);
+    }
+
+    public ClientIdRateLimitedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ClientIdRateLimitedException(Throwable cause) {
+        super(cause);
+    }
+
+    /**
+     * Thrown for every request while all client IDs are rate limited, the stack trace would only add to the load.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,283 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import net.jcip.annotations.ThreadSafe;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Cluster mode: a static set of proxy nodes that share the work of resolving usernames.
+ * <p>
+ * A {@link HashRing} over the lower case login names decides which node owns each name. Only the owner caches
+ * a name and looks it up at Twitch, all other nodes ask the owner through its internal endpoint
+ * ({@link ClusterController}). The username caches of all nodes together hold every name once, and every name
+ * is looked up at Twitch once cluster-wide instead of once per node.
+ * <p>
+ * Names resolved by other nodes are kept in a small, short-lived near cache, so that names that are requested
+ * often do not cost an internal request every time. Internal requests carry a shared secret that the internal
+ * endpoint checks.
+ */
+@ThreadSafe
+public class Cluster {
+
+    /**
+     * Path of the internal endpoint that resolves login names owned by a node.
+     */
+    public static final String USERS_PATH = "/apiproxy/internal/users";
+
+    /**
+     * Header the shared secret of the cluster is sent in.
+     */
+    public static final String SECRET_HEADER = "Cluster-Secret";
+
+    /**
+     * Maximum amount of login names in a single internal request.
+     */
+    public static final int MAX_LOGINS_PER_REQUEST = UserIdResolver.MAX_LOGINS_PER_LOOKUP;
+
+    /**
+     * Login names that were not found are sent as {@code null}.
+     */
+    private static final Gson gson = new GsonBuilder().serializeNulls().create();
+
+    private final String self;
+
+    private final byte[] secret;
+
+    private final HashRing ring;
+
+    private final CloseableHttpClient httpClient;
+
+    private final RequestConfig requestConfig;
+
+    /**
+     * User IDs of login names owned by other nodes, as they were resolved by their owners.
+     */
+    private final Cache<String, Long> nearCache;
+
+    /**
+     * @param nodes                  Base URLs of all nodes of the cluster, including this one, e.g.
+     *                               {@code http://10.0.0.1:7221}. Must be the same on every node.
+     * @param self                   Base URL of this node, as it appears in {@code nodes}.
+     * @param secret                 Shared secret of the cluster. Must be the same on every node.
+     * @param virtualNodes           Number of points per node on the hash ring.
+     * @param httpClient             The client to send internal requests with.
+     * @param timeoutMillis          Internal requests that take longer than this fail.
+     * @param nearCacheMaximumSize   Maximum number of names owned by other nodes that are kept.
+     * @param nearCacheExpireSeconds How long names owned by other nodes are kept.
+     */
+    public Cluster(List<String> nodes, String self, String secret, int virtualNodes, CloseableHttpClient httpClient,
+                   int timeoutMillis, long nearCacheMaximumSize, long nearCacheExpireSeconds) {
+        List<String> normalizedNodes = nodes.stream().map(Cluster::normalize).collect(Collectors.toList());
+        this.self = normalize(self);
+        if (!normalizedNodes.contains(this.self)) {
+            throw new IllegalArgumentException("cluster.self " + self + " is not one of the cluster nodes " + nodes);
+        }
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("cluster.secret must be set in cluster mode");
+        }
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.ring = new HashRing(normalizedNodes, virtualNodes);
+        this.httpClient = httpClient;
+        this.requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build();
+        this.nearCache = CacheBuilder.newBuilder()
+                .maximumSize(nearCacheMaximumSize)
+                .expireAfterWrite(nearCacheExpireSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @param nodes A comma-separated list of node base URLs, as configured.
+     * @return The individual, trimmed node base URLs.
+     */
+    public static List<String> parse(String nodes) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(nodes);
+    }
+
+    private static String normalize(String node) {
+        return StringUtils.removeEnd(node.trim(), "/");
+    }
+
+    /**
+     * @param loginName A lower case login name.
+     * @return The base URL of the node that owns the given login name.
+     */
+    public String ownerOf(String loginName) {
+        return ring.ownerOf(loginName);
+    }
+
+    /**
+     * @param loginName A lower case login name.
+     * @return true if this node owns the given login name.
+     */
+    public boolean isLocal(String loginName) {
+        return ownerOf(loginName).equals(self);
+    }
+
+    /**
+     * @param secret The secret an internal request was sent with, if any.
+     * @return true if it is the shared secret of this cluster.
+     */
+    public boolean isAuthorized(@Nullable String secret) {
+        return secret != null && MessageDigest.isEqual(this.secret, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Resolve login names through the internal endpoint of the node that owns them. Names in the near cache are
+     * answered without a request, the rest with as few requests as possible.
+     *
+     * @param owner      Base URL of the node that owns all of the given login names.
+     * @param loginNames Lower case login names.
+     * @return A map containing an entry for every given login name, with an empty optional for names that
+     * were not found.
+     * @throws IOException If the owner could not be reached or sent a bad response.
+     */
+    public Map<String, Optional<Long>> lookup(String owner, Collection<String> loginNames) throws IOException {
+        Map<String, Optional<Long>> userIds = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String loginName : loginNames) {
+            Long userId = nearCache.getIfPresent(loginName);
+            if (userId != null) {
+                userIds.put(loginName, Optional.of(userId));
+            } else {
+                missing.add(loginName);
+            }
+        }
+
+        for (List<String> chunk : Iterables.partition(missing, MAX_LOGINS_PER_REQUEST)) {
+            Map<String, Optional<Long>> remoteUserIds = request(owner, chunk);
+            for (String loginName : chunk) {
+                Optional<Long> userId = remoteUserIds.get(loginName);
+                userId.ifPresent(id -> nearCache.put(loginName, id));
+                userIds.put(loginName, userId);
+            }
+        }
+        return userIds;
+    }
+
+    private Map<String, Optional<Long>> request(String owner, List<String> loginNames) throws IOException {
+        HttpGet request;
+        try {
+            request = new HttpGet(new URIBuilder(owner + USERS_PATH)
+                    .setParameter("login", String.join(",", loginNames))
+                    .build());
+        } catch (URISyntaxException e) {
+            throw new IOException("Bad cluster node URL " + owner, e);
+        }
+        request.setConfig(requestConfig);
+        request.setHeader(SECRET_HEADER, new String(secret, StandardCharsets.UTF_8));
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            String body = response.getEntity() == null ? "" :
+                    EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("Bad response from cluster node " + owner + " - " + response.getStatusLine());
+            }
+            Map<String, Optional<Long>> userIds = decodeUsers(body);
+            for (String loginName : loginNames) {
+                if (!userIds.containsKey(loginName)) {
+                    throw new IOException("Cluster node " + owner + " did not resolve " + loginName);
+                }
+            }
+            return userIds;
+        }
+    }
+
+    /**
+     * Encode the response of the internal endpoint, e.g. {@code {"users":{"forsen":22484632,"deleted":null}}}.
+     *
+     * @param userIds The user IDs by lower case login name.
+     * @return The JSON body.
+     */
+    static String encodeUsers(Map<String, Optional<Long>> userIds) {
+        JsonObject users = new JsonObject();
+        for (Map.Entry<String, Optional<Long>> entry : userIds.entrySet()) {
+            users.addProperty(entry.getKey(), entry.getValue().orElse(null));
+        }
+        JsonObject body = new JsonObject();
+        body.add("users", users);
+        return gson.toJson(body);
+    }
+
+    /**
+     * @param body A body produced by {@link #encodeUsers(Map)}.
+     * @return The user IDs by lower case login name.
+     * @throws IOException If the body is malformed.
+     */
+    static Map<String, Optional<Long>> decodeUsers(String body) throws IOException {
+        try {
+            JsonObject users = gson.fromJson(body, JsonObject.class).getAsJsonObject("users");
+            Map<String, Optional<Long>> userIds = new HashMap<>();
+            for (Map.Entry<String, JsonElement> entry : users.entrySet()) {
+                userIds.put(entry.getKey(), entry.getValue().isJsonNull() ?
+                        Optional.empty() : Optional.of(entry.getValue().getAsLong()));
+            }
+            return userIds;
+        } catch (JsonParseException | NullPointerException | ClassCastException | IllegalStateException |
+                NumberFormatException e) {
+            throw new IOException("Malformed cluster response", e);
+        }
+    }
+
+    /**
+     * @param loginNames Lower case login names.
+     * @return The given login names, grouped by the node that owns them, in the order they were given.
+     */
+    public Map<String, List<String>> groupByOwner(Collection<String> loginNames) {
+        return loginNames.stream().collect(Collectors.groupingBy(this::ownerOf, LinkedHashMap::new,
+                Collectors.toList()));
+    }
+
+    /**
+     * @return Base URL of this node.
+     */
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * @return The (approximate) number of names owned by other nodes in the near cache.
+     */
+    public long getNearCacheCount() {
+        return nearCache.size();
+    }
+
+    /**
+     * @return Base URLs of all nodes, including this one.
+     */
+    public List<String> getNodes() {
+        return ring.getNodes();
+    }
+}
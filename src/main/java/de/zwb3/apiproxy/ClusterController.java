@@ -0,0 +1,61 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+/**
+ * The internal endpoint the other nodes of the {@link Cluster} resolve login names owned by this node with.
+ * Only registered in cluster mode, and only answers requests that carry the shared secret of the cluster.
+ */
+@Controller
+@ConditionalOnProperty("cluster.nodes")
+public class ClusterController {
+
+    private final UserIdResolver userIdResolver;
+
+    private final Cluster cluster;
+
+    @Autowired
+    public ClusterController(UserIdResolver userIdResolver, Cluster cluster) {
+        this.userIdResolver = userIdResolver;
+        this.cluster = cluster;
+    }
+
+    /**
+     * Resolve login names using the cache of this node, looking up the ones that are not cached. Never asks
+     * another node, even for login names this node does not own (e.g. because the nodes disagree about the
+     * cluster during a configuration change).
+     *
+     * @param secret The shared secret of the cluster.
+     * @param login  Comma-separated lower case login names, at most {@link Cluster#MAX_LOGINS_PER_REQUEST}.
+     * @return e.g. {@code {"users":{"forsen":22484632,"deleted":null}}}
+     * @throws ExecutionException         If there was an error querying the usernames from the API.
+     * @throws ClusterForbiddenException  If the secret is missing or wrong.
+     * @throws BadClusterRequestException If there are too many login names.
+     */
+    @RequestMapping(value = Cluster.USERS_PATH, method = GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public String users(@RequestHeader(value = Cluster.SECRET_HEADER, required = false) String secret,
+                        @RequestParam("login") String login) throws ExecutionException {
+        if (!cluster.isAuthorized(secret)) {
+            throw new ClusterForbiddenException("Missing or wrong " + Cluster.SECRET_HEADER);
+        }
+        List<String> loginNames = Cluster.parse(login);
+        if (loginNames.size() > Cluster.MAX_LOGINS_PER_REQUEST) {
+            throw new BadClusterRequestException("At most " + Cluster.MAX_LOGINS_PER_REQUEST +
+                    " login names are allowed per request");
+        }
+        return Cluster.encodeUsers(userIdResolver.translateUsernamesLocally(loginNames));
+    }
+}
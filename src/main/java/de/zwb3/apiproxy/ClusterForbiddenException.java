@@ -0,0 +1,22 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.FORBIDDEN)
+public class ClusterForbiddenException extends IllegalArgumentException {
+    public ClusterForbiddenException() {
+    }
+
+    public ClusterForbiddenException(String s) {
+        super(s);
+    }
+
+    public ClusterForbiddenException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public ClusterForbiddenException(Throwable cause) {
+        super(cause);
+    }
+}
@@ -0,0 +1,204 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Writes Twitch-style error bodies (see {@link ErrorStatus}), e.g.
+ * {@code {"error":"Not Found","status":404,"message":"Username ..."}}, without going through Spring's error
+ * dispatch or a JSON serializer.
+ * <p>
+ * Everything except the message is pre-encoded once per exception type, so an error response costs
+ * little more than escaping its message.
+ */
+public final class ErrorResponses {
+
+    static final String CONTENT_TYPE = "application/json;charset=UTF-8";
+
+    /**
+     * The pre-encoded parts of the error bodies, by exception type.
+     */
+    private static final ClassValue<Template> templates = new ClassValue<Template>() {
+        @Override
+        protected Template computeValue(Class<?> type) {
+            return Template.of(statusOf(type));
+        }
+    };
+
+    private ErrorResponses() {
+    }
+
+    /**
+     * Write the error response for the given exception. The response must not be committed yet.
+     *
+     * @param response The response to write to.
+     * @param e        The exception, it is {@link #unwrap(Throwable) unwrapped} first.
+     * @return The status that was written.
+     * @throws IOException If the response could not be written.
+     */
+    public static HttpStatus write(HttpServletResponse response, Throwable e) throws IOException {
+        Throwable cause = unwrap(e);
+        Template template = templates.get(cause.getClass());
+        byte[] message = template.encodeMessage(cause.getMessage());
+
+        response.setStatus(template.status.value());
+        response.setContentType(CONTENT_TYPE);
+        response.setContentLength(template.prefix.length + message.length + Template.SUFFIX.length);
+        ServletOutputStream outputStream = response.getOutputStream();
+        outputStream.write(template.prefix);
+        outputStream.write(message);
+        outputStream.write(Template.SUFFIX);
+        return template.status;
+    }
+
+    /**
+     * @param status  The response status.
+     * @param message The error message, or {@code null}.
+     * @return The whole error body.
+     */
+    public static byte[] encode(HttpStatus status, @Nullable String message) {
+        Template template = Template.of(status);
+        byte[] encodedMessage = template.encodeMessage(message);
+        byte[] body = Arrays.copyOf(template.prefix,
+                template.prefix.length + encodedMessage.length + Template.SUFFIX.length);
+        System.arraycopy(encodedMessage, 0, body, template.prefix.length, encodedMessage.length);
+        System.arraycopy(Template.SUFFIX, 0, body, template.prefix.length + encodedMessage.length,
+                Template.SUFFIX.length);
+        return body;
+    }
+
+    /**
+     * Unwrap exceptions that originate from the User ID cache.
+     */
+    public static Throwable unwrap(Throwable e) {
+        Throwable unwrapped = e;
+        while ((unwrapped instanceof UncheckedExecutionException || unwrapped instanceof ExecutionException) &&
+                unwrapped.getCause() != null) {
+            unwrapped = unwrapped.getCause();
+        }
+        return unwrapped;
+    }
+
+    /**
+     * @return The status from the {@link ResponseStatus} annotation of the exception, or 500 if it has none.
+     */
+    public static HttpStatus statusOf(Throwable e) {
+        return templates.get(e.getClass()).status;
+    }
+
+    private static HttpStatus statusOf(Class<?> type) {
+        ResponseStatus responseStatus = AnnotatedElementUtils.findMergedAnnotation(type, ResponseStatus.class);
+        return responseStatus != null ? responseStatus.value() : HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Append the given string to the given builder as the contents of a JSON string literal.
+     */
+    static void appendEscaped(StringBuilder builder, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+    }
+
+    private static boolean needsEscaping(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c == '"' || c == '\\') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The constant parts of the error body for a single status.
+     */
+    private static class Template {
+        private static final byte[] NULL_MESSAGE = "null".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] SUFFIX = {'}'};
+
+        private static final Template[] byStatus = new Template[600];
+
+        static {
+            for (HttpStatus status : HttpStatus.values()) {
+                // the first of several constants with the same value is the current one, like HttpStatus#valueOf
+                if (byStatus[status.value()] == null) {
+                    byStatus[status.value()] = new Template(status);
+                }
+            }
+        }
+
+        private final HttpStatus status;
+
+        /**
+         * {@code {"error":"Not Found","status":404,"message":}
+         */
+        private final byte[] prefix;
+
+        private Template(HttpStatus status) {
+            this.status = status;
+            StringBuilder builder = new StringBuilder("{\"error\":\"");
+            appendEscaped(builder, status.getReasonPhrase());
+            builder.append("\",\"status\":").append(status.value()).append(",\"message\":");
+            this.prefix = builder.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        static Template of(HttpStatus status) {
+            return byStatus[status.value()];
+        }
+
+        /**
+         * @return The message as a JSON string literal, including the quotes.
+         */
+        byte[] encodeMessage(@Nullable String message) {
+            if (message == null) {
+                return NULL_MESSAGE;
+            }
+            String escaped = message;
+            if (needsEscaping(message)) {
+                StringBuilder builder = new StringBuilder(message.length() + 16);
+                appendEscaped(builder, message);
+                escaped = builder.toString();
+            }
+            byte[] bytes = escaped.getBytes(StandardCharsets.UTF_8);
+            byte[] quoted = new byte[bytes.length + 2];
+            quoted[0] = '"';
+            System.arraycopy(bytes, 0, quoted, 1, bytes.length);
+            quoted[quoted.length - 1] = '"';
+            return quoted;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package de.zwb3.apiproxy;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of failures without any locks, so that during an outage the threads that fail at the same time
+ * do not also queue up on a monitor.
+ * <p>
+ * The most recent failures (time, source and cause) are kept in a fixed-size ring that is overwritten
+ * round-robin. Failures and successes are also counted per second in a sliding window, with {@link LongAdder}s
+ * that spread concurrent increments over several cells.
+ * <p>
+ * The counts decide when to back off: as in client-side adaptive throttling, a request is rejected locally with
+ * probability {@code (requests - multiplier * successes) / (requests + 1)} over the window. While everything
+ * succeeds nothing is rejected, and the more requests fail, the fewer are sent, but enough to notice when the
+ * upstream recovers.
+ * <p>
+ * Failures of requests that are not backed off by this tracker, e.g. proxied requests, can be kept in the ring
+ * with {@link #recordRecentFailure(String, Throwable)} without being counted.
+ */
+@ThreadSafe
+public class FailureTracker {
+
+    /**
+     * Default number of recent failures kept, see {@code failureTracker.capacity}.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Default length of the sliding window, see {@code failureTracker.windowSeconds}.
+     */
+    public static final int DEFAULT_WINDOW_SECONDS = 10;
+
+    /**
+     * By default, requests are backed off once fewer than every second one succeeds within the window, see
+     * {@code failureTracker.backoffMultiplier}.
+     */
+    public static final double DEFAULT_MULTIPLIER = 2;
+
+    /**
+     * A single recorded failure.
+     */
+    @Immutable
+    public static class Failure {
+        private final long sequence;
+        private final Instant time;
+        private final String source;
+        private final Throwable cause;
+
+        Failure(long sequence, Instant time, String source, Throwable cause) {
+            this.sequence = sequence;
+            this.time = time;
+            this.source = source;
+            this.cause = cause;
+        }
+
+        public Instant getTime() {
+            return time;
+        }
+
+        /**
+         * @return What failed, e.g. {@code user lookup}.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        public Throwable getCause() {
+            return cause;
+        }
+    }
+
+    /**
+     * The counts of one second of the window.
+     */
+    private static class Bucket {
+        /**
+         * The second (since an arbitrary origin) the counts are for.
+         */
+        final AtomicLong second = new AtomicLong(Long.MIN_VALUE);
+        final LongAdder requests = new LongAdder();
+        final LongAdder successes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+    }
+
+    private final AtomicReferenceArray<Failure> ring;
+
+    private final int mask;
+
+    /**
+     * Sequence number of the next failure, its slot in the ring is {@code sequence & mask}.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Bucket[] buckets;
+
+    private final double multiplier;
+
+    private final long originNanos = System.nanoTime();
+
+    /**
+     * @param capacity      Number of recent failures kept, rounded up to a power of two.
+     * @param windowSeconds Length of the sliding window the counts are kept for.
+     * @param multiplier    Requests are only rejected once there are more than {@code multiplier} times as many
+     *                      requests as successes in the window, e.g. 2.
+     */
+    public FailureTracker(int capacity, int windowSeconds, double multiplier) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.buckets = new Bucket[windowSeconds];
+        for (int i = 0; i < windowSeconds; i++) {
+            buckets[i] = new Bucket();
+        }
+        this.multiplier = multiplier;
+    }
+
+    /**
+     * Decide whether a request may be made, and count it. Every permitted request should be followed by
+     * {@link #recordSuccess()}, {@link #recordFailure(String, Throwable)} or {@link #cancel()}.
+     *
+     * @return false if the request should not be made, because too many requests failed recently.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(nowNanos(), ThreadLocalRandom.current().nextDouble());
+    }
+
+    boolean tryAcquire(long nowNanos, double random) {
+        long second = secondOf(nowNanos);
+        Bucket current = bucket(second);
+
+        long requests = 0;
+        long successes = 0;
+        for (Bucket bucket : buckets) {
+            if (inWindow(bucket.second.get(), second)) {
+                requests += bucket.requests.sum();
+                successes += bucket.successes.sum();
+            }
+        }
+        // rejected requests count as well, so that the rejection probability keeps rising while nothing succeeds.
+        current.requests.increment();
+        double rejectProbability = (requests - multiplier * successes) / (requests + 1);
+        return random >= rejectProbability;
+    }
+
+    /**
+     * Stop counting a request that was permitted by {@link #tryAcquire()} but not made after all, e.g. because
+     * no client ID was available for it. Such requests say nothing about the upstream.
+     */
+    public void cancel() {
+        cancel(nowNanos());
+    }
+
+    void cancel(long nowNanos) {
+        bucket(secondOf(nowNanos)).requests.decrement();
+    }
+
+    public void recordSuccess() {
+        recordSuccess(nowNanos());
+    }
+
+    void recordSuccess(long nowNanos) {
+        bucket(secondOf(nowNanos)).successes.increment();
+    }
+
+    /**
+     * @param source What failed, e.g. {@code user lookup}.
+     * @param cause  Why it failed.
+     */
+    public void recordFailure(String source, Throwable cause) {
+        recordFailure(source, cause, nowNanos());
+    }
+
+    void recordFailure(String source, Throwable cause, long nowNanos) {
+        bucket(secondOf(nowNanos)).failures.increment();
+        recordRecentFailure(source, cause);
+    }
+
+    /**
+     * Keep a failure in the ring of recent failures only. It is not counted in the window, so it neither changes
+     * the failure rate nor when requests are backed off.
+     *
+     * @param source What failed, e.g. {@code GET /kraken/streams/:channel}.
+     * @param cause  Why it failed.
+     */
+    public void recordRecentFailure(String source, Throwable cause) {
+        long next = sequence.getAndIncrement();
+        ring.set((int) (next & mask), new Failure(next, Instant.now(), source, cause));
+    }
+
+    /**
+     * @return The recent failures, the most recent first. Failures recorded while this runs may or may not be
+     * included.
+     */
+    public List<Failure> getRecentFailures() {
+        long end = sequence.get();
+        List<Failure> failures = new ArrayList<>();
+        for (long i = end - 1; i >= 0 && i >= end - ring.length(); i--) {
+            Failure failure = ring.get((int) (i & mask));
+            // skip slots that were not written yet, or were overwritten by a newer failure in the meantime.
+            if (failure != null && failure.sequence == i) {
+                failures.add(failure);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return The most recent failure, or {@code null} if there was none.
+     */
+    @Nullable
+    public Failure getLastFailure() {
+        long last = sequence.get() - 1;
+        return last < 0 ? null : ring.get((int) (last & mask));
+    }
+
+    /**
+     * @return The number of failures recorded so far, including those only kept in the ring.
+     */
+    public long getFailureCount() {
+        return sequence.get();
+    }
+
+    /**
+     * @return The number of failures in the sliding window.
+     */
+    public long getWindowFailures() {
+        return getWindowFailures(nowNanos());
+    }
+
+    long getWindowFailures(long nowNanos) {
+        long second = secondOf(nowNanos);
+        long failures = 0;
+        for (Bucket bucket : buckets) {
+            if (inWindow(bucket.second.get(), second)) {
+                failures += bucket.failures.sum();
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return The share of failures among the completed requests in the sliding window, between 0 and 1.
+     */
+    public double getWindowFailureRate() {
+        return getWindowFailureRate(nowNanos());
+    }
+
+    double getWindowFailureRate(long nowNanos) {
+        long second = secondOf(nowNanos);
+        long failures = 0;
+        long successes = 0;
+        for (Bucket bucket : buckets) {
+            if (inWindow(bucket.second.get(), second)) {
+                failures += bucket.failures.sum();
+                successes += bucket.successes.sum();
+            }
+        }
+        return failures == 0 ? 0 : (double) failures / (failures + successes);
+    }
+
+    /**
+     * @return The length of the sliding window in seconds.
+     */
+    public int getWindowSeconds() {
+        return buckets.length;
+    }
+
+    private long nowNanos() {
+        return System.nanoTime() - originNanos;
+    }
+
+    private static long secondOf(long nanos) {
+        return TimeUnit.NANOSECONDS.toSeconds(nanos);
+    }
+
+    private boolean inWindow(long bucketSecond, long second) {
+        return bucketSecond > second - buckets.length && bucketSecond <= second;
+    }
+
+    /**
+     * @return The bucket of the given second, reset first if it still holds the counts of an older second.
+     */
+    private Bucket bucket(long second) {
+        Bucket bucket = buckets[(int) Math.floorMod(second, (long) buckets.length)];
+        long current = bucket.second.get();
+        if (current < second && bucket.second.compareAndSet(current, second)) {
+            // increments by other threads between the two steps may be lost, which only makes the counts of
+            // the first moments of a second slightly low.
+            bucket.requests.reset();
+            bucket.successes.reset();
+            bucket.failures.reset();
+        }
+        return bucket;
+    }
+}
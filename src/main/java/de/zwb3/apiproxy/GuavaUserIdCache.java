@@ -0,0 +1,92 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link UserIdCache} backed by a Guava {@link Cache}.
+ *
+ * @see CachePolicy#LRU
+ */
+class GuavaUserIdCache implements UserIdCache {
+
+    /**
+     * Thrown by the loader of a single login name that was not found, so that nothing is cached for it.
+     */
+    private static class NotFoundException extends Exception {
+        static final long serialVersionUID = 4420283187392011645L;
+
+        NotFoundException() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final NotFoundException NOT_FOUND = new NotFoundException();
+
+    /**
+     * Only holds login names that were found.
+     */
+    private final Cache<String, Long> cache;
+
+    private final Loader loader;
+
+    GuavaUserIdCache(long maximumWeight, long expireAfterWriteMillis, Loader loader) {
+        this.cache = CacheBuilder.newBuilder()
+                // note that each entry has a implementation-dependendant overhead on top of its weight.
+                .weigher((Weigher<String, Long>) (key, value) -> CachePolicy.weigh(key))
+                .maximumWeight(maximumWeight)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.loader = loader;
+    }
+
+    @Override
+    public Optional<Long> get(String loginName) throws ExecutionException {
+        try {
+            // concurrent gets of the same name wait for a single load.
+            return Optional.of(cache.get(loginName, () ->
+                    loader.loadAll(Collections.singletonList(loginName)).get(loginName).orElseThrow(() -> NOT_FOUND)));
+        } catch (ExecutionException e) {
+            if (e.getCause() == NOT_FOUND) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public Map<String, Optional<Long>> getAll(Iterable<String> loginNames) throws ExecutionException {
+        Map<String, Optional<Long>> result = new HashMap<>();
+        Set<String> missing = new LinkedHashSet<>();
+        for (String loginName : loginNames) {
+            Long userId = cache.getIfPresent(loginName);
+            if (userId != null) {
+                result.put(loginName, Optional.of(userId));
+            } else {
+                missing.add(loginName);
+            }
+        }
+        if (!missing.isEmpty()) {
+            for (Map.Entry<String, Optional<Long>> entry : UserIdCache.loadInChunks(loader, missing).entrySet()) {
+                entry.getValue().ifPresent(userId -> cache.put(entry.getKey(), userId));
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,97 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import net.jcip.annotations.Immutable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A consistent-hash ring that assigns every key to one of a fixed set of nodes.
+ * <p>
+ * Every node is placed on the ring at many pseudo-random points (virtual nodes), a key belongs to the node of
+ * the first point at or after the hash of the key. This spreads keys evenly, and adding or removing a node only
+ * moves the keys of that node.
+ */
+@Immutable
+public class HashRing {
+
+    private static final HashFunction hashFunction = Hashing.murmur3_32();
+
+    private final ImmutableList<String> nodes;
+
+    /**
+     * Hashes of all points on the ring, ascending (signed).
+     */
+    private final int[] points;
+
+    /**
+     * Index into {@link #nodes} of the node each point belongs to.
+     */
+    private final int[] owners;
+
+    /**
+     * @param nodes        The names of all nodes, e.g. their base URLs. Every node must use the same list (in
+     *                     any order) so they agree on the owners of keys.
+     * @param virtualNodes Number of points per node.
+     */
+    public HashRing(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node");
+        }
+        this.nodes = ImmutableList.copyOf(nodes);
+
+        long[] entries = new long[nodes.size() * virtualNodes];
+        int i = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int point = 0; point < virtualNodes; point++) {
+                int hash = hash(nodes.get(node) + "#" + point);
+                // sort by hash (in the upper bits) and keep the node index in the lower bits.
+                entries[i++] = ((long) hash << 32) | node;
+            }
+        }
+        Arrays.sort(entries);
+
+        points = new int[entries.length];
+        owners = new int[entries.length];
+        for (i = 0; i < entries.length; i++) {
+            points[i] = (int) (entries[i] >>> 32);
+            owners[i] = (int) entries[i];
+        }
+    }
+
+    private static int hash(String key) {
+        return hashFunction.hashString(key, StandardCharsets.UTF_8).asInt();
+    }
+
+    /**
+     * @param key The key, e.g. a lower case login name.
+     * @return The node that owns the given key.
+     */
+    public String ownerOf(String key) {
+        int hash = hash(key);
+        // binary search for the first point >= hash
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        // wrap around to the first point.
+        return nodes.get(owners[low == points.length ? 0 : low]);
+    }
+
+    /**
+     * @return All nodes of this ring.
+     */
+    public List<String> getNodes() {
+        return nodes;
+    }
+}
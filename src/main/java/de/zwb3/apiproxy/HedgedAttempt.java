@@ -0,0 +1,37 @@
+package de.zwb3.apiproxy;
+
+import java.io.IOException;
+
+/**
+ * A single attempt of an upstream call, as executed by the {@link UpstreamExecutor}.
+ * <p>
+ * For hedged calls, more than one attempt may be started. The first attempt to complete successfully wins,
+ * all others are {@link #abort() aborted}, and results of attempts that complete after the winner are
+ * {@link #discard(Object) discarded}.
+ *
+ * @param <T> The type of the result of this attempt.
+ */
+public interface HedgedAttempt<T> {
+
+    /**
+     * Perform the call. This blocks until the call completed.
+     *
+     * @return The result of the call.
+     * @throws IOException If an I/O error occurs.
+     */
+    T call() throws IOException;
+
+    /**
+     * Abort the call, if it is still in progress. Called from a different thread than {@link #call()}.
+     */
+    default void abort() {
+    }
+
+    /**
+     * Release any resources held by a result that lost the race against another attempt.
+     *
+     * @param result The result to release.
+     */
+    default void discard(T result) {
+    }
+}
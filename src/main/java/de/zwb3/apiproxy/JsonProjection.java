@@ -0,0 +1,181 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.base.Splitter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.jcip.annotations.Immutable;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Selects a few fields out of a JSON document, e.g. {@code stream.game,stream.channel.status} turns
+ * {@code {"stream":{"_id":1,"game":"Dota 2","viewers":5,"channel":{"status":"hi","name":"forsen"}}}} into
+ * {@code {"stream":{"game":"Dota 2","channel":{"status":"hi"}}}}.
+ * <p>
+ * Every path is a dot-separated list of member names. Arrays are transparent: {@code follows.user.name} selects
+ * the {@code name} of the {@code user} of every element of {@code follows}. A selected member is copied with
+ * everything below it. Members on the way to a selected member that are not objects (e.g. {@code "stream":null}
+ * for offline streams) are copied as they are.
+ * <p>
+ * The document is streamed token by token from a {@link JsonReader} to a {@link JsonWriter}, so the memory used
+ * does not grow with the size of the document (only with its nesting depth).
+ */
+@Immutable
+public class JsonProjection {
+
+    /**
+     * The query parameter the fields are given in, e.g. {@code ?fields=stream.game,stream.channel.status}.
+     */
+    public static final String FIELDS_PARAMETER = "fields";
+
+    /**
+     * The header the fields are given in, as an alternative to {@link #FIELDS_PARAMETER}.
+     */
+    public static final String FIELDS_HEADER = "X-Fields";
+
+    private final Node root;
+
+    private JsonProjection(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param fields Comma-separated paths, e.g. {@code stream.game,stream.channel.status}.
+     * @return The projection that selects the given paths.
+     * @throws BadFieldsException If a path is empty or has an empty member name.
+     */
+    public static JsonProjection parse(String fields) {
+        Node root = new Node();
+        boolean any = false;
+        for (String path : Splitter.on(',').trimResults().omitEmptyStrings().split(fields)) {
+            Node node = root;
+            for (String name : Splitter.on('.').split(path)) {
+                if (name.isEmpty()) {
+                    throw new BadFieldsException("Invalid path in fields: " + path);
+                }
+                node = node.children.computeIfAbsent(name, n -> new Node());
+            }
+            node.selected = true;
+            any = true;
+        }
+        if (!any) {
+            throw new BadFieldsException("No paths in fields: " + fields);
+        }
+        return new JsonProjection(root);
+    }
+
+    /**
+     * Copy the selected fields of the JSON document from the given reader to the given writer.
+     *
+     * @param in  The full JSON document.
+     * @param out Where to write the projected document to.
+     * @throws IOException If the document is malformed, or could not be read or written.
+     */
+    public void project(Reader in, Writer out) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        JsonWriter writer = new JsonWriter(out);
+        try {
+            project(reader, writer, root);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed JSON", e);
+        }
+        writer.flush();
+    }
+
+    private static void project(JsonReader reader, JsonWriter writer, Node node) throws IOException {
+        if (node.selected) {
+            copy(reader, writer);
+            return;
+        }
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    Node child = node.children.get(name);
+                    if (child == null) {
+                        reader.skipValue();
+                    } else {
+                        writer.name(name);
+                        project(reader, writer, child);
+                    }
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    project(reader, writer, node);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            default:
+                copy(reader, writer);
+        }
+    }
+
+    /**
+     * Copy the next value, with everything below it.
+     */
+    private static void copy(JsonReader reader, JsonWriter writer) throws IOException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copy(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copy(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                // as-is, without going through double or long.
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IOException("Unexpected " + token + " at " + reader.getPath());
+        }
+    }
+
+    /**
+     * A member name in one or more of the selected paths.
+     */
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+
+        /**
+         * Whether a path ends here, i.e. this member is copied as a whole.
+         */
+        private boolean selected;
+    }
+}
@@ -0,0 +1,137 @@
+package de.zwb3.apiproxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free, log-linear latency histogram over a sliding time window.
+ * <p>
+ * Recorded values are sorted into buckets with four sub-buckets per power of two (so every bucket is at most
+ * 25% wide), which is plenty of precision for deriving hedge delays from it. The histogram keeps two windows,
+ * the current one and the previous one. Percentiles are computed over both, so that they always reflect
+ * between one and two windows worth of recent samples and adapt when the upstream latency changes.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 40 powers of two in microseconds are far beyond any latency we could ever observe.
+     */
+    private static final int BUCKET_COUNT = 40 * SUB_BUCKETS;
+
+    /**
+     * Length of one window in nanoseconds.
+     */
+    private final long windowNanos;
+
+    /**
+     * {@link System#nanoTime()} at the start of the current window.
+     */
+    private final AtomicLong windowStart;
+
+    private volatile AtomicLongArray current = new AtomicLongArray(BUCKET_COUNT);
+
+    private volatile AtomicLongArray previous = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * @param window   Length of one window. Percentiles reflect the samples from the last one to two windows.
+     * @param unit     Unit of {@code window}.
+     */
+    public LatencyHistogram(long window, TimeUnit unit) {
+        this.windowNanos = unit.toNanos(window);
+        this.windowStart = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Record a single latency sample.
+     *
+     * @param nanos The observed latency, in nanoseconds.
+     */
+    public void record(long nanos) {
+        rotateIfNeeded();
+        current.incrementAndGet(bucketIndex(TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    /**
+     * @return The number of samples in the current and the previous window.
+     */
+    public long count() {
+        rotateIfNeeded();
+        AtomicLongArray current = this.current;
+        AtomicLongArray previous = this.previous;
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += current.get(i) + previous.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the approximate value at the given percentile.
+     *
+     * @param percentile Percentile to query, e.g. {@code 95.0}.
+     * @return The upper bound of the bucket containing the given percentile in microseconds,
+     * or {@code 0} if no samples were recorded in the last two windows.
+     */
+    public long percentileMicros(double percentile) {
+        rotateIfNeeded();
+        AtomicLongArray current = this.current;
+        AtomicLongArray previous = this.previous;
+
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = current.get(i) + previous.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(total * (percentile / 100d)));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += counts[i];
+            if (cumulative >= target) {
+                return bucketUpperBound(i);
+            }
+        }
+        return bucketUpperBound(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Start a new window if the current one has expired. Samples recorded concurrently to the rotation
+     * may end up in the previous window, which is acceptable for our purposes.
+     */
+    private void rotateIfNeeded() {
+        long start = windowStart.get();
+        long now = System.nanoTime();
+        if (now - start >= windowNanos && windowStart.compareAndSet(start, now)) {
+            // if more than two windows passed, the current window is outdated too.
+            previous = now - start >= 2 * windowNanos ? new AtomicLongArray(BUCKET_COUNT) : current;
+            current = new AtomicLongArray(BUCKET_COUNT);
+        }
+    }
+
+    static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) Math.max(micros, 0);
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        int index = (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,152 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import net.jcip.annotations.ThreadSafe;
+import org.jetbrains.annotations.Nullable;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rejects proxy requests right away with 503 once the upstream is saturated, instead of queueing them until
+ * they time out. How many requests may be in flight is decided by an {@link AdaptiveLimiter}, so requests that
+ * are admitted keep seeing the latency of an upstream that is not overloaded.
+ * <p>
+ * Requests of configured client IDs or routes get a higher or lower {@link AdaptiveLimiter.Priority priority}:
+ * low priority requests are shed first, high priority requests last.
+ */
+@ThreadSafe
+public class LoadShedder {
+
+    private final AdaptiveLimiter limiter;
+
+    private final ImmutableSet<String> highPriorityClientIds;
+
+    private final ImmutableSet<String> lowPriorityClientIds;
+
+    /**
+     * In the format of {@link ApiRoute#toString()}, e.g. {@code GET /kraken/users/:user/follows/channels}.
+     */
+    private final ImmutableSet<String> lowPriorityRoutes;
+
+    private final String retryAfterSeconds;
+
+    /**
+     * Shared by all rejected requests, it has no stack trace.
+     */
+    private final OverloadedException rejection;
+
+    private final LongAdder rejectedCount = new LongAdder();
+
+    /**
+     * @param limiter               The limiter that decides how many requests may be in flight.
+     * @param highPriorityClientIds Client IDs whose requests are shed last.
+     * @param lowPriorityClientIds  Client IDs whose requests are shed first.
+     * @param lowPriorityRoutes     Routes whose requests are shed first, e.g.
+     *                              {@code GET /kraken/users/:user/follows/channels}.
+     * @param retryAfterSeconds     Sent as {@code Retry-After} with rejected requests.
+     */
+    public LoadShedder(AdaptiveLimiter limiter, Iterable<String> highPriorityClientIds,
+                       Iterable<String> lowPriorityClientIds, Iterable<String> lowPriorityRoutes,
+                       int retryAfterSeconds) {
+        this.limiter = limiter;
+        this.highPriorityClientIds = ImmutableSet.copyOf(highPriorityClientIds);
+        this.lowPriorityClientIds = ImmutableSet.copyOf(lowPriorityClientIds);
+        this.lowPriorityRoutes = ImmutableSet.copyOf(lowPriorityRoutes);
+        this.retryAfterSeconds = Integer.toString(retryAfterSeconds);
+        this.rejection = new OverloadedException("The upstream is overloaded, retry after " + retryAfterSeconds +
+                " second(s)");
+    }
+
+    /**
+     * @param list A comma-separated list, as configured.
+     * @return The individual, trimmed entries.
+     */
+    public static Iterable<String> parse(String list) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().split(list);
+    }
+
+    /**
+     * @param request The request that was sent to this application.
+     * @param route   The route of the request, if it matched one.
+     * @return The priority of the given request: the client ID decides first, then the route.
+     */
+    public AdaptiveLimiter.Priority priorityOf(HttpServletRequest request, @Nullable ApiRoute route) {
+        String clientId = clientIdOf(request);
+        if (clientId != null) {
+            if (highPriorityClientIds.contains(clientId)) {
+                return AdaptiveLimiter.Priority.HIGH;
+            }
+            if (lowPriorityClientIds.contains(clientId)) {
+                return AdaptiveLimiter.Priority.LOW;
+            }
+        }
+        if (route != null && lowPriorityRoutes.contains(route.toString())) {
+            return AdaptiveLimiter.Priority.LOW;
+        }
+        return AdaptiveLimiter.Priority.NORMAL;
+    }
+
+    /**
+     * @return The client ID from the {@code Client-ID} header, or the {@code client_id} query parameter.
+     */
+    @Nullable
+    static String clientIdOf(HttpServletRequest request) {
+        String clientId = request.getHeader("Client-ID");
+        // not getParameter(), that would consume form bodies which must be streamed to the upstream.
+        return clientId != null ? clientId : ProxyRequests.getQueryParameter(request.getQueryString(), "client_id");
+    }
+
+    /**
+     * @param priority The priority of the request.
+     * @return true if the request may go ahead, and {@link #release(String, long, boolean)} must be called once it
+     * completed, false if it must be rejected.
+     */
+    public boolean tryAcquire(AdaptiveLimiter.Priority priority) {
+        if (limiter.tryAcquire(priority)) {
+            return true;
+        }
+        rejectedCount.increment();
+        return false;
+    }
+
+    /**
+     * @param routeKey      The route of the request, see {@link UpstreamClient#routeKey}.
+     * @param upstreamNanos The time until the upstream responded, or -1 if it never did.
+     * @param dropped       Whether the upstream request failed, e.g. timed out.
+     */
+    public void release(String routeKey, long upstreamNanos, boolean dropped) {
+        if (upstreamNanos < 0 && !dropped) {
+            // e.g. an unknown username, the upstream was never asked.
+            limiter.release();
+        } else {
+            limiter.release(routeKey, upstreamNanos, dropped);
+        }
+    }
+
+    /**
+     * @return The value of the {@code Retry-After} header of rejected requests.
+     */
+    public String getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * @return The exception to write the error response of rejected requests for.
+     */
+    public OverloadedException getRejection() {
+        return rejection;
+    }
+
+    /**
+     * @return The number of requests rejected so far.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+}
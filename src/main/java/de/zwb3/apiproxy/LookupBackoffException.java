@@ -0,0 +1,33 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class LookupBackoffException extends RuntimeException {
+    static final long serialVersionUID = -6108925472133706331L;
+
+    public LookupBackoffException() {
+        super();
+    }
+
+    public LookupBackoffException(String message) {
+        super(message);
+    }
+
+    public LookupBackoffException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public LookupBackoffException(Throwable cause) {
+        super(cause);
+    }
+
+    /**
+     * Thrown for every lookup that is backed off, the stack trace would only add to the load.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
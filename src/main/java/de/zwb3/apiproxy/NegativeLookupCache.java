@@ -0,0 +1,67 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers login names that could not be found on Twitch for a short time.
+ * <p>
+ * This is kept separate from the main username cache so junk names don't crowd real entries out of it,
+ * and so they expire much sooner (a name might get registered at any time).
+ */
+@Component
+public class NegativeLookupCache {
+
+    private static final Logger log = LoggerFactory.getLogger(NegativeLookupCache.class);
+
+    /**
+     * Recently not found names. Only the keys are relevant.
+     */
+    private final Cache<String, Boolean> names;
+
+    /**
+     * @param ttlSeconds  How long a name is remembered as not found.
+     * @param maximumSize Maximum number of not found names remembered.
+     */
+    @Autowired
+    public NegativeLookupCache(@Value("${negativeCache.ttlSeconds:300}") long ttlSeconds,
+                               @Value("${negativeCache.maximumSize:10000}") int maximumSize) {
+        this.names = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+
+        log.info("Initialized with ttlSeconds={}, maximumSize={}", ttlSeconds, maximumSize);
+    }
+
+    /**
+     * Remember that the given login name could not be found.
+     *
+     * @param loginName The (normalized) login name.
+     */
+    public void put(String loginName) {
+        names.put(loginName, Boolean.TRUE);
+    }
+
+    /**
+     * @param loginName The (normalized) login name.
+     * @return true if the name was recently found not to exist.
+     */
+    public boolean contains(String loginName) {
+        return names.getIfPresent(loginName) != null;
+    }
+
+    /**
+     * @return The approximate amount of names remembered.
+     */
+    public long size() {
+        return names.size();
+    }
+}
@@ -23,5 +23,12 @@ public class NoSuchUserException extends Exception {
         super(cause);
     }
 
-
+    /**
+     * Thrown for every request for an unknown or invalid username (e.g. bots polling deleted channels), so
+     * capturing a stack trace would make these requests much more expensive, and it would never be looked at.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
 }
@@ -0,0 +1,33 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class OverloadedException extends RuntimeException {
+    static final long serialVersionUID = 4409718330862174537L;
+
+    public OverloadedException() {
+        super();
+    }
+
+    public OverloadedException(String message) {
+        super(message);
+    }
+
+    public OverloadedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public OverloadedException(Throwable cause) {
+        super(cause);
+    }
+
+    /**
+     * Thrown for every request that is shed, the stack trace would only add to the load.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,410 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import net.jcip.annotations.ThreadSafe;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Prefetches the next page of {@link ApiRoute#isPageable() pageable} routes while a client walks through a list
+ * page by page, e.g. {@code GET /kraken/channels/:channel/follows?offset=100&limit=100}, so that the next request
+ * of the client is served without a round trip to the upstream.
+ * <p>
+ * Once a client asked for a page after the first one (with an {@code offset} or a {@code cursor}), the next page
+ * (at {@code offset + limit}, or at the {@code _cursor} of the response) is requested in the background and kept
+ * for that client for a short time. Only one page ahead is fetched, and only in response to a request of the
+ * client, so prefetching stops when the client does. Nothing is prefetched after the last page, while the
+ * upstream reports fewer than {@code prefetch.minRateLimitRemaining} remaining requests, or while the
+ * {@link LoadShedder} has no capacity for {@link AdaptiveLimiter.Priority#LOW low priority} requests.
+ */
+@ThreadSafe
+public class PagePrefetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(PagePrefetcher.class);
+
+    static final String RATELIMIT_REMAINING_HEADER = "Ratelimit-Remaining";
+
+    /**
+     * All rate limit headers of the upstream start with this, in lower case.
+     */
+    private static final String RATELIMIT_HEADER_PREFIX = "ratelimit-";
+
+    /**
+     * The page size of the API if a request has no {@code limit}.
+     */
+    static final int DEFAULT_LIMIT = 25;
+
+    private final UpstreamClient upstreamClient;
+
+    @Nullable
+    private final LoadShedder loadShedder;
+
+    /**
+     * Prefetched pages, by {@link #bufferKey(String, URI) client and URI}. A page is completed with {@code null}
+     * if the upstream did not respond with 200.
+     */
+    private final Cache<String, CompletableFuture<Page>> buffer;
+
+    private final ThreadPoolExecutor prefetchExecutor;
+
+    private final long maxWaitMillis;
+
+    private final int minRateLimitRemaining;
+
+    private final LongAdder prefetchCount = new LongAdder();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    /**
+     * @param upstreamClient        Sends the prefetch requests.
+     * @param loadShedder           Prefetch requests take a low priority slot from it, if load shedding is enabled.
+     * @param maxConcurrent         Maximum number of prefetch requests in flight, more are skipped.
+     * @param maxBuffered           Maximum number of prefetched pages kept.
+     * @param ttlMillis             Prefetched pages are dropped if they were not requested after this long.
+     * @param maxWaitMillis         How long a request waits for a prefetch of its page that is still in flight,
+     *                              before it is sent to the upstream itself.
+     * @param minRateLimitRemaining Nothing is prefetched once the upstream reports fewer remaining requests
+     *                              than this in the {@code Ratelimit-Remaining} header.
+     */
+    public PagePrefetcher(UpstreamClient upstreamClient, @Nullable LoadShedder loadShedder, int maxConcurrent,
+                          int maxBuffered, long ttlMillis, long maxWaitMillis, int minRateLimitRemaining) {
+        this.upstreamClient = upstreamClient;
+        this.loadShedder = loadShedder;
+        this.buffer = CacheBuilder.newBuilder()
+                .maximumSize(maxBuffered)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        // no queue: if all threads are busy, the prefetch is skipped.
+        this.prefetchExecutor = new ThreadPoolExecutor(0, maxConcurrent, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new ThreadFactoryBuilder()
+                .setNameFormat("prefetch-%d")
+                .setDaemon(true)
+                .build());
+        this.maxWaitMillis = maxWaitMillis;
+        this.minRateLimitRemaining = minRateLimitRemaining;
+    }
+
+    /**
+     * A buffered response. Only 200 responses are buffered.
+     */
+    public static class Page {
+        private final Header[] headers;
+        private final byte[] body;
+
+        public Page(Header[] headers, byte[] body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @return The headers of the upstream response.
+         */
+        public Header[] getHeaders() {
+            return headers;
+        }
+
+        /**
+         * @return The headers to send when the page is served from the buffer: all headers of the upstream
+         * response except {@code Date} and the {@code Ratelimit-*} headers, which were true when the page was
+         * prefetched, not when it is served.
+         */
+        public Header[] getReplayedHeaders() {
+            List<Header> replayed = new ArrayList<>(headers.length);
+            for (Header header : headers) {
+                String name = header.getName().toLowerCase(Locale.ROOT);
+                if (!name.equals("date") && !name.startsWith(RATELIMIT_HEADER_PREFIX)) {
+                    replayed.add(header);
+                }
+            }
+            return replayed.toArray(new Header[0]);
+        }
+
+        /**
+         * @return The body of the upstream response.
+         */
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Prefetched pages are only ever served to requests with the same {@code Client-ID} and {@code Authorization}
+     * headers as the request they were prefetched for.
+     *
+     * @param clientId      The {@code Client-ID} header, if any.
+     * @param authorization The {@code Authorization} header, if any.
+     * @return The key to buffer pages of the client under.
+     */
+    public static String clientKey(@Nullable String clientId, @Nullable String authorization) {
+        return StringUtils.defaultString(clientId) + '\n' + StringUtils.defaultString(authorization);
+    }
+
+    /**
+     * @param clientKey See {@link #clientKey(String, String)}.
+     * @param proxyUri  The relative upstream URI.
+     * @return The key of the page in the buffer. The order of the query parameters does not matter.
+     */
+    static String bufferKey(String clientKey, URI proxyUri) {
+        List<NameValuePair> parameters = new ArrayList<>(
+                URLEncodedUtils.parse(proxyUri, StandardCharsets.UTF_8));
+        parameters.sort(Comparator.comparing(NameValuePair::getName)
+                .thenComparing(NameValuePair::getValue, Comparator.nullsFirst(Comparator.naturalOrder())));
+        return clientKey + '\n' + proxyUri.getRawPath() + '?' + URLEncodedUtils.format(parameters,
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param proxyUri The relative upstream URI of a request to a pageable route.
+     * @return true if the request is for a page after the first one, i.e. the client is walking through a list.
+     */
+    public static boolean isContinuation(URI proxyUri) {
+        for (NameValuePair parameter : URLEncodedUtils.parse(proxyUri, StandardCharsets.UTF_8)) {
+            if (parameter.getName().equals("cursor") && StringUtils.isNotEmpty(parameter.getValue())) {
+                return true;
+            }
+            if (parameter.getName().equals("offset") && NumberUtils.toInt(parameter.getValue()) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the prefetched page for the given request out of the buffer, waiting for it if the prefetch is still
+     * in flight.
+     *
+     * @param clientKey See {@link #clientKey(String, String)}.
+     * @param proxyUri  The relative upstream URI of the request.
+     * @return The page, if it was prefetched successfully.
+     */
+    public Optional<Page> take(String clientKey, URI proxyUri) {
+        CompletableFuture<Page> future = buffer.asMap().remove(bufferKey(clientKey, proxyUri));
+        if (future == null) {
+            return Optional.empty();
+        }
+        try {
+            Page page = future.get(maxWaitMillis, TimeUnit.MILLISECONDS);
+            if (page != null) {
+                hitCount.increment();
+            }
+            return Optional.ofNullable(page);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } catch (ExecutionException | TimeoutException e) {
+            // the request is sent to the upstream as usual.
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Start prefetching the page after the given one in the background, unless the given page is the last one,
+     * the next page is already buffered, or the rate limit or load shedding budget is used up.
+     *
+     * @param clientKey   See {@link #clientKey(String, String)}.
+     * @param proxyUri    The relative upstream URI of the given page.
+     * @param routeKey    The key to track latencies and errors of the prefetch request under.
+     * @param page        The page that was just received, from the upstream or from the buffer.
+     * @param copyHeaders Copies the forwarded headers of the received request to the prefetch request. It is
+     *                    called on the calling thread, before this method returns.
+     */
+    public void prefetchNext(String clientKey, URI proxyUri, String routeKey, Page page,
+                             Consumer<RequestBuilder> copyHeaders) {
+        if (rateLimitRemaining(page) < minRateLimitRemaining) {
+            return;
+        }
+        URI nextUri = nextPage(proxyUri, page.body);
+        if (nextUri == null) {
+            return;
+        }
+
+        String key = bufferKey(clientKey, nextUri);
+        CompletableFuture<Page> future = new CompletableFuture<>();
+        if (buffer.asMap().putIfAbsent(key, future) != null) {
+            return;
+        }
+        RequestBuilder request = upstreamClient.newRequest("GET", nextUri);
+        copyHeaders.accept(request);
+        try {
+            prefetchExecutor.execute(() -> fetch(routeKey, request, future));
+        } catch (RejectedExecutionException e) {
+            buffer.asMap().remove(key, future);
+        }
+    }
+
+    private void fetch(String routeKey, RequestBuilder request, CompletableFuture<Page> future) {
+        if (loadShedder != null && !loadShedder.getLimiter().tryAcquire(AdaptiveLimiter.Priority.LOW)) {
+            future.complete(null);
+            return;
+        }
+        prefetchCount.increment();
+        long start = System.nanoTime();
+        long upstreamNanos = -1;
+        boolean dropped = false;
+        try (CloseableHttpResponse response = upstreamClient.execute(routeKey, request)) {
+            upstreamNanos = System.nanoTime() - start;
+            HttpEntity entity = response.getEntity();
+            if (response.getStatusLine().getStatusCode() != 200) {
+                EntityUtils.consume(entity);
+                future.complete(null);
+                return;
+            }
+            byte[] body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+            future.complete(new Page(response.getAllHeaders(), body));
+        } catch (IOException e) {
+            log.debug("Failed to prefetch {}", request.getUri(), e);
+            dropped = upstreamNanos < 0;
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            log.debug("Failed to prefetch {}", request.getUri(), e);
+            future.completeExceptionally(e);
+        } finally {
+            if (loadShedder != null) {
+                loadShedder.release(routeKey, upstreamNanos, dropped);
+            }
+        }
+    }
+
+    /**
+     * @return The {@code Ratelimit-Remaining} header of the given page, or {@link Integer#MAX_VALUE} if it has
+     * none.
+     */
+    private static int rateLimitRemaining(Page page) {
+        for (Header header : page.headers) {
+            if (header.getName().equalsIgnoreCase(RATELIMIT_REMAINING_HEADER)) {
+                return NumberUtils.toInt(header.getValue().trim(), Integer.MAX_VALUE);
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param proxyUri The relative upstream URI of a page.
+     * @param body     The body of that page.
+     * @return The URI of the next page: with the {@code _cursor} of the body if the request had a {@code cursor},
+     * otherwise at {@code offset + limit}. {@code null} if the given page is the last one.
+     */
+    @Nullable
+    static URI nextPage(URI proxyUri, byte[] body) {
+        JsonObject json;
+        try {
+            JsonElement element = new JsonParser().parse(
+                    new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+            if (!element.isJsonObject()) {
+                return null;
+            }
+            json = element.getAsJsonObject();
+        } catch (JsonParseException e) {
+            return null;
+        }
+
+        URIBuilder builder = new URIBuilder(proxyUri);
+        int offset = 0;
+        int limit = DEFAULT_LIMIT;
+        boolean cursor = false;
+        for (NameValuePair parameter : builder.getQueryParams()) {
+            if (parameter.getName().equals("offset")) {
+                offset = NumberUtils.toInt(parameter.getValue());
+            } else if (parameter.getName().equals("limit")) {
+                limit = NumberUtils.toInt(parameter.getValue(), DEFAULT_LIMIT);
+            } else if (parameter.getName().equals("cursor")) {
+                cursor = true;
+            }
+        }
+
+        // a short page is the last one.
+        int items = itemCount(json);
+        if (items <= 0 || items < limit) {
+            return null;
+        }
+
+        if (cursor) {
+            JsonElement nextCursor = json.get("_cursor");
+            if (nextCursor == null || !nextCursor.isJsonPrimitive() || nextCursor.getAsString().isEmpty()) {
+                return null;
+            }
+            builder.setParameter("cursor", nextCursor.getAsString());
+        } else {
+            JsonElement total = json.get("_total");
+            if (total != null && total.isJsonPrimitive() && total.getAsJsonPrimitive().isNumber() &&
+                    offset + limit >= total.getAsLong()) {
+                return null;
+            }
+            builder.setParameter("offset", Integer.toString(offset + limit));
+        }
+        try {
+            return builder.build();
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The size of the first array in the given object, e.g. {@code follows}, or -1 if it has none.
+     */
+    private static int itemCount(JsonObject json) {
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            if (entry.getValue().isJsonArray()) {
+                return entry.getValue().getAsJsonArray().size();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of prefetch requests sent so far.
+     */
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+
+    /**
+     * @return The number of requests served from prefetched pages so far.
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public void shutdown() {
+        prefetchExecutor.shutdownNow();
+    }
+}
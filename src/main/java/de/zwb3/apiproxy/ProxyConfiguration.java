@@ -0,0 +1,205 @@
+package de.zwb3.apiproxy;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Provides the services shared between the proxy endpoint and the other {@code /apiproxy} endpoints.
+ */
+@Configuration
+public class ProxyConfiguration {
+
+    private static final Logger log = LoggerFactory.getLogger(ProxyConfiguration.class);
+
+    /**
+     * Request configuration used for all upstream requests, unless overridden per request.
+     */
+    @Bean
+    public RequestConfig upstreamRequestConfig(@Value("${upstream.socketTimeoutMillis:30000}") int socketTimeoutMillis) {
+        return RequestConfig.custom()
+                .setSocketTimeout(socketTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * Shared between all request threads. Hedged attempts are executed on threads of the {@link UpstreamExecutor},
+     * so a pooled client allows them to reuse connections.
+     */
+    @Bean
+    public CloseableHttpClient upstreamHttpClient(@Value("${upstream.maxConnections:200}") int maxConnections,
+                                                  RequestConfig upstreamRequestConfig) {
+        return HttpClients.custom()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultRequestConfig(upstreamRequestConfig)
+                .build();
+    }
+
+    /**
+     * The upstreams all requests are sent to. {@code upstreamUrl} may be a comma-separated list.
+     */
+    @Bean(destroyMethod = "close")
+    public UpstreamPool upstreamPool(@Value("${upstreamUrl:https://api.twitch.tv}") String upstreamUrl,
+                                     @Value("${upstream.decayMillis:10000}") long decayMillis,
+                                     @Value("${upstream.ejection.consecutiveFailures:5}") int ejectionConsecutiveFailures,
+                                     @Value("${upstream.ejection.baseMillis:30000}") long ejectionBaseMillis,
+                                     @Value("${upstream.healthCheck.enabled:true}") boolean healthCheckEnabled,
+                                     @Value("${upstream.healthCheck.path:/kraken}") String healthCheckPath,
+                                     @Value("${upstream.healthCheck.intervalMillis:5000}") long healthCheckIntervalMillis,
+                                     @Value("${upstream.healthCheck.timeoutMillis:2000}") int healthCheckTimeoutMillis,
+                                     @Value("${upstream.healthCheck.threshold:2}") int healthCheckThreshold,
+                                     CloseableHttpClient upstreamHttpClient) {
+        List<UpstreamPool.Upstream> upstreams = UpstreamPool.parse(upstreamUrl, decayMillis);
+        log.info("Initialized with {} upstream(s): {}", upstreams.size(), upstreams);
+
+        UpstreamPool upstreamPool = new UpstreamPool(upstreams, ejectionConsecutiveFailures, ejectionBaseMillis);
+        if (healthCheckEnabled) {
+            upstreamPool.startHealthChecks(upstreamHttpClient, healthCheckPath, healthCheckIntervalMillis,
+                    healthCheckTimeoutMillis, healthCheckThreshold);
+        }
+        return upstreamPool;
+    }
+
+    /**
+     * The client IDs the proxy makes its own requests with. {@code clientId} may be a comma-separated list.
+     */
+    @Bean
+    public ClientIdPool clientIdPool(@Value("${clientId}") String clientId,
+                                     @Value("${clientIdPool.requestsPerMinute:60}") double requestsPerMinute,
+                                     @Value("${clientIdPool.burst:30}") int burst,
+                                     @Value("${clientIdPool.maxWaitMillis:1000}") long maxWaitMillis,
+                                     @Value("${clientIdPool.quarantineMinutes:60}") long quarantineMinutes) {
+        List<String> clientIds = ClientIdPool.parse(clientId);
+        log.info("Initialized with {} client ID(s): {}", clientIds.size(), clientIds);
+
+        return new ClientIdPool(clientIds, requestsPerMinute, burst, maxWaitMillis, quarantineMinutes);
+    }
+
+    /**
+     * Cluster mode, only if {@code cluster.nodes} is set. Every node must be configured with the same list of
+     * nodes and the same {@code cluster.secret}, and its own URL from that list as {@code cluster.self}.
+     * <p>
+     * {@code cluster.timeoutMillis} has to cover a username lookup by the owner, including the time it may wait
+     * for a client ID ({@code clientIdPool.maxWaitMillis}). Otherwise names are looked up by the owner and the
+     * node that gave up on it.
+     */
+    @Bean
+    @ConditionalOnProperty("cluster.nodes")
+    public Cluster cluster(@Value("${cluster.nodes}") String nodes,
+                           @Value("${cluster.self}") String self,
+                           @Value("${cluster.secret}") String secret,
+                           @Value("${cluster.virtualNodes:160}") int virtualNodes,
+                           @Value("${cluster.timeoutMillis:5000}") int timeoutMillis,
+                           @Value("${cluster.nearCache.maximumSize:10000}") long nearCacheMaximumSize,
+                           @Value("${cluster.nearCache.expireAfterWriteSeconds:60}") long nearCacheExpireSeconds,
+                           @Value("${clientIdPool.maxWaitMillis:1000}") long clientIdMaxWaitMillis,
+                           CloseableHttpClient upstreamHttpClient) {
+        List<String> nodeList = Cluster.parse(nodes);
+        log.info("Initialized cluster mode as {} with {} node(s): {}", self, nodeList.size(), nodeList);
+        if (timeoutMillis <= clientIdMaxWaitMillis) {
+            log.warn("cluster.timeoutMillis={} does not cover clientIdPool.maxWaitMillis={}, names may be looked up " +
+                    "by more than one node", timeoutMillis, clientIdMaxWaitMillis);
+        }
+
+        return new Cluster(nodeList, self, secret, virtualNodes, upstreamHttpClient, timeoutMillis,
+                nearCacheMaximumSize, nearCacheExpireSeconds);
+    }
+
+    /**
+     * Recent failures for the status page, and the counts that decide when to back off user ID lookups.
+     */
+    @Bean
+    public FailureTracker failureTracker(@Value("${failureTracker.capacity:64}") int capacity,
+                                         @Value("${failureTracker.windowSeconds:10}") int windowSeconds,
+                                         @Value("${failureTracker.backoffMultiplier:2}") double backoffMultiplier) {
+        log.info("Initialized failure tracking with failureTracker.capacity={}, failureTracker.windowSeconds={}, " +
+                "failureTracker.backoffMultiplier={}", capacity, windowSeconds, backoffMultiplier);
+
+        return new FailureTracker(capacity, windowSeconds, backoffMultiplier);
+    }
+
+    @Bean
+    public UserIdResolver userIdResolver(ClientIdPool clientIdPool,
+                                         UpstreamPool upstreamPool,
+                                         UpstreamExecutor upstreamExecutor,
+                                         NegativeLookupCache negativeLookupCache,
+                                         @Value("${userIdCache.policy:lru}") String cachePolicy,
+                                         @Value("${userIdCache.maximumWeight:524288}") long cacheMaximumWeight,
+                                         Optional<Cluster> cluster,
+                                         FailureTracker failureTracker) {
+        log.info("Initialized with userIdCache.policy={}, userIdCache.maximumWeight={}",
+                cachePolicy, cacheMaximumWeight);
+
+        return new UserIdResolver(clientIdPool, upstreamPool, upstreamExecutor, negativeLookupCache,
+                CachePolicy.fromName(cachePolicy), cacheMaximumWeight, cluster.orElse(null), failureTracker);
+    }
+
+    /**
+     * Load shedding for proxy requests, unless {@code loadShedding.enabled=false}.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "loadShedding.enabled", havingValue = "true", matchIfMissing = true)
+    public LoadShedder loadShedder(@Value("${loadShedding.initialLimit:50}") int initialLimit,
+                                   @Value("${loadShedding.minLimit:10}") int minLimit,
+                                   @Value("${loadShedding.maxLimit:500}") int maxLimit,
+                                   @Value("${loadShedding.highPriorityClientIds:}") String highPriorityClientIds,
+                                   @Value("${loadShedding.lowPriorityClientIds:}") String lowPriorityClientIds,
+                                   @Value("${loadShedding.lowPriorityRoutes:}") String lowPriorityRoutes,
+                                   @Value("${loadShedding.retryAfterSeconds:1}") int retryAfterSeconds) {
+        log.info("Initialized load shedding with loadShedding.initialLimit={}, loadShedding.minLimit={}, " +
+                "loadShedding.maxLimit={}", initialLimit, minLimit, maxLimit);
+
+        return new LoadShedder(new AdaptiveLimiter(initialLimit, minLimit, maxLimit),
+                LoadShedder.parse(highPriorityClientIds), LoadShedder.parse(lowPriorityClientIds),
+                LoadShedder.parse(lowPriorityRoutes), retryAfterSeconds);
+    }
+
+    /**
+     * Prefetching of the next page of pageable routes, unless {@code prefetch.enabled=false}.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty(name = "prefetch.enabled", havingValue = "true", matchIfMissing = true)
+    public PagePrefetcher pagePrefetcher(UpstreamClient upstreamClient,
+                                         Optional<LoadShedder> loadShedder,
+                                         @Value("${prefetch.maxConcurrent:16}") int maxConcurrent,
+                                         @Value("${prefetch.maxBuffered:1000}") int maxBuffered,
+                                         @Value("${prefetch.ttlMillis:10000}") long ttlMillis,
+                                         @Value("${prefetch.maxWaitMillis:5000}") long maxWaitMillis,
+                                         @Value("${prefetch.minRateLimitRemaining:100}") int minRateLimitRemaining) {
+        log.info("Initialized page prefetching with prefetch.maxConcurrent={}, prefetch.ttlMillis={}",
+                maxConcurrent, ttlMillis);
+
+        return new PagePrefetcher(upstreamClient, loadShedder.orElse(null), maxConcurrent, maxBuffered, ttlMillis,
+                maxWaitMillis, minRateLimitRemaining);
+    }
+
+    /**
+     * Serves {@code /kraken} requests without Spring MVC, right after the {@link AccessLogFilter}.
+     * With {@code proxy.leanDispatch=false}, they are served by the {@link ApiResponseController} instead.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "proxy.leanDispatch", havingValue = "true", matchIfMissing = true)
+    public FilterRegistrationBean<ProxyFilter> proxyFilter(ProxyHandler proxyHandler) {
+        FilterRegistrationBean<ProxyFilter> registration = new FilterRegistrationBean<>(new ProxyFilter(proxyHandler));
+        registration.addUrlPatterns("/kraken/*");
+        registration.setOrder(AccessLogFilter.ORDER + 1);
+        return registration;
+    }
+
+    @Bean
+    public RouteMapper routeMapper(UserIdResolver userIdResolver) throws IOException {
+        return new RouteMapper(ApiRoutes.getApiRoutes(), userIdResolver);
+    }
+}
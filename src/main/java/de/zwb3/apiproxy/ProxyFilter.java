@@ -0,0 +1,31 @@
+package de.zwb3.apiproxy;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves {@code /kraken} requests directly, without going through Spring MVC: no handler mapping, no argument
+ * resolution, and errors are written by {@link ProxyHandler#handle} instead of being forwarded to {@code /error}.
+ * <p>
+ * Registered ahead of all other filters except the {@link AccessLogFilter} by the {@link ProxyConfiguration}.
+ * Requests to all other paths (e.g. {@code /apiproxy/status}) are never seen by this filter.
+ */
+public class ProxyFilter implements Filter {
+
+    private final ProxyHandler proxyHandler;
+
+    public ProxyFilter(ProxyHandler proxyHandler) {
+        this.proxyHandler = proxyHandler;
+    }
+
+    @Override
+    public void doFilter(ServletRequest servletRequest, ServletResponse servletResponse, FilterChain chain)
+            throws IOException {
+        proxyHandler.handle((HttpServletRequest) servletRequest, (HttpServletResponse) servletResponse);
+    }
+}
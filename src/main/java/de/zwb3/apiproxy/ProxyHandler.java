@@ -0,0 +1,373 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.io.CountingOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Proxies API v3 requests to the upstream API v5. Used by the {@link ProxyFilter} for {@code /kraken} requests,
+ * and by the {@link ApiResponseController} for all other paths.
+ */
+@Component
+public class ProxyHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ProxyHandler.class);
+
+    private final RouteMapper mapper;
+
+    /**
+     * Sends the proxy requests, hedging slow idempotent ones and failing fast on upstream outages.
+     */
+    private final UpstreamClient upstreamClient;
+
+    /**
+     * Rejects requests once the upstream is saturated, if enabled.
+     */
+    @Nullable
+    private final LoadShedder loadShedder;
+
+    /**
+     * Prefetches the next page while clients walk through pageable routes, if enabled.
+     */
+    @Nullable
+    private final PagePrefetcher pagePrefetcher;
+
+    /**
+     * This counter is incremented on every proxied request.
+     */
+    private final AtomicLong requestCounter = new AtomicLong(0);
+
+    @Autowired
+    public ProxyHandler(RouteMapper mapper, UpstreamClient upstreamClient, Optional<LoadShedder> loadShedder,
+                        Optional<PagePrefetcher> pagePrefetcher) {
+        this.mapper = mapper;
+        this.upstreamClient = upstreamClient;
+        this.loadShedder = loadShedder.orElse(null);
+        this.pagePrefetcher = pagePrefetcher.orElse(null);
+    }
+
+    /**
+     * {@link #proxy(HttpServletRequest, HttpServletResponse, ApiRoute) Proxy} the given request, and if that fails
+     * before the response was committed, write the error response right away with {@link ErrorResponses}. Errors
+     * never go through Spring's error dispatch.
+     * <p>
+     * If the {@link LoadShedder} does not admit the request, it is rejected with 503 and {@code Retry-After}
+     * before anything else is done.
+     *
+     * @param request  The request that was sent to this application.
+     * @param response The response to copy the upstream response or write the error to.
+     * @throws IOException If the request failed after the response was committed, e.g. because the client or
+     *                     the upstream went away while the body was being copied.
+     */
+    public void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ApiRoute apiRoute = mapper.findRoute(request.getMethod(), request.getRequestURI()).orElse(null);
+
+        if (loadShedder == null) {
+            proxyOrWriteError(request, response, apiRoute);
+            return;
+        }
+        if (!loadShedder.tryAcquire(loadShedder.priorityOf(request, apiRoute))) {
+            response.setHeader("Retry-After", loadShedder.getRetryAfterSeconds());
+            writeError(request, response, loadShedder.getRejection());
+            return;
+        }
+        boolean dropped = true;
+        try {
+            dropped = !proxyOrWriteError(request, response, apiRoute);
+        } finally {
+            long upstreamNanos = RequestTiming.of(request).getUpstreamNanos();
+            loadShedder.release(UpstreamClient.routeKey(Optional.ofNullable(apiRoute), request.getMethod()),
+                    upstreamNanos, dropped && upstreamNanos < 0);
+        }
+    }
+
+    /**
+     * @return false if the upstream request failed with an I/O error, e.g. a timeout.
+     */
+    private boolean proxyOrWriteError(HttpServletRequest request, HttpServletResponse response,
+                                      @Nullable ApiRoute apiRoute) throws IOException {
+        try {
+            proxy(request, response, apiRoute);
+            return true;
+        } catch (Exception e) {
+            if (response.isCommitted()) {
+                if (e instanceof IOException) {
+                    throw (IOException) e;
+                }
+                throw new IOException(e);
+            }
+            // drop the upstream status and headers, if they were copied already.
+            response.reset();
+            HttpStatus status = writeError(request, response, e);
+            if (status == HttpStatus.INTERNAL_SERVER_ERROR) {
+                log.warn("Failed to proxy {} {}", request.getMethod(), request.getRequestURI(), e);
+            }
+            return !(e instanceof IOException);
+        }
+    }
+
+    /**
+     * Write the error response with {@link ErrorResponses}, and a {@code Server-Timing} header: writing the error
+     * commits the response, so the {@link AccessLogFilter} can no longer add one.
+     */
+    private static HttpStatus writeError(HttpServletRequest request, HttpServletResponse response, Throwable e)
+            throws IOException {
+        response.setHeader(AccessLogFilter.SERVER_TIMING_HEADER,
+                RequestTiming.of(request).toServerTiming(System.nanoTime()));
+        return ErrorResponses.write(response, e);
+    }
+
+    /**
+     * Proxy the given request to the upstream API, translating all usernames in its path, and copy the
+     * upstream response to the given response.
+     * <p>
+     * Requests to {@link ApiRoute#isPageable() pageable} routes are served from the {@link PagePrefetcher} if
+     * their page was prefetched, and make it prefetch the next page. If the request selects fields (see
+     * {@link JsonProjection}), only those are sent back.
+     *
+     * @param request  The request that was sent to this application.
+     * @param response The response to copy the upstream response to.
+     * @param apiRoute The route the request matched, if any.
+     * @throws ExecutionException  If there was an error translating the usernames.
+     * @throws NoSuchUserException If one of the usernames does not exist.
+     * @throws URISyntaxException  If the mapped URI is invalid.
+     * @throws BadFieldsException  If the selected fields are invalid.
+     * @throws IOException         If the upstream request failed, or the response could not be written.
+     */
+    public void proxy(HttpServletRequest request, HttpServletResponse response, @Nullable ApiRoute apiRoute)
+            throws ExecutionException, NoSuchUserException, URISyntaxException, IOException {
+
+        requestCounter.incrementAndGet();
+
+        RequestTiming timing = RequestTiming.of(request);
+
+        // the fields to select are never sent to the upstream. Parsed first, so that bad fields are rejected
+        // before any usernames are looked up.
+        String query = request.getQueryString();
+        String fields = ProxyRequests.getQueryParameter(query, JsonProjection.FIELDS_PARAMETER);
+        if (fields != null) {
+            query = ProxyRequests.removeQueryParameter(query, JsonProjection.FIELDS_PARAMETER);
+        } else {
+            fields = request.getHeader(JsonProjection.FIELDS_HEADER);
+        }
+        JsonProjection projection = fields != null ? JsonProjection.parse(fields) : null;
+
+        long resolveStart = System.nanoTime();
+
+        // mappedPath is for example "/kraken/streams/22484632"
+        String mappedPath = mapper.mapApiPath(apiRoute, request.getRequestURI());
+
+        long upstreamStart = System.nanoTime();
+        timing.resolved(apiRoute, mappedPath, upstreamStart - resolveStart);
+
+        URI proxyUri = upstreamClient.buildUri(mappedPath, query);
+
+        // circuit breakers and latency histograms are kept per route.
+        String routeKey = UpstreamClient.routeKey(Optional.ofNullable(apiRoute), request.getMethod());
+
+        String prefetchClientKey = null;
+        if (pagePrefetcher != null && apiRoute != null && apiRoute.isPageable() &&
+                request.getMethod().equals("GET")) {
+            prefetchClientKey = PagePrefetcher.clientKey(request.getHeader("Client-ID"),
+                    request.getHeader("Authorization"));
+            Optional<PagePrefetcher.Page> page = pagePrefetcher.take(prefetchClientKey, proxyUri);
+            if (page.isPresent()) {
+                pagePrefetcher.prefetchNext(prefetchClientKey, proxyUri, routeKey, page.get(),
+                        builder -> copyForwardedHeaders(request, builder));
+                // the upstream time is not measured, so the LoadShedder does not mistake it for the latency.
+                writeResponse(response, timing, HttpServletResponse.SC_OK, page.get().getReplayedHeaders(),
+                        new ByteArrayInputStream(page.get().getBody()), projection);
+                return;
+            }
+        }
+
+        // request is the received request, proxyUri is the URI to make the proxy request to.
+        try (CloseableHttpResponse proxyResponse = makeProxyRequest(request, proxyUri, routeKey)) {
+            timing.upstreamResponded(System.nanoTime() - upstreamStart);
+
+            int status = proxyResponse.getStatusLine().getStatusCode();
+            HttpEntity responseEntity = proxyResponse.getEntity();
+            if (responseEntity == null) {
+                writeResponse(response, timing, status, proxyResponse.getAllHeaders(), null, projection);
+                return;
+            }
+            if (prefetchClientKey != null && PagePrefetcher.isContinuation(proxyUri) && status == 200) {
+                // pages are small, buffer this one to find the next page in it.
+                PagePrefetcher.Page page = new PagePrefetcher.Page(proxyResponse.getAllHeaders(),
+                        EntityUtils.toByteArray(responseEntity));
+                pagePrefetcher.prefetchNext(prefetchClientKey, proxyUri, routeKey, page,
+                        builder -> copyForwardedHeaders(request, builder));
+                writeResponse(response, timing, status, page.getHeaders(),
+                        new ByteArrayInputStream(page.getBody()), projection);
+                return;
+            }
+            try (InputStream inputStream = responseEntity.getContent()) {
+                writeResponse(response, timing, status, proxyResponse.getAllHeaders(), inputStream, projection);
+            }
+        }
+
+    }
+
+    /**
+     * Copy an upstream response to the given response.
+     * <p>
+     * If the client asked for a {@link JsonProjection projection}, successful JSON bodies are projected while
+     * they are streamed, and sent without {@code Content-Length}. All other bodies are copied as-is.
+     *
+     * @param response   The response to write to.
+     * @param timing     The timing of the request.
+     * @param status     The status of the upstream response.
+     * @param headers    The headers of the upstream response.
+     * @param body       The body of the upstream response, if any.
+     * @param projection The fields the client asked for, if any.
+     * @throws IOException If the body could not be read, projected or written.
+     */
+    private static void writeResponse(HttpServletResponse response, RequestTiming timing, int status,
+                                      Header[] headers, @Nullable InputStream body,
+                                      @Nullable JsonProjection projection) throws IOException {
+        boolean project = body != null && projection != null && status >= 200 && status < 300 && isJson(headers);
+
+        response.setStatus(status);
+        for (Header header : headers) {
+            if (project && header.getName().equalsIgnoreCase("Content-Length")) {
+                continue;
+            }
+            response.addHeader(header.getName(), header.getValue());
+        }
+        // must be added before the body commits the response.
+        response.addHeader(AccessLogFilter.SERVER_TIMING_HEADER, timing.toServerTiming(System.nanoTime()));
+
+        if (body == null) {
+            timing.setBytes(0);
+            return;
+        }
+        try (BufferedInputStream bufferedInputStream = new BufferedInputStream(body);
+             OutputStream outputStream = response.getOutputStream();
+             CountingOutputStream countingOutputStream = new CountingOutputStream(
+                     new BufferedOutputStream(outputStream))) {
+            if (project) {
+                Writer writer = new OutputStreamWriter(countingOutputStream, StandardCharsets.UTF_8);
+                projection.project(new InputStreamReader(bufferedInputStream, StandardCharsets.UTF_8), writer);
+                writer.flush();
+            } else {
+                IOUtils.copyLarge(bufferedInputStream, countingOutputStream);
+            }
+            countingOutputStream.flush();
+            timing.setBytes(countingOutputStream.getCount());
+        }
+    }
+
+    private static boolean isJson(Header[] headers) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase("Content-Type")) {
+                return header.getValue().toLowerCase(Locale.ROOT).contains("json");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make a proxy request similar to the given originalRequest, but to the given proxyUri.
+     * <p>
+     * Requests with idempotent methods without a body are hedged by the {@link UpstreamExecutor}.
+     * Request bodies are streamed to the upstream for all methods.
+     *
+     * @param originalRequest The request that was sent to this application.
+     * @param proxyUri        The URI to proxy to.
+     * @param routeKey        The key to track latencies and errors of this request under.
+     * @return The response of the proxy request.
+     * @throws IOException If an I/O exception occurs.
+     */
+    private CloseableHttpResponse makeProxyRequest(HttpServletRequest originalRequest, URI proxyUri, String routeKey)
+            throws IOException {
+        // The body (if any) is only read once the proxy request is being sent, i.e. after all usernames have
+        // been resolved. Clients that sent "Expect: 100-continue" only start uploading at that point.
+        try (InputStream inputStream = originalRequest.getInputStream()) {
+
+            RequestBuilder proxyRequestBuilder = upstreamClient.newRequest(originalRequest.getMethod(), proxyUri);
+
+            // Copy the request body for all requests that have one (e.g. PUT /kraken/channels/:channel),
+            // streaming it through as-is.
+            boolean hasBody = ProxyRequests.hasBody(originalRequest.getContentLengthLong(),
+                    originalRequest.getHeader("Transfer-Encoding"));
+            if (hasBody) {
+                proxyRequestBuilder
+                        .setEntity(ProxyRequests.createBodyEntity(inputStream, originalRequest.getContentLengthLong()))
+                        .setConfig(upstreamClient.getBodyRequestConfig());
+            }
+
+            // copy input headers to proxy request, except for "Accept" header and others listed in ProxyRequests
+            copyForwardedHeaders(originalRequest, proxyRequestBuilder);
+
+            return upstreamClient.execute(routeKey, proxyRequestBuilder);
+        }
+    }
+
+    /**
+     * Copy all headers of the received request that are forwarded as-is to the given proxy request.
+     *
+     * @param originalRequest The request that was sent to this application.
+     * @param proxyRequest    The proxy request being built.
+     * @see ProxyRequests#isForwardedHeader(String)
+     */
+    static void copyForwardedHeaders(HttpServletRequest originalRequest, RequestBuilder proxyRequest) {
+        Enumeration<String> headerNames = originalRequest.getHeaderNames();
+        while (headerNames.hasMoreElements()) {
+            String headerName = headerNames.nextElement();
+
+            if (!ProxyRequests.isForwardedHeader(headerName)) {
+                continue;
+            }
+
+            Enumeration<String> headerValues = originalRequest.getHeaders(headerName);
+            while (headerValues.hasMoreElements()) {
+                String headerValue = headerValues.nextElement();
+
+                proxyRequest.addHeader(headerName, headerValue);
+            }
+        }
+    }
+
+    /**
+     * @return The load shedder, if load shedding is enabled.
+     */
+    public Optional<LoadShedder> getLoadShedder() {
+        return Optional.ofNullable(loadShedder);
+    }
+
+    /**
+     * @return The page prefetcher, if prefetching is enabled.
+     */
+    public Optional<PagePrefetcher> getPagePrefetcher() {
+        return Optional.ofNullable(pagePrefetcher);
+    }
+
+    /**
+     * @return The number of requests proxied so far.
+     */
+    public long getRequestCount() {
+        return requestCounter.get();
+    }
+}
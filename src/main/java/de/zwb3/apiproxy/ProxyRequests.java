@@ -0,0 +1,135 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.InputStreamEntity;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Rules for building the requests sent to the upstream API from the requests received by the proxy.
+ */
+public class ProxyRequests {
+
+    /**
+     * Lower case names of received headers that are not copied to the proxy request.
+     * <ul>
+     * <li>{@code Accept}: we set our own Accept header for API v5.</li>
+     * <li>{@code Host}: differs for the upstream.</li>
+     * <li>{@code Content-Length}, {@code Transfer-Encoding}: set by the http client from the body entity.</li>
+     * <li>{@code Expect}: the http client does its own {@code 100-continue} handshake with the upstream.</li>
+     * <li>{@code X-Fields}: the fields selected by the client, see {@link JsonProjection}.</li>
+     * </ul>
+     */
+    private static final Set<String> SKIPPED_HEADERS = ImmutableSet.of(
+            "accept", "host", "content-length", "transfer-encoding", "expect", "x-fields");
+
+    private ProxyRequests() {
+    }
+
+    /**
+     * @param headerName Name of a header on the received request.
+     * @return true if the header should be copied to the proxy request as-is.
+     */
+    public static boolean isForwardedHeader(String headerName) {
+        return !SKIPPED_HEADERS.contains(headerName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @param query A raw query string, if any.
+     * @param name  The name of a query parameter.
+     * @return The decoded value of the first parameter with the given name, or {@code null} if there is none.
+     */
+    @Nullable
+    public static String getQueryParameter(@Nullable String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String parameter : Splitter.on('&').split(query)) {
+            String parameterName = StringUtils.substringBefore(parameter, "=");
+            if (decode(parameterName).equals(name)) {
+                return decode(StringUtils.substringAfter(parameter, "="));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove all parameters with the given name from a query string, leaving the others exactly as they were.
+     *
+     * @param query A raw query string, if any.
+     * @param name  The name of a query parameter.
+     * @return The raw query string without the parameter, or {@code null} if no parameters are left.
+     */
+    @Nullable
+    public static String removeQueryParameter(@Nullable String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder(query.length());
+        for (String parameter : Splitter.on('&').split(query)) {
+            if (parameter.isEmpty() || decode(StringUtils.substringBefore(parameter, "=")).equals(name)) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(parameter);
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    private static String decode(String component) {
+        try {
+            return URLDecoder.decode(component, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // not decodable, use it as-is.
+            return component;
+        }
+    }
+
+    /**
+     * Decide whether a received request carries a body, independent of its method.
+     *
+     * @param contentLength    The Content-Length of the received request, or -1 if unknown.
+     * @param transferEncoding The Transfer-Encoding header of the received request, if any.
+     * @return true if the request has a body that needs to be forwarded.
+     */
+    public static boolean hasBody(long contentLength, @Nullable String transferEncoding) {
+        return contentLength > 0 || (contentLength < 0 && transferEncoding != null);
+    }
+
+    /**
+     * Create an entity that streams the given body to the upstream without buffering it.
+     *
+     * @param body          The body of the received request.
+     * @param contentLength The Content-Length of the received request, or -1 if unknown. If known, it is sent
+     *                      to the upstream as-is, otherwise the body is sent using chunked transfer encoding.
+     * @return An entity that can only be sent once.
+     */
+    public static HttpEntity createBodyEntity(InputStream body, long contentLength) {
+        return new InputStreamEntity(body, contentLength);
+    }
+
+    /**
+     * Create the request configuration for requests with a body. These use {@code Expect: 100-continue},
+     * so the body is only uploaded once the upstream has accepted the request headers (e.g. authorization).
+     *
+     * @param defaultConfig The configuration used for requests without a body.
+     * @return The configuration for requests with a body.
+     */
+    public static RequestConfig bodyRequestConfig(RequestConfig defaultConfig) {
+        return RequestConfig.copy(defaultConfig)
+                .setExpectContinueEnabled(true)
+                .build();
+    }
+}
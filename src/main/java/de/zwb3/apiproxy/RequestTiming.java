@@ -0,0 +1,150 @@
+package de.zwb3.apiproxy;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Timing breakdown of a single received request, filled in by the request thread as the request progresses.
+ * <p>
+ * Stored as a request attribute by the {@link AccessLogFilter}, and recorded into the {@link AccessLog}
+ * once the request completed. Not thread-safe, only the request thread may modify it.
+ */
+public class RequestTiming {
+
+    /**
+     * Name of the request attribute the timing of a request is stored under.
+     */
+    static final String ATTRIBUTE = RequestTiming.class.getName();
+
+    private final long startNanos;
+
+    /**
+     * Time spent finding the route and translating usernames, or -1 if not measured.
+     */
+    private long resolveNanos = -1;
+
+    /**
+     * Time until the upstream responded with headers, or -1 if not measured.
+     */
+    private long upstreamNanos = -1;
+
+    /**
+     * Number of response body bytes sent, or -1 if unknown.
+     */
+    private long bytes = -1;
+
+    @Nullable
+    private ApiRoute route;
+
+    @Nullable
+    private String mappedPath;
+
+    public RequestTiming(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * @param request A received request.
+     * @return The timing of the request, or a new instance starting now if the request has none.
+     */
+    public static RequestTiming of(HttpServletRequest request) {
+        Object timing = request.getAttribute(ATTRIBUTE);
+        if (timing instanceof RequestTiming) {
+            return (RequestTiming) timing;
+        }
+        RequestTiming newTiming = new RequestTiming(System.nanoTime());
+        request.setAttribute(ATTRIBUTE, newTiming);
+        return newTiming;
+    }
+
+    /**
+     * Record that the route was found and all usernames in the path were translated.
+     *
+     * @param route      The matched route, if any.
+     * @param mappedPath The API v5 path the request is proxied to.
+     * @param nanos      The time that took.
+     */
+    public void resolved(@Nullable ApiRoute route, String mappedPath, long nanos) {
+        this.route = route;
+        this.mappedPath = mappedPath;
+        this.resolveNanos = nanos;
+    }
+
+    /**
+     * @param nanos Time until the upstream responded with headers.
+     */
+    public void upstreamResponded(long nanos) {
+        this.upstreamNanos = nanos;
+    }
+
+    /**
+     * @param bytes Number of response body bytes sent.
+     */
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getResolveNanos() {
+        return resolveNanos;
+    }
+
+    public long getUpstreamNanos() {
+        return upstreamNanos;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    @Nullable
+    public ApiRoute getRoute() {
+        return route;
+    }
+
+    @Nullable
+    public String getMappedPath() {
+        return mappedPath;
+    }
+
+    /**
+     * @param nowNanos The current {@link System#nanoTime()}.
+     * @return A {@code Server-Timing} header value with the measured durations in milliseconds, e.g.
+     * {@code resolve;dur=0.120, upstream;dur=45.310, total;dur=45.600}
+     */
+    public String toServerTiming(long nowNanos) {
+        StringBuilder builder = new StringBuilder(64);
+        if (resolveNanos >= 0) {
+            appendMillis(builder.append("resolve;dur="), resolveNanos).append(", ");
+        }
+        if (upstreamNanos >= 0) {
+            appendMillis(builder.append("upstream;dur="), upstreamNanos).append(", ");
+        }
+        return appendMillis(builder.append("total;dur="), nowNanos - startNanos).toString();
+    }
+
+    /**
+     * Append the given duration in milliseconds with three decimal places, without going through
+     * floating point formatting.
+     *
+     * @param builder Where to append to.
+     * @param nanos   A non-negative duration in nanoseconds.
+     * @return The given builder.
+     */
+    static StringBuilder appendMillis(StringBuilder builder, long nanos) {
+        long micros = nanos / 1000;
+        long fraction = micros % 1000;
+        builder.append(micros / 1000).append('.');
+        if (fraction < 100) {
+            builder.append('0');
+        }
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        return builder.append(fraction);
+    }
+}
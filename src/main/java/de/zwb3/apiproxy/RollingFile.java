@@ -0,0 +1,100 @@
+package de.zwb3.apiproxy;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A line-based log file that is rolled over once it reaches a maximum size: {@code access.log} is renamed to
+ * {@code access.log.1}, {@code access.log.1} to {@code access.log.2} and so on, and the oldest file is deleted.
+ */
+@NotThreadSafe
+public class RollingFile implements AutoCloseable {
+
+    private final Path path;
+    private final long maxSizeBytes;
+    private final int maxFiles;
+
+    private Writer writer;
+    private long size;
+
+    /**
+     * @param path         The file to write to. Appended to if it exists.
+     * @param maxSizeBytes Roll over once the file is at least this large.
+     * @param maxFiles     How many rolled over files to keep, in addition to the current file.
+     * @throws IOException If the file could not be opened.
+     */
+    public RollingFile(Path path, long maxSizeBytes, int maxFiles) throws IOException {
+        this.path = path;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxFiles = maxFiles;
+        open();
+    }
+
+    private void open() throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        size = Files.exists(path) ? Files.size(path) : 0;
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(path,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    /**
+     * Append a line, rolling over first if the file is full.
+     *
+     * @param line The line, without line separator. Its size is estimated as one byte per character.
+     * @throws IOException If writing or rolling over failed.
+     */
+    public void appendLine(CharSequence line) throws IOException {
+        if (size >= maxSizeBytes) {
+            roll();
+        }
+        writer.append(line).append('\n');
+        size += line.length() + 1;
+    }
+
+    private void roll() throws IOException {
+        writer.close();
+        Files.deleteIfExists(rolledPath(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path rolled = rolledPath(i);
+            if (Files.exists(rolled)) {
+                Files.move(rolled, rolledPath(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(path, rolledPath(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(path);
+        }
+        open();
+    }
+
+    private Path rolledPath(int index) {
+        return path.resolveSibling(path.getFileName() + "." + index);
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    @Override
+    public String toString() {
+        return path.toAbsolutePath().toString();
+    }
+}
@@ -2,7 +2,9 @@ package de.zwb3.apiproxy;
 
 import com.google.common.collect.ImmutableList;
 import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
@@ -46,17 +48,29 @@ public class RouteMapper {
      *                                  username is unknown.
      */
     public String mapApiPath(String httpMethod, String inputPath) throws ExecutionException, NoSuchUserException {
-        // split the given path at all forward slashes.
-        // Then try to find the origin route that this is requesting.
-        String[] inputSegments = StringUtils.split(inputPath, '/');
+        return mapApiPath(findRoute(httpMethod, inputPath).orElse(null), inputPath);
+    }
 
-        Optional<ApiRoute> foundApiRoute = tryMatchRoute(httpMethod, inputSegments);
+    /**
+     * transform the given request path into the correct API v5 path, using an already matched route.
+     *
+     * @param apiRoute  The route that was matched for the request path using {@link #findRoute(String, String)},
+     *                  or {@code null} if no route matched.
+     * @param inputPath The path part of the request sent to the local server.
+     * @return The corresponding API path on the Twitch API v5, e.g. {@code /kraken/channels/22484632}
+     * @throws ExecutionException  If there was an error translating a username into a user id.
+     * @throws NoSuchUserException If a username in the request URI could not be translated because the
+     *                             username is unknown.
+     * @see #mapApiPath(String, String)
+     */
+    public String mapApiPath(@Nullable ApiRoute apiRoute, String inputPath)
+            throws ExecutionException, NoSuchUserException {
+        String[] inputSegments = StringUtils.split(inputPath, '/');
 
-        if (foundApiRoute.isPresent()) {
+        if (apiRoute != null) {
             // this builds the new request route, with usernames replaced by user IDs.
 
             StringBuilder builder = new StringBuilder();
-            ApiRoute apiRoute = foundApiRoute.get();
             List<String> apiRouteSegments = apiRoute.getSegments();
             // this api route has the exact same amount of segments as the input request URI.
             // which is why the segments array can be accessed without any further checks.
@@ -69,6 +83,13 @@ public class RouteMapper {
                 builder.append('/');
 
                 if (routeSegment.startsWith(":")) {
+                    // reject strings that can never be a username without asking twitch.
+                    if (!UserIdResolver.isValidLoginName(inputSegment)) {
+                        throw new NoSuchUserException("Username " + inputSegment +
+                                " at segment " + routeSegment +
+                                " (#" + i + ") could not be translated: not a valid username");
+                    }
+
                     // this segment is a username. Translate to twitch user id.
                     Optional<Long> optionalUserId = userIdResolver.translateUsername(inputSegment);
                     if (!optionalUserId.isPresent()) {
@@ -94,6 +115,38 @@ public class RouteMapper {
         }
     }
 
+    /**
+     * Get the usernames in the given request path, without translating them.
+     *
+     * @param apiRoute  The route that was matched for the request path using {@link #findRoute(String, String)}.
+     * @param inputPath The path part of the request sent to the local server, e.g. {@code /kraken/channels/forsen}
+     * @return The values of all username segments in the path, e.g. {@code forsen}
+     */
+    public List<String> getUsernames(ApiRoute apiRoute, String inputPath) {
+        String[] inputSegments = StringUtils.split(inputPath, '/');
+        List<String> apiRouteSegments = apiRoute.getSegments();
+        List<String> usernames = new ArrayList<>();
+        for (int i = 0; i < apiRouteSegments.size(); i++) {
+            if (apiRouteSegments.get(i).startsWith(":")) {
+                usernames.add(inputSegments[i]);
+            }
+        }
+        return usernames;
+    }
+
+    /**
+     * Tries to find a matching route for the given request.
+     *
+     * @param httpMethod The HTTP method that was used to make the incoming request.
+     * @param inputPath  The path part of the request sent to the local server, e.g. {@code /kraken/channels/forsen}
+     * @return If found, an api route that matches this request. An empty optional otherwise.
+     */
+    public Optional<ApiRoute> findRoute(String httpMethod, String inputPath) {
+        // split the given path at all forward slashes.
+        // Then try to find the origin route that this is requesting.
+        return tryMatchRoute(httpMethod, StringUtils.split(inputPath, '/'));
+    }
+
     /**
      * Tries to find a matching route for the given URI segments.
      *
@@ -0,0 +1,54 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+/**
+ * Push-based alternative to polling {@code GET /kraken/streams/:channel}.
+ */
+@Controller
+public class StreamWatchController {
+
+    private final UserIdResolver userIdResolver;
+    private final StreamWatcher streamWatcher;
+
+    @Autowired
+    public StreamWatchController(UserIdResolver userIdResolver, StreamWatcher streamWatcher) {
+        this.userIdResolver = userIdResolver;
+        this.streamWatcher = streamWatcher;
+    }
+
+    /**
+     * Subscribe to the stream status of a channel using Server-Sent Events.
+     * <p>
+     * The response is an event stream that receives a {@code stream} event with the same body as
+     * {@code GET /kraken/streams/:channel} right away, and then again every time the stream goes live,
+     * goes offline, or changes (e.g. title or game).
+     *
+     * @param channel The login name of the channel to watch.
+     * @return The event stream.
+     * @throws ExecutionException  If there was an error translating the channel name into a user id.
+     * @throws NoSuchUserException If there is no channel with the given name.
+     */
+    @RequestMapping(value = "/apiproxy/watch/streams/{channel}", method = GET,
+            produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @ResponseBody
+    public SseEmitter watchStream(@PathVariable("channel") String channel)
+            throws ExecutionException, NoSuchUserException {
+        Optional<Long> userId = userIdResolver.translateUsername(channel);
+        if (!userId.isPresent()) {
+            throw new NoSuchUserException("Username " + channel + " could not be translated: user not found");
+        }
+        return streamWatcher.subscribe(userId.get(), channel);
+    }
+}
@@ -0,0 +1,500 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches the stream status of channels on behalf of any number of subscribers.
+ * <p>
+ * For every watched channel, exactly one upstream poll of {@code GET /kraken/streams/:channel} runs on a shared
+ * scheduler, no matter how many subscribers there are. Subscribers get the current state when they subscribe,
+ * and afterwards only when the stream state changed. The more subscribers a channel has, the more often it is
+ * polled, between the configured minimum and maximum interval.
+ * <p>
+ * Polls use at most the configured share of the client ID pool's rate limit, so that lookups of proxied requests
+ * are not starved by many watched channels. A poll without a permit is not made, and tried again after the minimum
+ * interval. Events are sent to subscribers on separate threads, through a small queue per subscriber: a subscriber
+ * that does not keep up is disconnected instead of holding up the polls.
+ */
+@Component
+public class StreamWatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamWatcher.class);
+
+    /**
+     * Fields of the stream object that change all the time and are not considered a state change.
+     */
+    private static final Set<String> VOLATILE_STREAM_FIELDS = ImmutableSet.of("viewers", "average_fps");
+
+    /**
+     * A comment is sent to idle subscribers at least this often, to detect closed connections.
+     */
+    private static final long HEARTBEAT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * Circuit breaker and latency key, shared with proxied requests to the same route.
+     */
+    private static final String ROUTE_KEY = "GET /kraken/streams/:channel";
+
+    /**
+     * Events queued per subscriber, a subscriber with a full queue is disconnected.
+     */
+    private static final int SUBSCRIBER_QUEUE_SIZE = 16;
+
+    private final ClientIdPool clientIdPool;
+    private final UpstreamPool upstreamPool;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final long subscriberTimeoutMillis;
+
+    /**
+     * The share of the client ID pool's rate limit that polls may use, across all watched channels.
+     */
+    private final TokenBucket pollBudget;
+
+    private final CloseableHttpClient httpClient;
+    private final UpstreamExecutor upstreamExecutor;
+
+    /**
+     * Watched channels by user ID.
+     */
+    private final ConcurrentMap<Long, WatchedChannel> channels = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Sends queued events to subscribers.
+     */
+    private final ExecutorService sender;
+
+    @Autowired
+    public StreamWatcher(ClientIdPool clientIdPool,
+                         UpstreamPool upstreamPool,
+                         @Value("${watch.minIntervalSeconds:5}") long minIntervalSeconds,
+                         @Value("${watch.maxIntervalSeconds:60}") long maxIntervalSeconds,
+                         @Value("${watch.subscriberTimeoutMinutes:30}") long subscriberTimeoutMinutes,
+                         @Value("${watch.pollThreads:2}") int pollThreads,
+                         @Value("${watch.sendThreads:4}") int sendThreads,
+                         @Value("${watch.clientIdShare:0.5}") double clientIdShare,
+                         CloseableHttpClient upstreamHttpClient,
+                         UpstreamExecutor upstreamExecutor) {
+        this(clientIdPool, upstreamPool, minIntervalSeconds, maxIntervalSeconds, TimeUnit.SECONDS,
+                TimeUnit.MINUTES.toMillis(subscriberTimeoutMinutes), pollThreads, sendThreads, clientIdShare,
+                upstreamHttpClient, upstreamExecutor);
+    }
+
+    /**
+     * Like the public constructor, but with the poll intervals in any unit, e.g. milliseconds for tests.
+     */
+    StreamWatcher(ClientIdPool clientIdPool, UpstreamPool upstreamPool, long minInterval, long maxInterval,
+                  TimeUnit intervalUnit, long subscriberTimeoutMillis, int pollThreads, int sendThreads,
+                  double clientIdShare, CloseableHttpClient upstreamHttpClient, UpstreamExecutor upstreamExecutor) {
+        if (clientIdShare <= 0 || clientIdShare > 1) {
+            throw new IllegalArgumentException("watch.clientIdShare must be greater than 0 and at most 1");
+        }
+        this.clientIdPool = clientIdPool;
+        this.upstreamPool = upstreamPool;
+        this.minIntervalMillis = intervalUnit.toMillis(minInterval);
+        this.maxIntervalMillis = intervalUnit.toMillis(maxInterval);
+        this.subscriberTimeoutMillis = subscriberTimeoutMillis;
+        this.pollBudget = new TokenBucket(clientIdShare * clientIdPool.getRequestsPerMinute(),
+                (int) Math.max(1, clientIdShare * clientIdPool.getBurst() * clientIdPool.size()), System.nanoTime());
+        this.httpClient = upstreamHttpClient;
+        this.upstreamExecutor = upstreamExecutor;
+        this.scheduler = Executors.newScheduledThreadPool(pollThreads, new ThreadFactoryBuilder()
+                .setNameFormat("stream-watcher-%d")
+                .setDaemon(true)
+                .build());
+        this.sender = Executors.newFixedThreadPool(sendThreads, new ThreadFactoryBuilder()
+                .setNameFormat("stream-watcher-sender-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Subscribe to the stream status of a channel.
+     *
+     * @param userId      User ID of the channel.
+     * @param channelName Login name of the channel, for logging.
+     * @return An emitter that receives a {@code stream} event with the v5 {@code /kraken/streams/:channel}
+     * response body every time the stream state changes.
+     */
+    public SseEmitter subscribe(long userId, String channelName) {
+        return subscribe(userId, channelName, new SseEmitter(subscriberTimeoutMillis));
+    }
+
+    /**
+     * Subscribe the given emitter to the stream status of a channel, see {@link #subscribe(long, String)}.
+     */
+    SseEmitter subscribe(long userId, String channelName, SseEmitter emitter) {
+        Subscriber[] subscriber = new Subscriber[1];
+        WatchedChannel channel = channels.compute(userId, (id, existing) -> {
+            WatchedChannel watched = existing != null ? existing : new WatchedChannel(id, channelName);
+            subscriber[0] = new Subscriber(watched, emitter);
+            watched.subscribers.add(subscriber[0]);
+            return watched;
+        });
+
+        Runnable unsubscribe = () -> unsubscribe(subscriber[0]);
+        emitter.onCompletion(unsubscribe);
+        emitter.onTimeout(unsubscribe);
+        emitter.onError(e -> unsubscribe.run());
+
+        if (channel.started.compareAndSet(false, true)) {
+            log.debug("Started watching channel {}", channelName);
+            scheduler.execute(() -> poll(channel));
+        } else {
+            // new subscribers get the current state right away, if there is one already.
+            String lastBody = channel.lastBody;
+            if (lastBody != null) {
+                enqueue(subscriber[0], streamEvent(lastBody));
+            }
+        }
+
+        return emitter;
+    }
+
+    private void unsubscribe(Subscriber subscriber) {
+        subscriber.closed = true;
+        channels.computeIfPresent(subscriber.channel.userId, (id, watched) -> {
+            watched.subscribers.remove(subscriber);
+            if (watched.subscribers.isEmpty()) {
+                log.debug("Stopped watching channel {}", watched.channelName);
+                return null;
+            }
+            return watched;
+        });
+    }
+
+    private void poll(WatchedChannel channel) {
+        // the channel was removed (all subscribers left), stop polling.
+        if (channels.get(channel.userId) != channel) {
+            return;
+        }
+
+        long delayMillis = pollIntervalMillis(channel.subscribers.size());
+        try {
+            // never wait for a permit on the scheduler threads, skip this poll and try again soon instead.
+            // A permit of the poll budget is lost if no client ID has one left, polls then use even less.
+            String clientId = pollBudget.tryAcquire(System.nanoTime()) ? clientIdPool.tryAcquire() : null;
+            if (clientId == null) {
+                delayMillis = minIntervalMillis;
+            }
+
+            String body = clientId != null ? fetchStream(channel.userId, clientId) : null;
+            JsonElement state = body != null ? stateOf(body) : null;
+            if (state != null && !state.equals(channel.lastState)) {
+                channel.lastBody = body;
+                channel.lastState = state;
+                for (Subscriber subscriber : channel.subscribers) {
+                    enqueue(subscriber, streamEvent(body));
+                }
+                channel.lastSent = System.nanoTime();
+            } else if (System.nanoTime() - channel.lastSent >= HEARTBEAT_INTERVAL_NANOS) {
+                for (Subscriber subscriber : channel.subscribers) {
+                    enqueue(subscriber, SseEmitter.event().comment("heartbeat"));
+                }
+                channel.lastSent = System.nanoTime();
+            }
+        } catch (Exception e) {
+            log.debug("Failed to poll stream status of channel {}", channel.channelName, e);
+        } finally {
+            if (channels.get(channel.userId) == channel) {
+                scheduler.schedule(() -> poll(channel), delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * @return The v5 stream response body, or {@code null} if the upstream did not respond with 200.
+     */
+    @Nullable
+    private String fetchStream(long userId, String clientId) throws IOException {
+        CloseableHttpResponse response;
+        try {
+            // not hedged: nobody waits for a poll, and a hedged attempt would need a permit beyond the poll budget.
+            response = upstreamExecutor.execute(ROUTE_KEY, false, () -> streamAttempt(userId, clientId),
+                    r -> r.getStatusLine().getStatusCode() >= 500);
+        } catch (IOException e) {
+            clientIdPool.recordFailure(clientId);
+            throw e;
+        }
+
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            String body = response.getEntity() != null ?
+                    EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8) : null;
+            if (status == 200 && body != null) {
+                clientIdPool.recordSuccess(clientId);
+                return body;
+            }
+
+            // the next poll is made with another client ID.
+            if (status == 429) {
+                Header reset = response.getFirstHeader("Ratelimit-Reset");
+                clientIdPool.recordRateLimited(clientId,
+                        ClientIdPool.rateLimitResetNanos(reset != null ? reset.getValue() : null));
+            } else if (ClientIdPool.isBadClientIdResponse(status, body)) {
+                clientIdPool.quarantine(clientId);
+            } else {
+                clientIdPool.recordFailure(clientId);
+            }
+            log.debug("Bad Twitch response while polling stream {} - {}", userId, response.getStatusLine());
+            return null;
+        } finally {
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+        }
+    }
+
+    private HedgedAttempt<CloseableHttpResponse> streamAttempt(long userId, String clientId) {
+        UpstreamPool.Upstream upstream = upstreamPool.choose();
+        HttpGet request = new HttpGet(upstream.getBaseUrl() + "/kraken/streams/" + userId);
+        request.addHeader("Accept", "application/vnd.twitchtv.v5+json");
+        request.addHeader("Client-ID", clientId);
+        return new HedgedAttempt<CloseableHttpResponse>() {
+            private volatile boolean aborted;
+
+            @Override
+            public CloseableHttpResponse call() throws IOException {
+                long start = upstream.begin();
+                boolean success = false;
+                try {
+                    CloseableHttpResponse response = httpClient.execute(request);
+                    success = response.getStatusLine().getStatusCode() < 500;
+                    return response;
+                } finally {
+                    if (aborted && !success) {
+                        upstreamPool.abandon(upstream);
+                    } else {
+                        upstreamPool.complete(upstream, start, success);
+                    }
+                }
+            }
+
+            @Override
+            public void abort() {
+                aborted = true;
+                request.abort();
+            }
+
+            @Override
+            public void discard(CloseableHttpResponse result) {
+                request.abort();
+                EntityUtils.consumeQuietly(result.getEntity());
+            }
+        };
+    }
+
+    /**
+     * @param subscribers The amount of subscribers of a channel.
+     * @return The interval between two polls of that channel. Scales inversely with the square root
+     * of the number of subscribers, between the configured minimum and maximum.
+     */
+    long pollIntervalMillis(int subscribers) {
+        long interval = (long) (maxIntervalMillis / Math.sqrt(Math.max(1, subscribers)));
+        return Math.max(minIntervalMillis, Math.min(maxIntervalMillis, interval));
+    }
+
+    /**
+     * Extract the part of a stream response that is compared to detect changes.
+     *
+     * @param body A v5 {@code /kraken/streams/:channel} response body.
+     * @return The stream object without its volatile fields, or the whole body if it could not be parsed.
+     */
+    static JsonElement stateOf(String body) {
+        JsonElement root;
+        try {
+            root = new JsonParser().parse(body);
+        } catch (JsonParseException e) {
+            return new JsonPrimitive(body);
+        }
+        if (!root.isJsonObject() || !root.getAsJsonObject().has("stream")) {
+            return root;
+        }
+
+        JsonElement stream = root.getAsJsonObject().get("stream");
+        if (!stream.isJsonObject()) {
+            // offline, "stream": null
+            return stream;
+        }
+
+        JsonObject state = stream.getAsJsonObject().deepCopy();
+        for (String field : VOLATILE_STREAM_FIELDS) {
+            state.remove(field);
+        }
+        return state;
+    }
+
+    /**
+     * @return A new {@code stream} event, event builders can only be sent once.
+     */
+    private static SseEmitter.SseEventBuilder streamEvent(String body) {
+        return SseEmitter.event()
+                .name("stream")
+                .data(body, MediaType.APPLICATION_JSON);
+    }
+
+    /**
+     * Queue an event to be sent to the subscriber. If its queue is full, the subscriber is disconnected.
+     */
+    private void enqueue(Subscriber subscriber, SseEmitter.SseEventBuilder event) {
+        if (subscriber.closed) {
+            return;
+        }
+        if (!subscriber.queue.offer(event)) {
+            log.debug("Disconnecting a subscriber of channel {} that does not keep up",
+                    subscriber.channel.channelName);
+            // set before closing it, so that the sender sees it once it sees the subscriber closed.
+            subscriber.completePending.set(true);
+            unsubscribe(subscriber);
+        }
+        scheduleSend(subscriber);
+    }
+
+    /**
+     * Start sending the queued events of the subscriber, unless that is already in progress.
+     */
+    private void scheduleSend(Subscriber subscriber) {
+        if (subscriber.sending.compareAndSet(false, true)) {
+            try {
+                sender.execute(() -> send(subscriber));
+            } catch (RejectedExecutionException e) {
+                // shut down
+                subscriber.sending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Send the queued events of a subscriber. Never runs concurrently for the same subscriber.
+     */
+    private void send(Subscriber subscriber) {
+        try {
+            SseEmitter.SseEventBuilder event;
+            while (!subscriber.closed && (event = subscriber.queue.poll()) != null) {
+                try {
+                    subscriber.emitter.send(event);
+                } catch (IOException | IllegalStateException e) {
+                    // the connection was closed, or the emitter was already completed.
+                    unsubscribe(subscriber);
+                }
+            }
+            if (subscriber.closed) {
+                subscriber.queue.clear();
+                if (subscriber.completePending.getAndSet(false)) {
+                    subscriber.emitter.complete();
+                }
+            }
+        } finally {
+            subscriber.sending.set(false);
+        }
+
+        // events queued, or the subscriber disconnected, after the loop ended.
+        if (subscriber.completePending.get() || (!subscriber.closed && !subscriber.queue.isEmpty())) {
+            scheduleSend(subscriber);
+        }
+    }
+
+    /**
+     * @return The number of channels currently being watched.
+     */
+    public int getWatchedChannelCount() {
+        return channels.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+        for (WatchedChannel channel : channels.values()) {
+            for (Subscriber subscriber : channel.subscribers) {
+                subscriber.emitter.complete();
+            }
+        }
+    }
+
+    private static class WatchedChannel {
+        private final long userId;
+        private final String channelName;
+        private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        /**
+         * Last response body and its parsed state, only accessed by the poll of this channel
+         * (which never runs concurrently with itself), and read by new subscribers.
+         */
+        @Nullable
+        private volatile String lastBody;
+        @Nullable
+        private volatile JsonElement lastState;
+
+        private volatile long lastSent = System.nanoTime();
+
+        private WatchedChannel(long userId, String channelName) {
+            this.userId = userId;
+            this.channelName = channelName;
+        }
+    }
+
+    private static class Subscriber {
+        private final WatchedChannel channel;
+        private final SseEmitter emitter;
+        private final BlockingQueue<SseEmitter.SseEventBuilder> queue =
+                new ArrayBlockingQueue<>(SUBSCRIBER_QUEUE_SIZE);
+
+        /**
+         * Whether events of this subscriber are being sent right now.
+         */
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        /**
+         * Whether the emitter has to be completed by the sender, because the subscriber did not keep up.
+         */
+        private final AtomicBoolean completePending = new AtomicBoolean();
+
+        /**
+         * Set once the subscriber is unsubscribed, no more events are sent to it.
+         */
+        private volatile boolean closed;
+
+        private Subscriber(WatchedChannel channel, SseEmitter emitter) {
+            this.channel = channel;
+            this.emitter = emitter;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package de.zwb3.apiproxy;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, implemented as a generic cell rate algorithm: instead of a token count, only the
+ * theoretical arrival time of the next request is stored, which every permit moves forward by one interval.
+ * <p>
+ * All times are {@link System#nanoTime()} values.
+ */
+@ThreadSafe
+public class TokenBucket {
+
+    /**
+     * Time it takes to refill a single permit.
+     */
+    private final long intervalNanos;
+
+    /**
+     * Time it takes to refill the whole bucket.
+     */
+    private final long capacityNanos;
+
+    private final AtomicLong theoreticalArrivalNanos;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param permitsPerMinute Rate at which the bucket refills.
+     * @param capacity         Maximum number of permits that can be taken at once.
+     * @param nowNanos         The current time.
+     */
+    public TokenBucket(double permitsPerMinute, int capacity, long nowNanos) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.MINUTES.toNanos(1) / permitsPerMinute));
+        this.capacityNanos = intervalNanos * Math.max(1, capacity);
+        this.theoreticalArrivalNanos = new AtomicLong(nowNanos);
+    }
+
+    /**
+     * Take a permit if one is available right away.
+     *
+     * @param nowNanos The current time.
+     * @return true if a permit was taken.
+     */
+    public boolean tryAcquire(long nowNanos) {
+        return reserve(nowNanos, 0) == 0;
+    }
+
+    /**
+     * Take a permit that becomes available within the given time.
+     *
+     * @param nowNanos     The current time.
+     * @param maxWaitNanos The maximum time the caller is willing to wait for the permit.
+     * @return The time the caller has to wait before using the permit (0 if it may be used right away), or -1
+     * if no permit was taken because it would only become available after {@code maxWaitNanos}.
+     */
+    public long reserve(long nowNanos, long maxWaitNanos) {
+        while (true) {
+            long arrival = theoreticalArrivalNanos.get();
+            long next = Math.max(arrival - nowNanos, 0) + nowNanos + intervalNanos;
+            long waitNanos = Math.max(next - nowNanos - capacityNanos, 0);
+            if (waitNanos > maxWaitNanos) {
+                return -1;
+            }
+            if (theoreticalArrivalNanos.compareAndSet(arrival, next)) {
+                return waitNanos;
+            }
+        }
+    }
+
+    /**
+     * @param nowNanos The current time.
+     * @return How long it takes until the next permit is available, 0 if one is available right now.
+     */
+    public long waitNanos(long nowNanos) {
+        long arrival = theoreticalArrivalNanos.get();
+        return Math.max(Math.max(arrival - nowNanos, 0) + intervalNanos - capacityNanos, 0);
+    }
+
+    /**
+     * Take all permits until the given time, e.g. when the upstream reported the rate limit as exceeded.
+     *
+     * @param untilNanos No permits are available before this time.
+     */
+    public void drainUntil(long untilNanos) {
+        long drained = untilNanos + capacityNanos - intervalNanos;
+        theoreticalArrivalNanos.accumulateAndGet(drained, (current, update) -> current - update < 0 ? update : current);
+    }
+}
@@ -0,0 +1,179 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.StatusLine;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.utils.HttpClientUtils;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Sends proxy requests to the upstream API through the {@link UpstreamExecutor}. Every attempt is sent to the
+ * upstream chosen by the {@link UpstreamPool}, so a hedged attempt usually goes to a different upstream.
+ */
+@Component
+public class UpstreamClient {
+
+    /**
+     * HTTP methods whose requests may safely be sent more than once.
+     */
+    private static final Set<String> IDEMPOTENT_METHODS = ImmutableSet.of("GET", "HEAD", "OPTIONS");
+
+    private final UpstreamPool upstreamPool;
+
+    private final CloseableHttpClient httpClient;
+
+    private final UpstreamExecutor upstreamExecutor;
+
+    /**
+     * Keeps the failed proxy requests for the status page.
+     */
+    private final FailureTracker failureTracker;
+
+    /**
+     * Configuration for proxy requests with a body, which use {@code Expect: 100-continue}.
+     */
+    private final RequestConfig bodyRequestConfig;
+
+    @Autowired
+    public UpstreamClient(UpstreamPool upstreamPool,
+                          CloseableHttpClient upstreamHttpClient,
+                          RequestConfig upstreamRequestConfig,
+                          UpstreamExecutor upstreamExecutor,
+                          FailureTracker failureTracker) {
+        this.upstreamPool = upstreamPool;
+        this.httpClient = upstreamHttpClient;
+        this.upstreamExecutor = upstreamExecutor;
+        this.failureTracker = failureTracker;
+        this.bodyRequestConfig = ProxyRequests.bodyRequestConfig(upstreamRequestConfig);
+    }
+
+    /**
+     * @param mappedPath The API v5 path, e.g. {@code /kraken/streams/22484632}
+     * @param query      The raw query string, if any.
+     * @return The URI to make the proxy request to, relative to the upstream it is sent to.
+     * @throws URISyntaxException If the resulting URI is invalid.
+     */
+    public URI buildUri(String mappedPath, @Nullable String query) throws URISyntaxException {
+        return new URIBuilder()
+                .setPath(mappedPath)
+                .setQuery(query)
+                .build();
+    }
+
+    /**
+     * @param httpMethod The HTTP method of the proxy request.
+     * @param proxyUri   The URI to make the proxy request to, see {@link #buildUri(String, String)}.
+     * @return A request builder for an API v5 request, without any of the received headers.
+     */
+    public RequestBuilder newRequest(String httpMethod, URI proxyUri) {
+        return RequestBuilder.create(httpMethod)
+                .setUri(proxyUri)
+                .addHeader("Accept", "application/vnd.twitchtv.v5+json");
+    }
+
+    /**
+     * @return Configuration for proxy requests with a body, which use {@code Expect: 100-continue}.
+     */
+    public RequestConfig getBodyRequestConfig() {
+        return bodyRequestConfig;
+    }
+
+    /**
+     * @param apiRoute   The matched route, if any.
+     * @param httpMethod The HTTP method of the received request.
+     * @return The key that circuit breakers and latency histograms are kept under for this request.
+     */
+    public static String routeKey(Optional<ApiRoute> apiRoute, String httpMethod) {
+        return apiRoute.map(ApiRoute::toString).orElse(httpMethod + " (unknown route)");
+    }
+
+    /**
+     * Execute a proxy request. Requests with idempotent methods without a body are hedged.
+     * <p>
+     * Requests that fail with an I/O error or a 5xx status are kept in the recent failures of the
+     * {@link FailureTracker}.
+     *
+     * @param routeKey The key to track latencies and errors of this request under.
+     * @param request  Builds the request. It is built once per attempt.
+     * @return The response of the proxy request. Must be closed by the caller.
+     * @throws IOException                 If an I/O exception occurs.
+     * @throws CircuitBreakerOpenException If the circuit breaker for the route is open.
+     */
+    public CloseableHttpResponse execute(String routeKey, RequestBuilder request) throws IOException {
+        // the body can only be read once, so requests with a body are never hedged.
+        boolean idempotent = request.getEntity() == null && IDEMPOTENT_METHODS.contains(request.getMethod());
+        URI relativeUri = request.getUri();
+        CloseableHttpResponse response;
+        try {
+            response = upstreamExecutor.execute(routeKey, idempotent, () -> {
+                // attempts are created on the calling thread, one after another.
+                UpstreamPool.Upstream upstream = upstreamPool.choose();
+                return proxyAttempt(upstream, request.setUri(upstream.resolve(relativeUri)).build());
+            }, r -> r.getStatusLine().getStatusCode() >= 500);
+        } catch (IOException e) {
+            failureTracker.recordRecentFailure(routeKey, e);
+            throw e;
+        }
+        StatusLine statusLine = response.getStatusLine();
+        if (statusLine.getStatusCode() >= 500) {
+            failureTracker.recordRecentFailure(routeKey, new IOException(String.format("Bad Twitch response - %d %s",
+                    statusLine.getStatusCode(), statusLine.getReasonPhrase())));
+        }
+        return response;
+    }
+
+    /**
+     * @param upstream     The upstream the request is sent to.
+     * @param proxyRequest The request to execute. Every attempt needs its own request instance.
+     * @return An attempt that executes the given request using the shared http client.
+     */
+    private HedgedAttempt<CloseableHttpResponse> proxyAttempt(UpstreamPool.Upstream upstream,
+                                                              HttpUriRequest proxyRequest) {
+        return new HedgedAttempt<CloseableHttpResponse>() {
+            private volatile boolean aborted;
+
+            @Override
+            public CloseableHttpResponse call() throws IOException {
+                long start = upstream.begin();
+                boolean success = false;
+                try {
+                    CloseableHttpResponse response = httpClient.execute(proxyRequest);
+                    success = response.getStatusLine().getStatusCode() < 500;
+                    return response;
+                } finally {
+                    if (aborted && !success) {
+                        upstreamPool.abandon(upstream);
+                    } else {
+                        upstreamPool.complete(upstream, start, success);
+                    }
+                }
+            }
+
+            @Override
+            public void abort() {
+                aborted = true;
+                proxyRequest.abort();
+            }
+
+            @Override
+            public void discard(CloseableHttpResponse result) {
+                // abort first, so the connection is closed instead of reading the rest of the body.
+                proxyRequest.abort();
+                HttpClientUtils.closeQuietly(result);
+            }
+        };
+    }
+}
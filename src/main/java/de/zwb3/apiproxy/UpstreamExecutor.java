@@ -0,0 +1,314 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Executes calls to the upstream API with tail-latency protection.
+ * <p>
+ * Every call belongs to a key (usually the matched {@link ApiRoute}). For every key, a {@link LatencyHistogram}
+ * of successful calls and a {@link CircuitBreaker} is kept.
+ * <p>
+ * Idempotent calls are hedged: If the first attempt has not completed after a delay derived from the configured
+ * percentile of the recent latencies for that key, a second, identical attempt is started and whichever completes
+ * first is used. Attempts run on a bounded pool of threads; when all of them are busy, calls are not hedged,
+ * and run on the calling thread if even their first attempt cannot be started. The circuit breaker makes calls
+ * fail fast with a {@link CircuitBreakerOpenException} when the error rate for the key spikes.
+ */
+@Component
+public class UpstreamExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamExecutor.class);
+
+    /**
+     * Below this amount of samples, the histogram is not trusted and the initial hedge delay is used instead.
+     */
+    private static final long MIN_SAMPLES = 100;
+
+    private final boolean hedgingEnabled;
+    private final double hedgePercentile;
+    private final long initialHedgeDelayMicros;
+    private final long minHedgeDelayMicros;
+    private final long maxHedgeDelayMicros;
+
+    private final double failureRateThreshold;
+    private final int minimumRequests;
+    private final long breakerWindowSeconds;
+    private final long breakerOpenSeconds;
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * Default maximum number of threads that run attempts, see {@code hedging.maxThreads}.
+     */
+    public static final int DEFAULT_MAX_ATTEMPT_THREADS = 64;
+
+    private final ThreadPoolExecutor attemptExecutor;
+
+    public UpstreamExecutor(boolean hedgingEnabled, double hedgePercentile, long initialHedgeDelayMillis,
+                            long minHedgeDelayMillis, long maxHedgeDelayMillis, double failureRateThreshold,
+                            int minimumRequests, long breakerWindowSeconds, long breakerOpenSeconds) {
+        this(hedgingEnabled, hedgePercentile, initialHedgeDelayMillis, minHedgeDelayMillis, maxHedgeDelayMillis,
+                DEFAULT_MAX_ATTEMPT_THREADS, failureRateThreshold, minimumRequests, breakerWindowSeconds,
+                breakerOpenSeconds);
+    }
+
+    @Autowired
+    public UpstreamExecutor(@Value("${hedging.enabled:true}") boolean hedgingEnabled,
+                            @Value("${hedging.percentile:95}") double hedgePercentile,
+                            @Value("${hedging.initialDelayMillis:500}") long initialHedgeDelayMillis,
+                            @Value("${hedging.minDelayMillis:20}") long minHedgeDelayMillis,
+                            @Value("${hedging.maxDelayMillis:2000}") long maxHedgeDelayMillis,
+                            @Value("${hedging.maxThreads:64}") int maxAttemptThreads,
+                            @Value("${circuitBreaker.failureRateThreshold:0.5}") double failureRateThreshold,
+                            @Value("${circuitBreaker.minimumRequests:20}") int minimumRequests,
+                            @Value("${circuitBreaker.windowSeconds:10}") long breakerWindowSeconds,
+                            @Value("${circuitBreaker.openSeconds:5}") long breakerOpenSeconds) {
+        this.hedgingEnabled = hedgingEnabled;
+        this.hedgePercentile = hedgePercentile;
+        this.initialHedgeDelayMicros = TimeUnit.MILLISECONDS.toMicros(initialHedgeDelayMillis);
+        this.minHedgeDelayMicros = TimeUnit.MILLISECONDS.toMicros(minHedgeDelayMillis);
+        this.maxHedgeDelayMicros = TimeUnit.MILLISECONDS.toMicros(maxHedgeDelayMillis);
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumRequests = minimumRequests;
+        this.breakerWindowSeconds = breakerWindowSeconds;
+        this.breakerOpenSeconds = breakerOpenSeconds;
+        // no queue: an attempt that would have to wait for a thread is not worth hedging.
+        this.attemptExecutor = new ThreadPoolExecutor(0, maxAttemptThreads, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new ThreadFactoryBuilder()
+                .setNameFormat("upstream-attempt-%d")
+                .setDaemon(true)
+                .build());
+
+        log.info("Initialized with hedgingEnabled={}, hedgePercentile={}, failureRateThreshold={}",
+                hedgingEnabled, hedgePercentile, failureRateThreshold);
+    }
+
+    /**
+     * Execute an upstream call through the circuit breaker of its key.
+     *
+     * @param key        The key to track latencies and errors under, e.g. the matched API route.
+     * @param idempotent Whether the call may be hedged, i.e. sent more than once.
+     * @param attempts   Creates a new, independent attempt of the call every time it is invoked. May return
+     *                   {@code null} instead of a hedged attempt that can't be made right now, e.g. because it
+     *                   would need another client ID permit, see {@link ClientIdPool#attempts}.
+     * @param isFailure  Decides whether a completed call should count as a failure for the circuit breaker,
+     *                   e.g. because of a 5xx status code.
+     * @param <T>        Type of the call result.
+     * @return The result of the first attempt that completed.
+     * @throws IOException                 If the call failed (all attempts failed, if hedged).
+     * @throws CircuitBreakerOpenException If the circuit breaker for the given key is open.
+     */
+    public <T> T execute(String key, boolean idempotent, Supplier<? extends HedgedAttempt<T>> attempts,
+                         Predicate<? super T> isFailure) throws IOException {
+        return execute(key, idempotent, true, attempts, isFailure);
+    }
+
+    /**
+     * Execute an upstream call.
+     *
+     * @param key        The key to track latencies and errors under, e.g. the matched API route.
+     * @param idempotent Whether the call may be hedged, i.e. sent more than once.
+     * @param failFast   Whether the call goes through the circuit breaker of its key. Callers that back off by
+     *                   themselves, e.g. the user ID lookups with their {@link FailureTracker}, pass false.
+     * @param attempts   Creates a new, independent attempt of the call every time it is invoked. May return
+     *                   {@code null} instead of a hedged attempt that can't be made right now, e.g. because it
+     *                   would need another client ID permit, see {@link ClientIdPool#attempts}.
+     * @param isFailure  Decides whether a completed call should count as a failure for the circuit breaker,
+     *                   e.g. because of a 5xx status code.
+     * @param <T>        Type of the call result.
+     * @return The result of the first attempt that completed.
+     * @throws IOException                 If the call failed (all attempts failed, if hedged).
+     * @throws CircuitBreakerOpenException If {@code failFast} and the circuit breaker for the given key is open.
+     */
+    public <T> T execute(String key, boolean idempotent, boolean failFast,
+                         Supplier<? extends HedgedAttempt<T>> attempts, Predicate<? super T> isFailure)
+            throws IOException {
+        CircuitBreaker breaker = null;
+        if (failFast) {
+            breaker = breakers.computeIfAbsent(key, k -> new CircuitBreaker(failureRateThreshold,
+                    minimumRequests, breakerWindowSeconds, breakerOpenSeconds, TimeUnit.SECONDS));
+            if (!breaker.tryAcquire()) {
+                throw new CircuitBreakerOpenException("Upstream error rate for " + key + " is too high, failing fast");
+            }
+        }
+
+        LatencyHistogram histogram = histograms.computeIfAbsent(key, k -> new LatencyHistogram(30, TimeUnit.SECONDS));
+
+        boolean success = false;
+        try {
+            T result;
+            if (hedgingEnabled && idempotent) {
+                result = executeHedged(histogram, attempts);
+            } else {
+                result = executeOnce(histogram, attempts.get());
+            }
+            success = !isFailure.test(result);
+            return result;
+        } finally {
+            if (breaker != null) {
+                breaker.record(success);
+            }
+        }
+    }
+
+    private <T> T executeOnce(LatencyHistogram histogram, HedgedAttempt<T> attempt) throws IOException {
+        long start = System.nanoTime();
+        T result = attempt.call();
+        histogram.record(System.nanoTime() - start);
+        return result;
+    }
+
+    private <T> T executeHedged(LatencyHistogram histogram, Supplier<? extends HedgedAttempt<T>> attempts)
+            throws IOException {
+        HedgedCall<T> call = new HedgedCall<>(histogram);
+
+        HedgedAttempt<T> first = attempts.get();
+        if (!launch(call, first)) {
+            log.debug("All attempt threads are busy, sending upstream request without hedging");
+            return executeOnce(histogram, first);
+        }
+        try {
+            try {
+                return call.firstResult.get(hedgeDelayMicros(histogram), TimeUnit.MICROSECONDS);
+            } catch (TimeoutException e) {
+                HedgedAttempt<T> hedge = attempts.get();
+                if (hedge == null) {
+                    log.debug("Upstream call did not complete within hedge delay, but can't be hedged right now");
+                } else if (!launch(call, hedge)) {
+                    log.debug("All attempt threads are busy, waiting for the first attempt");
+                } else {
+                    log.debug("Upstream call did not complete within hedge delay, sent hedged request");
+                }
+                return call.firstResult.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upstream response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            HedgedAttempt<T> winningAttempt = call.winner.get();
+            for (HedgedAttempt<T> attempt : call.launched) {
+                if (attempt != winningAttempt) {
+                    attempt.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one hedged call, shared by its attempts.
+     */
+    private static class HedgedCall<T> {
+        final LatencyHistogram histogram;
+        final CompletableFuture<T> firstResult = new CompletableFuture<>();
+        final AtomicReference<HedgedAttempt<T>> winner = new AtomicReference<>();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicReference<Throwable> lastFailure = new AtomicReference<>();
+        /**
+         * Only used by the calling thread.
+         */
+        final List<HedgedAttempt<T>> launched = new ArrayList<>(2);
+
+        HedgedCall(LatencyHistogram histogram) {
+            this.histogram = histogram;
+        }
+
+        /**
+         * Fail the call if the given attempt was the last one outstanding.
+         */
+        void attemptFailed(Throwable t) {
+            lastFailure.set(t);
+            if (outstanding.decrementAndGet() == 0) {
+                firstResult.completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * Start an attempt on the {@link #attemptExecutor}.
+     *
+     * @return false if the attempt was not started, because all threads are busy.
+     */
+    private <T> boolean launch(HedgedCall<T> call, HedgedAttempt<T> attempt) {
+        // counted before it runs, so that a failure of the other attempt does not fail the call in the meantime.
+        call.outstanding.incrementAndGet();
+        try {
+            attemptExecutor.execute(() -> runAttempt(call, attempt));
+        } catch (RejectedExecutionException e) {
+            // the other attempt may have failed in the meantime, leaving it to this one to fail the call.
+            // (nothing to do if this was the first attempt, there is no other one.)
+            if (call.outstanding.decrementAndGet() == 0) {
+                Throwable failure = call.lastFailure.get();
+                if (failure != null) {
+                    call.firstResult.completeExceptionally(failure);
+                }
+            }
+            return false;
+        }
+        call.launched.add(attempt);
+        return true;
+    }
+
+    private static <T> void runAttempt(HedgedCall<T> call, HedgedAttempt<T> attempt) {
+        long start = System.nanoTime();
+        T result;
+        try {
+            result = attempt.call();
+        } catch (Throwable t) {
+            // only fail the call once every attempt has failed.
+            call.attemptFailed(t);
+            return;
+        }
+        call.histogram.record(System.nanoTime() - start);
+
+        // firstResult may also have been completed exceptionally if this attempt was launched
+        // just after the other attempt failed.
+        if (!call.winner.compareAndSet(null, attempt) || !call.firstResult.complete(result)) {
+            attempt.discard(result);
+        }
+    }
+
+    /**
+     * @return The delay after which a hedged attempt should be sent, based on the recent latencies.
+     */
+    private long hedgeDelayMicros(LatencyHistogram histogram) {
+        if (histogram.count() < MIN_SAMPLES) {
+            return initialHedgeDelayMicros;
+        }
+        long delay = histogram.percentileMicros(hedgePercentile);
+        return Math.min(maxHedgeDelayMicros, Math.max(minHedgeDelayMicros, delay));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        attemptExecutor.shutdownNow();
+    }
+}
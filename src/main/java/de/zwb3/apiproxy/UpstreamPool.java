@@ -0,0 +1,448 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The upstream servers all requests are sent to (proxied requests, username lookups and stream polls), e.g. a
+ * few caching tiers or regional egress proxies in front of {@code https://api.twitch.tv}.
+ * <p>
+ * Every request goes to the better of two randomly picked (by weight) upstreams, compared by their
+ * <em>peak EWMA</em> latency times the number of requests they have in flight: an exponentially weighted moving
+ * average of recent latencies that jumps up to a slower sample immediately and only decays slowly. Slow upstreams
+ * get less traffic within a few requests, and the in-flight count keeps a stalled upstream from looking fast.
+ * <p>
+ * Upstreams are taken out of rotation while their active health checks fail, or for a while after too many
+ * consecutive failed requests (outlier ejection). If no upstream is left, all of them are used again, since
+ * sending requests to a possibly bad upstream is better than failing all of them.
+ */
+@ThreadSafe
+public class UpstreamPool implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(UpstreamPool.class);
+
+    /**
+     * Score of an upstream without any latency samples, per request in flight. Those are tried first, but not
+     * piled onto.
+     */
+    private static final double UNMEASURED_PENDING_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Ejected upstreams are ejected for the base time multiplied by the number of times they were ejected in a
+     * row, but for at most this many multiples.
+     */
+    private static final int MAX_EJECTION_MULTIPLIER = 10;
+
+    private final ImmutableList<Upstream> upstreams;
+
+    private final int ejectionConsecutiveFailures;
+
+    private final long ejectionBaseNanos;
+
+    @Nullable
+    private ScheduledExecutorService healthCheckScheduler;
+
+    /**
+     * @param upstreams                   The upstreams, see {@link #parse(String, long)}.
+     * @param ejectionConsecutiveFailures An upstream is ejected after this many failed requests in a row.
+     * @param ejectionBaseMillis          How long an upstream is ejected the first time.
+     */
+    public UpstreamPool(List<Upstream> upstreams, int ejectionConsecutiveFailures, long ejectionBaseMillis) {
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException("No upstream configured");
+        }
+        this.upstreams = ImmutableList.copyOf(upstreams);
+        this.ejectionConsecutiveFailures = ejectionConsecutiveFailures;
+        this.ejectionBaseNanos = TimeUnit.MILLISECONDS.toNanos(ejectionBaseMillis);
+    }
+
+    /**
+     * @param upstreamUrls   A comma-separated list of upstream base URLs, each optionally followed by a weight,
+     *                       e.g. {@code http://cache-1:8080;weight=2, http://cache-2:8080}.
+     * @param decayTimeMillis Time constant of the latency average of each upstream.
+     * @return The upstreams.
+     * @throws IllegalArgumentException If an entry is invalid.
+     */
+    public static List<Upstream> parse(String upstreamUrls, long decayTimeMillis) {
+        List<Upstream> upstreams = new ArrayList<>();
+        for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(upstreamUrls)) {
+            String url = StringUtils.substringBefore(entry, ";").trim();
+            int weight = 1;
+            String options = StringUtils.substringAfter(entry, ";").trim();
+            if (!options.isEmpty()) {
+                if (!options.startsWith("weight=")) {
+                    throw new IllegalArgumentException("Unknown upstream option in " + entry);
+                }
+                weight = Integer.parseInt(options.substring("weight=".length()).trim());
+            }
+            upstreams.add(new Upstream(url, weight, decayTimeMillis));
+        }
+        return upstreams;
+    }
+
+    /**
+     * @return The upstream to send the next request to.
+     */
+    public Upstream choose() {
+        return choose(System.nanoTime());
+    }
+
+    Upstream choose(long now) {
+        if (upstreams.size() == 1) {
+            return upstreams.get(0);
+        }
+
+        boolean all = false;
+        int totalWeight = totalWeight(now, false);
+        if (totalWeight == 0) {
+            // panic mode: every upstream is down as far as we know, so try all of them.
+            all = true;
+            totalWeight = totalWeight(now, true);
+        }
+
+        // power of two choices
+        Upstream first = pickByWeight(now, all, totalWeight, null);
+        if (first.weight == totalWeight) {
+            // the only candidate
+            return first;
+        }
+        Upstream second = pickByWeight(now, all, totalWeight - first.weight, first);
+        return first.score(now) <= second.score(now) ? first : second;
+    }
+
+    private int totalWeight(long now, boolean all) {
+        int totalWeight = 0;
+        for (Upstream upstream : upstreams) {
+            if (all || upstream.isAvailable(now)) {
+                totalWeight += upstream.weight;
+            }
+        }
+        return totalWeight;
+    }
+
+    private Upstream pickByWeight(long now, boolean all, int totalWeight, @Nullable Upstream exclude) {
+        int position = ThreadLocalRandom.current().nextInt(totalWeight);
+        Upstream last = null;
+        for (Upstream upstream : upstreams) {
+            if (upstream == exclude || !(all || upstream.isAvailable(now))) {
+                continue;
+            }
+            position -= upstream.weight;
+            if (position < 0) {
+                return upstream;
+            }
+            last = upstream;
+        }
+        // only if the health of an upstream changed since the total weight was calculated.
+        return last != null ? last : upstreams.get(0);
+    }
+
+    /**
+     * Record the outcome of a request that was started with {@link Upstream#begin()}.
+     * Failures only count towards ejection, successes update the latency average.
+     *
+     * @param upstream   The upstream the request was sent to.
+     * @param startNanos The value returned by {@link Upstream#begin()}.
+     * @param success    Whether the upstream responded, with a status below 500.
+     */
+    public void complete(Upstream upstream, long startNanos, boolean success) {
+        complete(upstream, startNanos, success, System.nanoTime());
+    }
+
+    /**
+     * Record that a request that was started with {@link Upstream#begin()} was aborted by us, e.g. because a
+     * hedged attempt to another upstream won. It counts neither as a success nor as a failure.
+     *
+     * @param upstream The upstream the request was sent to.
+     */
+    public void abandon(Upstream upstream) {
+        upstream.pending.decrementAndGet();
+    }
+
+    void complete(Upstream upstream, long startNanos, boolean success, long now) {
+        upstream.pending.decrementAndGet();
+        if (success) {
+            upstream.observe(now - startNanos, now);
+            upstream.consecutiveFailures.set(0);
+            return;
+        }
+        // failures are usually fast (connection refused, 503), so they don't count as latency samples.
+        if (upstream.consecutiveFailures.incrementAndGet() >= ejectionConsecutiveFailures &&
+                upstream.tryEject(now, ejectionBaseNanos)) {
+            log.warn("Ejected upstream {} for {} seconds after {} consecutive failures", upstream,
+                    TimeUnit.NANOSECONDS.toSeconds(upstream.ejectedUntilNanos - now), ejectionConsecutiveFailures);
+        }
+    }
+
+    /**
+     * Start probing all upstreams in the background. Does nothing if there is only a single upstream, since
+     * there is nothing to fail over to.
+     *
+     * @param httpClient     The client to send the probes with.
+     * @param path           The path to probe, e.g. {@code /kraken}. Any response below 500 counts as healthy.
+     * @param intervalMillis Time between two probes of the same upstream.
+     * @param timeoutMillis  Probes that take longer than this fail.
+     * @param threshold      Number of probes in a row that must fail (or succeed) to take an upstream out of
+     *                       rotation (or put it back).
+     */
+    public synchronized void startHealthChecks(CloseableHttpClient httpClient, String path, long intervalMillis,
+                                               int timeoutMillis, int threshold) {
+        if (upstreams.size() < 2 || healthCheckScheduler != null) {
+            return;
+        }
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(timeoutMillis)
+                .setConnectionRequestTimeout(timeoutMillis)
+                .setSocketTimeout(timeoutMillis)
+                .build();
+        healthCheckScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("upstream-health-check")
+                .setDaemon(true)
+                .build());
+        healthCheckScheduler.scheduleWithFixedDelay(() -> {
+            for (Upstream upstream : upstreams) {
+                upstream.recordProbe(probe(httpClient, upstream, path, config), threshold);
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Whether the upstream responded to the probe with a status below 500.
+     */
+    static boolean probe(CloseableHttpClient httpClient, Upstream upstream, String path, RequestConfig config) {
+        HttpGet request = new HttpGet(upstream.resolve(URI.create(path)));
+        request.setConfig(config);
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            return response.getStatusLine().getStatusCode() < 500;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Health check of upstream {} failed", upstream, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return All configured upstreams.
+     */
+    public List<Upstream> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * @return The number of upstreams that are currently healthy and not ejected.
+     */
+    public int getAvailableCount() {
+        long now = System.nanoTime();
+        return (int) upstreams.stream().filter(upstream -> upstream.isAvailable(now)).count();
+    }
+
+    public int size() {
+        return upstreams.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (healthCheckScheduler != null) {
+            healthCheckScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * A single upstream server, and what is known about its latency and health.
+     */
+    @ThreadSafe
+    public static class Upstream {
+
+        /**
+         * Base URL without a trailing slash, e.g. {@code http://cache-1:8080}
+         */
+        private final String baseUrl;
+
+        private final int weight;
+
+        private final double decayTimeNanos;
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        /**
+         * Peak EWMA of the latency.
+         */
+        @GuardedBy("this")
+        private double costNanos;
+
+        @GuardedBy("this")
+        private long lastSampleNanos;
+
+        @GuardedBy("this")
+        private int ejections;
+
+        private volatile boolean ejected;
+
+        private volatile long ejectedUntilNanos;
+
+        /**
+         * Result of the active health checks, only updated by the health check thread.
+         */
+        private volatile boolean healthy = true;
+
+        private int probeStreak;
+
+        /**
+         * @param baseUrl         Base URL of the upstream, e.g. {@code https://api.twitch.tv}
+         * @param weight          Relative share of requests this upstream gets compared to the others, all
+         *                        other things being equal.
+         * @param decayTimeMillis Time constant of the latency average.
+         */
+        public Upstream(String baseUrl, int weight, long decayTimeMillis) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight of upstream " + baseUrl + " must be at least 1");
+            }
+            URI uri = URI.create(baseUrl);
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                throw new IllegalArgumentException("Not an absolute upstream URL: " + baseUrl);
+            }
+            this.baseUrl = StringUtils.removeEnd(baseUrl, "/");
+            this.weight = weight;
+            this.decayTimeNanos = TimeUnit.MILLISECONDS.toNanos(decayTimeMillis);
+        }
+
+        /**
+         * @param relativeUri A path with an optional query, e.g. {@code /kraken/streams/22484632?limit=1}
+         * @return The URI of the given path on this upstream.
+         */
+        public URI resolve(URI relativeUri) {
+            StringBuilder builder = new StringBuilder(baseUrl).append(relativeUri.getRawPath());
+            if (relativeUri.getRawQuery() != null) {
+                builder.append('?').append(relativeUri.getRawQuery());
+            }
+            return URI.create(builder.toString());
+        }
+
+        /**
+         * Mark a request to this upstream as started. Must be followed by
+         * {@link UpstreamPool#complete(Upstream, long, boolean)}.
+         *
+         * @return The start time of the request.
+         */
+        public long begin() {
+            pending.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        boolean isAvailable(long now) {
+            return healthy && (!ejected || now - ejectedUntilNanos >= 0);
+        }
+
+        /**
+         * @return The expected cost of sending one more request to this upstream, lower is better.
+         */
+        synchronized double score(long now) {
+            int inFlight = pending.get();
+            if (costNanos == 0) {
+                return inFlight * UNMEASURED_PENDING_PENALTY_NANOS / weight;
+            }
+            return decayedCost(now) * (inFlight + 1) / weight;
+        }
+
+        synchronized void observe(long latencyNanos, long now) {
+            double cost = decayedCost(now);
+            if (latencyNanos > cost) {
+                // peak: slow responses take effect immediately.
+                costNanos = latencyNanos;
+            } else {
+                double w = Math.exp(-Math.max(0, now - lastSampleNanos) / decayTimeNanos);
+                costNanos = cost * w + latencyNanos * (1 - w);
+            }
+            lastSampleNanos = now;
+            ejections = 0;
+        }
+
+        /**
+         * The cost decays towards zero while there are no samples, so an upstream that was slow once gets
+         * another chance eventually.
+         */
+        @GuardedBy("this")
+        private double decayedCost(long now) {
+            if (costNanos == 0) {
+                return 0;
+            }
+            return costNanos * Math.exp(-Math.max(0, now - lastSampleNanos) / decayTimeNanos);
+        }
+
+        /**
+         * @return true if this upstream was ejected now, false if it already was ejected.
+         */
+        synchronized boolean tryEject(long now, long ejectionBaseNanos) {
+            if (ejected && now - ejectedUntilNanos < 0) {
+                return false;
+            }
+            ejections++;
+            ejectedUntilNanos = now + ejectionBaseNanos * Math.min(ejections, MAX_EJECTION_MULTIPLIER);
+            ejected = true;
+            consecutiveFailures.set(0);
+            return true;
+        }
+
+        void recordProbe(boolean success, int threshold) {
+            if (success == healthy) {
+                probeStreak = 0;
+                return;
+            }
+            if (++probeStreak >= threshold) {
+                probeStreak = 0;
+                healthy = success;
+                if (success) {
+                    log.info("Upstream {} is healthy again", this);
+                } else {
+                    log.warn("Upstream {} failed {} health checks in a row, taking it out of rotation", this,
+                            threshold);
+                }
+            }
+        }
+
+        /**
+         * @return Base URL without a trailing slash, e.g. {@code http://cache-1:8080}
+         */
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        @Override
+        public String toString() {
+            return baseUrl;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches lower case login name -> user ID mappings, loading missing ones on demand.
+ * <p>
+ * Only names that were found are cached. Names that were not found are answered with an empty optional and
+ * not retained, so junk names never take weight from real entries (see {@link NegativeLookupCache}).
+ * <p>
+ * Both implementations behave like a Guava {@link com.google.common.cache.LoadingCache}: checked exceptions
+ * of the loader are wrapped in an {@link ExecutionException}, unchecked ones in an
+ * {@link com.google.common.util.concurrent.UncheckedExecutionException}.
+ *
+ * @see CachePolicy
+ */
+public interface UserIdCache {
+
+    /**
+     * Loads user IDs for login names that are not cached.
+     */
+    @FunctionalInterface
+    interface Loader {
+        /**
+         * @param loginNames Lower case login names, at most {@link UserIdResolver#MAX_LOGINS_PER_LOOKUP}.
+         * @return A map containing an entry for every given login name, with an empty optional for names
+         * that were not found.
+         * @throws Exception If the lookup failed.
+         */
+        Map<String, Optional<Long>> loadAll(List<? extends String> loginNames) throws Exception;
+    }
+
+    /**
+     * @param loginName A lower case login name.
+     * @return The cached or newly loaded user ID.
+     * @throws ExecutionException If loading the user ID failed.
+     */
+    Optional<Long> get(String loginName) throws ExecutionException;
+
+    /**
+     * @param loginNames Lower case login names.
+     * @return The cached or newly loaded user IDs. Missing ones are loaded with as few loads as possible.
+     * @throws ExecutionException If loading any of the user IDs failed.
+     */
+    Map<String, Optional<Long>> getAll(Iterable<String> loginNames) throws ExecutionException;
+
+    /**
+     * @return The (approximate) number of cached mappings.
+     */
+    long size();
+
+    /**
+     * Load the given login names with as few loads as possible, i.e. in chunks of
+     * {@link UserIdResolver#MAX_LOGINS_PER_LOOKUP}, wrapping loader exceptions the way
+     * {@link com.google.common.cache.LoadingCache#getAll(Iterable)} does.
+     *
+     * @param loader     The loader to load the chunks with.
+     * @param loginNames Lower case login names, without duplicates.
+     * @return A map containing an entry for every given login name, with an empty optional for names
+     * that were not found.
+     * @throws ExecutionException If loading any of the chunks failed.
+     */
+    static Map<String, Optional<Long>> loadInChunks(Loader loader, Iterable<String> loginNames)
+            throws ExecutionException {
+        try {
+            Map<String, Optional<Long>> result = new HashMap<>();
+            for (List<String> chunk : Iterables.partition(loginNames, UserIdResolver.MAX_LOGINS_PER_LOOKUP)) {
+                result.putAll(loader.loadAll(chunk));
+            }
+            return result;
+        } catch (RuntimeException e) {
+            throw new UncheckedExecutionException(e);
+        } catch (Error e) {
+            throw new ExecutionError(e);
+        } catch (Exception e) {
+            throw new ExecutionException(e);
+        }
+    }
+}
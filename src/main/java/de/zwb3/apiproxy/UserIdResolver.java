@@ -1,155 +1,498 @@
 package de.zwb3.apiproxy;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.Weigher;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.JsonNode;
 import com.mashape.unirest.http.Unirest;
-import net.jcip.annotations.GuardedBy;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.apache.commons.lang3.tuple.Pair;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.time.Instant;
-import java.util.Optional;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Resolves twitch usernames into twitch user IDs using Twitch API v5.
  */
 public class UserIdResolver {
 
+    private static final Logger log = LoggerFactory.getLogger(UserIdResolver.class);
+
     /**
-     * Client API to make requests with.
+     * Client IDs to make requests with.
      */
-    private final String clientId;
+    private final ClientIdPool clientIdPool;
 
     /**
-     * Time of the last errored user ID lookup.
+     * The upstreams to send lookups to.
      */
-    @GuardedBy("this")
-    @Nullable
-    private volatile Instant lastExceptionTime;
+    private final UpstreamPool upstreamPool;
+
+    /**
+     * Executes the lookups, hedging slow ones and failing fast on upstream outages.
+     */
+    private final UpstreamExecutor upstreamExecutor;
+
+    /**
+     * Short-lived tier for login names that were not found, kept separate from {@link #userIdCache}.
+     */
+    private final NegativeLookupCache negativeLookupCache;
 
     /**
-     * Last exception (will pretty much always be an {@link ExecutionException})
+     * The cluster this node is part of, or {@code null} if not running in cluster mode.
      */
-    @GuardedBy("this")
     @Nullable
-    private Throwable lastException;
+    private final Cluster cluster;
+
+    /**
+     * Recent failures of user ID lookups, of other cluster nodes and of proxied requests. Only the lookups are
+     * counted, and decide when to back off lookups.
+     */
+    private final FailureTracker failureTracker;
+
+    /**
+     * Caches username -> userid mapping. Keys are lower case login names.
+     * Names that were not found are not cached in here, but in the {@link #negativeLookupCache}.
+     */
+    private final UserIdCache userIdCache;
+
+    /**
+     * Create a resolver with the default cache policy and size.
+     *
+     * @param clientIdPool        Client IDs to make requests with.
+     * @param upstreamPool        The upstreams to send lookups to.
+     * @param upstreamExecutor    Executes the lookups, hedging slow ones and failing fast on upstream outages.
+     * @param negativeLookupCache Short-lived tier for login names that were not found.
+     */
+    public UserIdResolver(ClientIdPool clientIdPool, UpstreamPool upstreamPool, UpstreamExecutor upstreamExecutor,
+                          NegativeLookupCache negativeLookupCache) {
+        this(clientIdPool, upstreamPool, upstreamExecutor, negativeLookupCache, CachePolicy.LRU,
+                DEFAULT_CACHE_MAXIMUM_WEIGHT, null, new FailureTracker(FailureTracker.DEFAULT_CAPACITY,
+                        FailureTracker.DEFAULT_WINDOW_SECONDS, FailureTracker.DEFAULT_MULTIPLIER));
+    }
+
+    /**
+     * @param clientIdPool        Client IDs to make requests with.
+     * @param upstreamPool        The upstreams to send lookups to.
+     * @param upstreamExecutor    Executes the lookups, hedging slow ones and failing fast on upstream outages.
+     * @param negativeLookupCache Short-lived tier for login names that were not found.
+     * @param cachePolicy         Eviction policy of the username cache.
+     * @param cacheMaximumWeight  Maximum size of the username cache, roughly in bytes without overhead.
+     * @param cluster             The cluster this node is part of, or {@code null} if not running in cluster mode.
+     *                            Only login names owned by this node are cached and looked up here.
+     * @param failureTracker      Counts the lookups to decide when to back off, and keeps the recent failures.
+     */
+    public UserIdResolver(ClientIdPool clientIdPool, UpstreamPool upstreamPool, UpstreamExecutor upstreamExecutor,
+                          NegativeLookupCache negativeLookupCache, CachePolicy cachePolicy,
+                          long cacheMaximumWeight, @Nullable Cluster cluster, FailureTracker failureTracker) {
+        this.clientIdPool = clientIdPool;
+        this.upstreamPool = upstreamPool;
+        this.upstreamExecutor = upstreamExecutor;
+        this.negativeLookupCache = negativeLookupCache;
+        this.cluster = cluster;
+        this.failureTracker = failureTracker;
+        // note that each entry has a implementation-dependendant overhead,
+        // which is why the default "512KiB" maximum should be taken with a big grain of salt
+        // in reality this cache should be expected to take 10 MiB of memory absolutely max.
+        this.userIdCache = cachePolicy.create(cacheMaximumWeight, CachePolicy.DEFAULT_EXPIRE_AFTER_WRITE_MILLIS,
+                this::lookupLoginNamesWithBackoff, ForkJoinPool.commonPool());
+    }
 
     /**
-     * @param clientId Client API to make requests with.
+     * Default maximum weight of the username cache, see {@link CachePolicy#weigh(String)}.
+     */
+    public static final long DEFAULT_CACHE_MAXIMUM_WEIGHT = 512 * 1024;
+
+    /**
+     * Maximum length of a twitch login name.
+     */
+    private static final int MAX_LOGIN_NAME_LENGTH = 25;
+
+    /**
+     * Check whether the given string can syntactically be a twitch login name, i.e. consists of 1 to 25
+     * ASCII letters, digits or underscores. Strings that fail this check can never be resolved to a user ID.
+     *
+     * @param loginName The string to check.
+     * @return true if the given string is a syntactically valid login name.
      */
-    public UserIdResolver(String clientId) {
-        this.clientId = clientId;
+    public static boolean isValidLoginName(String loginName) {
+        int length = loginName.length();
+        if (length < 1 || length > MAX_LOGIN_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = loginName.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') ||
+                    (c >= 'A' && c <= 'Z') ||
+                    (c >= '0' && c <= '9') ||
+                    c == '_';
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Caches username -> userid mapping.
+     * Maximum amount of login names the Twitch API accepts in a single users lookup.
      */
-    private final LoadingCache<String, Optional<Long>> userIdCache =
-            CacheBuilder.newBuilder()
-                    // weighs entries in bytes
-                    // note that each entry has a implementation-dependendant overhead,
-                    // which is why the "512KiB" maximum should be taken with a big grain of salt
-                    // in reality this cache should be expected to take 10 MiB of memory absolutely max.
-                    .weigher((Weigher<String, Optional<Long>>) (key, value) -> key.length() + 8)
-                    .maximumWeight(512 * 1024) // 512KiB, TODO config
-                    .expireAfterWrite(7, TimeUnit.DAYS)
-                    .build(new CacheLoader<String, Optional<Long>>() {
-                        @Override
-                        public Optional<Long> load(String loginName) throws Exception {
+    static final int MAX_LOGINS_PER_LOOKUP = 100;
 
-                            // https://dev.twitch.tv/docs/v5/reference/users/#get-users
-                            // https://dev.twitch.tv/docs/v5/#translating-from-user-names-to-user-ids
+    /**
+     * Look up the user IDs of the given login names like {@link #lookupLoginNames(List)}, unless too many lookups
+     * failed recently, and record the outcome with the {@link #failureTracker}.
+     * <p>
+     * This is the only backoff of lookups, they do not go through a circuit breaker of the
+     * {@link UpstreamExecutor}: a breaker would reject every lookup while it is open, the tracker rejects a share
+     * that grows with the failures and keeps sending enough lookups to notice when the upstream recovers.
+     *
+     * @throws LookupBackoffException If the lookup was not made because too many lookups failed recently.
+     */
+    private Map<String, Optional<Long>> lookupLoginNamesWithBackoff(List<? extends String> loginNames)
+            throws IOException {
+        if (!failureTracker.tryAcquire()) {
+            throw new LookupBackoffException("Backing off user ID lookups, "
+                    + failureTracker.getWindowFailures() + " failed in the last "
+                    + failureTracker.getWindowSeconds() + " seconds");
+        }
+        try {
+            Map<String, Optional<Long>> userIds = lookupLoginNames(loginNames);
+            failureTracker.recordSuccess();
+            return userIds;
+        } catch (ClientIdRateLimitedException | BadClientIDException e) {
+            // our client IDs ran out, the upstream is not at fault.
+            failureTracker.cancel();
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            failureTracker.recordFailure("user lookup", e);
+            throw e;
+        }
+    }
+
+    /**
+     * Look up the user IDs of the given login names with a single request.
+     * <p>
+     * If the client ID the request was made with turns out to be invalid or rate limited, the request is retried
+     * with another client ID from the {@link ClientIdPool}.
+     *
+     * @param loginNames Up to {@link #MAX_LOGINS_PER_LOOKUP} lower case login names.
+     * @return A map containing an entry for every given login name, with an empty optional for names
+     * that were not found.
+     * @throws IOException                  If there is some connection or protocol error, or a bad response.
+     * @throws BadClientIDException         If all configured client IDs are invalid.
+     * @throws ClientIdRateLimitedException If all configured client IDs are rate limited.
+     */
+    private Map<String, Optional<Long>> lookupLoginNames(List<? extends String> loginNames) throws IOException {
 
-                            // this errors when there is some connection or protocol error,
-                            // or if the response is not valid JSON.
-                            HttpResponse<JsonNode> jsonResponse = Unirest.get("https://api.twitch.tv/kraken/users")
-                                    .queryString("login", loginName)
-                                    .header("Accept", "application/vnd.twitchtv.v5+json")
-                                    .header("Client-ID", clientId)
-                                    .asJson();
+        // https://dev.twitch.tv/docs/v5/reference/users/#get-users
+        // https://dev.twitch.tv/docs/v5/#translating-from-user-names-to-user-ids
 
-                            JSONObject responseObject = jsonResponse.getBody().getObject();
+        String joinedLoginNames = String.join(",", loginNames);
+        LookupResponse lookupResponse = null;
+        for (int attempt = 0; attempt <= clientIdPool.size(); attempt++) {
+            // taken before the call, so that waiting for a token is not part of the measured latency.
+            String clientId = clientIdPool.acquire();
 
-                            // separate explicit handling for bad client IDs (to return error code 400).
-                            // very defensive programming regarding the JSON, since it could technically be anything.
-                            if (jsonResponse.getStatus() == 400 &&
-                                    responseObject != null &&
-                                    responseObject.has("message") &&
-                                    responseObject.get("message") instanceof String) {
+            // this errors when there is some connection or protocol error,
+            // or if the response is not valid JSON.
+            // lookups are idempotent and are therefore hedged, if another client ID has a permit left.
+            lookupResponse = upstreamExecutor.execute("user lookup", true, false,
+                    clientIdPool.attempts(clientId, id -> lookupAttempt(joinedLoginNames, id)),
+                    r -> r.response.getStatus() >= 500);
 
-                                // sample response:
-                                // {"error":"Bad Request","status":400,"message":"Invalid client id specified"}
-                                String errorMessage = responseObject.getString("message");
+            HttpResponse<JsonNode> response = lookupResponse.response;
+            if (ClientIdPool.isBadClientIdResponse(response.getStatus(),
+                    response.getBody() != null ? response.getBody().toString() : null)) {
+                // try again with the next client ID, until all of them are quarantined.
+                clientIdPool.quarantine(lookupResponse.clientId);
+                continue;
+            }
+            if (lookupResponse.response.getStatus() == 429) {
+                clientIdPool.recordRateLimited(lookupResponse.clientId, rateLimitResetNanos(lookupResponse.response));
+                continue;
+            }
+            break;
+        }
 
-                                if (errorMessage.equals("No client id specified") ||
-                                        errorMessage.equals("Invalid client id specified")) {
-                                    // Bad Request
-                                    throw new BadClientIDException("Supplied Client-ID " + clientId + " is invalid or empty!");
-                                }
-                            }
+        HttpResponse<JsonNode> jsonResponse = lookupResponse.response;
 
-                            // generic bad response code handling
-                            if (jsonResponse.getStatus() != 200) {
-                                throw new IOException(String.format("Bad Twitch response - %d %s",
-                                        jsonResponse.getStatus(), jsonResponse.getStatusText()));
-                            }
+        // generic bad response code handling
+        if (jsonResponse.getStatus() != 200) {
+            clientIdPool.recordFailure(lookupResponse.clientId);
+            throw new IOException(String.format("Bad Twitch response - %d %s",
+                    jsonResponse.getStatus(), jsonResponse.getStatusText()));
+        }
+        clientIdPool.recordSuccess(lookupResponse.clientId);
 
-                            // at this point, the validation made sure that we got valid JSON
-                            // + we got a response code of 200.
-                            JSONArray userResponseList = responseObject.getJSONArray("users");
-                            if (userResponseList.length() < 1) {
-                                // user name could not be mapped to any user ID (invalid username/not found)
-                                return Optional.empty();
-                            }
+        JSONObject responseObject = jsonResponse.getBody().getObject();
 
-                            return Optional.of(Long.parseLong(userResponseList.getJSONObject(0).getString("_id")));
+        // user names that are not in the response could not be mapped to any user ID (invalid username/not found)
+        Map<String, Optional<Long>> result = new HashMap<>();
+        for (String loginName : loginNames) {
+            result.put(loginName, Optional.empty());
+        }
 
-                        }
-                    });
+        // at this point, the validation made sure that we got valid JSON
+        // + we got a response code of 200.
+        JSONArray userResponseList = responseObject.getJSONArray("users");
+        for (int i = 0; i < userResponseList.length(); i++) {
+            JSONObject user = userResponseList.getJSONObject(i);
+            String name = user.getString("name").toLowerCase(Locale.ROOT);
+            if (result.containsKey(name)) {
+                result.put(name, Optional.of(Long.parseLong(user.getString("_id"))));
+            }
+        }
+        return result;
+    }
 
+    /**
+     * @param response A {@code 429 Too Many Requests} response.
+     * @return The {@link System#nanoTime()} at which the rate limit is reset, according to the
+     * {@code Ratelimit-Reset} header (in epoch seconds), or one minute from now if there is no such header.
+     */
+    private static long rateLimitResetNanos(HttpResponse<JsonNode> response) {
+        if (response.getHeaders() != null) {
+            for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+                if ("Ratelimit-Reset".equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                    return ClientIdPool.rateLimitResetNanos(header.getValue().get(0));
+                }
+            }
+        }
+        return ClientIdPool.rateLimitResetNanos(null);
+    }
+
+    /**
+     * Creates a single, abortable attempt at looking up the given login names.
+     *
+     * @param loginName Twitch login name to look up, or multiple comma-separated login names.
+     * @param clientId  The client ID from the {@link ClientIdPool} to make the request with.
+     * @return The attempt, which can be passed to the {@link UpstreamExecutor}.
+     */
+    private HedgedAttempt<LookupResponse> lookupAttempt(String loginName, String clientId) {
+        return new HedgedAttempt<LookupResponse>() {
+            private volatile Future<HttpResponse<JsonNode>> future;
+            private volatile boolean aborted;
+
+            @Override
+            public LookupResponse call() throws IOException {
+                UpstreamPool.Upstream upstream = upstreamPool.choose();
+                long start = upstream.begin();
+                boolean success = false;
+                try {
+                    future = Unirest.get(upstream.getBaseUrl() + "/kraken/users")
+                            .queryString("login", loginName)
+                            .header("Accept", "application/vnd.twitchtv.v5+json")
+                            .header("Client-ID", clientId)
+                            .asJsonAsync();
+                    HttpResponse<JsonNode> response = future.get();
+                    success = response.getStatus() < 500;
+                    return new LookupResponse(clientId, response);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted during user ID lookup");
+                } catch (ExecutionException | CancellationException e) {
+                    clientIdPool.recordFailure(clientId);
+                    throw new IOException("User ID lookup for " + loginName + " failed", e);
+                } finally {
+                    if (aborted && !success) {
+                        upstreamPool.abandon(upstream);
+                    } else {
+                        upstreamPool.complete(upstream, start, success);
+                    }
+                }
+            }
+
+            @Override
+            public void abort() {
+                aborted = true;
+                Future<HttpResponse<JsonNode>> future = this.future;
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        };
+    }
 
     /**
      * Translates a twitch login name into its corresponding user ID.
+     * <p>
+     * Syntactically invalid login names and names that were recently not found are answered
+     * without making an upstream request.
      *
      * @param username Twitch login name to translate.
      * @return An optional that contains the user ID, if the username was found. An empty optional otherwise.
      * @throws ExecutionException If there was an error querying the username from the API.
      */
     public Optional<Long> translateUsername(String username) throws ExecutionException {
-        try {
-            return userIdCache.get(username);
-        } catch (Exception e) {
-            synchronized(this) {
-                lastExceptionTime = Instant.now();
-                lastException = e.getCause();
+        if (!isValidLoginName(username)) {
+            return Optional.empty();
+        }
+
+        // login names are case insensitive on twitch.
+        String loginName = username.toLowerCase(Locale.ROOT);
+        if (negativeLookupCache.contains(loginName)) {
+            return Optional.empty();
+        }
+
+        if (cluster != null && !cluster.isLocal(loginName)) {
+            return translateUsernames(Collections.singletonList(username)).get(username);
+        }
+
+        Optional<Long> userId = userIdCache.get(loginName);
+        if (!userId.isPresent()) {
+            negativeLookupCache.put(loginName);
+        }
+        return userId;
+    }
+
+    /**
+     * Translates multiple twitch login names into their corresponding user IDs. Names that are not cached yet
+     * are looked up with as few upstream requests as possible (up to 100 names per request).
+     *
+     * @param usernames Twitch login names to translate.
+     * @return A map containing an entry for every given username, with an empty optional for names
+     * that were not found.
+     * @throws ExecutionException If there was an error querying the usernames from the API.
+     */
+    public Map<String, Optional<Long>> translateUsernames(Collection<String> usernames) throws ExecutionException {
+        return translateUsernames(usernames, cluster != null);
+    }
+
+    /**
+     * Translates multiple twitch login names like {@link #translateUsernames(Collection)}, but using only the
+     * cache of this node, even in cluster mode. Used by the internal endpoint other nodes ask for the login
+     * names owned by this node.
+     *
+     * @param usernames Twitch login names to translate.
+     * @return A map containing an entry for every given username, with an empty optional for names
+     * that were not found.
+     * @throws ExecutionException If there was an error querying the usernames from the API.
+     */
+    public Map<String, Optional<Long>> translateUsernamesLocally(Collection<String> usernames)
+            throws ExecutionException {
+        return translateUsernames(usernames, false);
+    }
+
+    private Map<String, Optional<Long>> translateUsernames(Collection<String> usernames, boolean routed)
+            throws ExecutionException {
+        Map<String, Optional<Long>> result = new HashMap<>();
+        Set<String> loginNames = new HashSet<>();
+        for (String username : usernames) {
+            if (!isValidLoginName(username)) {
+                result.put(username, Optional.empty());
+                continue;
             }
-            throw e;
+            String loginName = username.toLowerCase(Locale.ROOT);
+            if (negativeLookupCache.contains(loginName)) {
+                result.put(username, Optional.empty());
+                continue;
+            }
+            loginNames.add(loginName);
         }
+
+        Map<String, Optional<Long>> userIds = routed ? resolveRouted(loginNames) : resolveLocally(loginNames);
+        for (String username : usernames) {
+            result.computeIfAbsent(username, u -> userIds.get(u.toLowerCase(Locale.ROOT)));
+        }
+        return result;
     }
 
     /**
-     * @return the time and throwable of the last exception that occurred during user ID lookup.
+     * Resolve login names through the cache of this node, looking up the ones that are not cached.
      */
-    public synchronized Pair<Instant, Throwable> getLastException() {
-        return new ImmutablePair<>(lastExceptionTime, lastException);
+    private Map<String, Optional<Long>> resolveLocally(Collection<String> loginNames) throws ExecutionException {
+        Map<String, Optional<Long>> userIds = userIdCache.getAll(loginNames);
+        for (Map.Entry<String, Optional<Long>> entry : userIds.entrySet()) {
+            if (!entry.getValue().isPresent()) {
+                negativeLookupCache.put(entry.getKey());
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * Resolve login names through the nodes of the {@link #cluster} that own them. If the owner of some names
+     * cannot be reached, those are resolved locally instead.
+     */
+    private Map<String, Optional<Long>> resolveRouted(Collection<String> loginNames) throws ExecutionException {
+        Map<String, Optional<Long>> userIds = new HashMap<>();
+        List<String> local = new ArrayList<>();
+        for (Map.Entry<String, List<String>> owned : cluster.groupByOwner(loginNames).entrySet()) {
+            String owner = owned.getKey();
+            if (owner.equals(cluster.getSelf())) {
+                local.addAll(owned.getValue());
+                continue;
+            }
+            try {
+                Map<String, Optional<Long>> remoteUserIds = cluster.lookup(owner, owned.getValue());
+                for (String loginName : owned.getValue()) {
+                    Optional<Long> userId = remoteUserIds.get(loginName);
+                    if (!userId.isPresent()) {
+                        // cheap to keep here as well, and saves the internal request next time.
+                        negativeLookupCache.put(loginName);
+                    }
+                    userIds.put(loginName, userId);
+                }
+            } catch (IOException e) {
+                // resolved locally, so not a failed lookup.
+                failureTracker.recordRecentFailure("cluster node " + owner, e);
+                log.warn("Cluster node {} is unavailable, resolving {} login names locally: {}", owner,
+                        owned.getValue().size(), e.toString());
+                local.addAll(owned.getValue());
+            }
+        }
+        if (!local.isEmpty()) {
+            userIds.putAll(resolveLocally(local));
+        }
+        return userIds;
+    }
+
+    /**
+     * @return The recent failures of user ID lookups and of other cluster nodes.
+     */
+    public FailureTracker getFailureTracker() {
+        return failureTracker;
     }
 
     /**
      * @return The current (approximate) amount of mappings in the cache.
-     * @see LoadingCache#size()
+     * @see UserIdCache#size()
      */
     public long getCacheCount() {
         return this.userIdCache.size();
     }
 
-}
\ No newline at end of file
+    /**
+     * @return The client IDs lookups are made with.
+     */
+    public ClientIdPool getClientIdPool() {
+        return clientIdPool;
+    }
+
+    /**
+     * @return The current (approximate) amount of login names known to not exist.
+     * @see NegativeLookupCache#size()
+     */
+    public long getNegativeCacheCount() {
+        return negativeLookupCache.size();
+    }
+
+    /**
+     * A users lookup response, together with the client ID the lookup was made with.
+     */
+    private static class LookupResponse {
+        private final String clientId;
+        private final HttpResponse<JsonNode> response;
+
+        private LookupResponse(String clientId, HttpResponse<JsonNode> response) {
+            this.clientId = clientId;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package de.zwb3.apiproxy;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.*;
+
+public class AccessLogTest {
+
+    private File folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("access-log-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(folder);
+    }
+
+    @Test
+    public void testMillisFormatting() {
+        assertEquals("0.000", RequestTiming.appendMillis(new StringBuilder(), 999).toString());
+        assertEquals("0.012", RequestTiming.appendMillis(new StringBuilder(), 12_345).toString());
+        assertEquals("45.310", RequestTiming.appendMillis(new StringBuilder(), 45_310_000).toString());
+        assertEquals("1234.500", RequestTiming.appendMillis(new StringBuilder(), 1_234_500_000L).toString());
+    }
+
+    @Test
+    public void testServerTiming() {
+        RequestTiming timing = new RequestTiming(0);
+        assertEquals("total;dur=2.000", timing.toServerTiming(2_000_000));
+
+        timing.resolved(null, "/kraken/streams/22484632", 120_000);
+        timing.upstreamResponded(45_310_000);
+        assertEquals("resolve;dur=0.120, upstream;dur=45.310, total;dur=45.600",
+                timing.toServerTiming(45_600_000));
+    }
+
+    @Test
+    public void testRecordsAreWritten() throws IOException {
+        File file = new File(folder, "access.log");
+        AccessLog accessLog = new AccessLog(true, file.getPath(), 16, 100, 5);
+
+        RequestTiming timing = new RequestTiming(0);
+        timing.resolved(new ApiRoute("GET", "/kraken/streams/:channel"), "/kraken/streams/22484632", 120_000);
+        timing.upstreamResponded(45_310_000);
+        timing.setBytes(1234);
+        assertTrue(accessLog.record("GET", "/kraken/streams/forsen", 200, timing, 45_600_000));
+        assertTrue(accessLog.record("GET", "/apiproxy/status", 200, new RequestTiming(0), 1_000_000));
+        accessLog.shutdown();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith(
+                " GET /kraken/streams/:channel /kraken/streams/22484632 200 1234 0.120 45.310 45.600"));
+        assertTrue(lines.get(1), lines.get(1).endsWith(" GET - /apiproxy/status 200 - - - 1.000"));
+    }
+
+    @Test
+    public void testDisabledAccessLogDropsEverything() {
+        AccessLog accessLog = new AccessLog(false, "unused.log", 16, 100, 5);
+        assertFalse(accessLog.record("GET", "/kraken", 200, new RequestTiming(0), 0));
+        accessLog.shutdown();
+    }
+
+    /**
+     * @return An implementation of the given servlet interface that answers calls by method name and arguments.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T fake(Class<T> type, BiFunction<String, Object[], Object> methods) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> methods.apply(method.getName(), args));
+    }
+
+    @Test
+    public void testAsyncRequestsAreRecordedOnCompletion() throws Exception {
+        File file = new File(folder, "access.log");
+        AccessLog accessLog = new AccessLog(true, file.getPath(), 16, 100, 5);
+        AccessLogFilter filter = new AccessLogFilter(accessLog);
+
+        List<AsyncListener> listeners = new ArrayList<>();
+        AsyncContext asyncContext = fake(AsyncContext.class, (method, args) -> {
+            if (method.equals("addListener")) {
+                listeners.add((AsyncListener) args[0]);
+            }
+            return null;
+        });
+        HttpServletRequest request = fake(HttpServletRequest.class, (method, args) -> {
+            switch (method) {
+                case "getMethod":
+                    return "GET";
+                case "getRequestURI":
+                    return "/apiproxy/watch/streams/forsen";
+                case "isAsyncStarted":
+                    return true;
+                case "getAsyncContext":
+                    return asyncContext;
+                default:
+                    return null;
+            }
+        });
+        AtomicInteger status = new AtomicInteger(200);
+        HttpServletResponse response = fake(HttpServletResponse.class, (method, args) -> {
+            switch (method) {
+                case "getStatus":
+                    return status.get();
+                case "isCommitted":
+                case "containsHeader":
+                    return true;
+                default:
+                    return null;
+            }
+        });
+
+        // the request thread returns while the stream is still open: nothing is recorded yet.
+        filter.doFilter(request, response, (req, res) -> {
+        });
+        assertEquals(1, listeners.size());
+
+        status.set(503);
+        listeners.get(0).onComplete(new AsyncEvent(asyncContext));
+        accessLog.shutdown();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains(" GET - /apiproxy/watch/streams/forsen 503 "));
+    }
+
+    @Test
+    public void testRollingFile() throws IOException {
+        Path path = folder.toPath().resolve("access.log");
+        try (RollingFile file = new RollingFile(path, 10, 2)) {
+            for (int i = 0; i < 5; i++) {
+                // each line is exactly 10 bytes, so every line goes into a file of its own.
+                file.appendLine("line " + i + "....");
+            }
+        }
+
+        assertEquals("line 4....", Files.readAllLines(path).get(0));
+        assertEquals("line 3....", Files.readAllLines(path.resolveSibling("access.log.1")).get(0));
+        assertEquals("line 2....", Files.readAllLines(path.resolveSibling("access.log.2")).get(0));
+        assertFalse(Files.exists(path.resolveSibling("access.log.3")));
+    }
+}
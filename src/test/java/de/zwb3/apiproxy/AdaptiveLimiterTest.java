@@ -0,0 +1,255 @@
+package de.zwb3.apiproxy;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveLimiterTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final String ROUTE = "GET /kraken/streams/:channel";
+
+    /**
+     * Record a sample as if the limiter was fully used.
+     */
+    private static void sample(AdaptiveLimiter limiter, String routeKey, long latencyNanos) {
+        limiter.update(routeKey, latencyNanos, false, limiter.getLimit());
+    }
+
+    private static void sample(AdaptiveLimiter limiter, long latencyNanos) {
+        sample(limiter, ROUTE, latencyNanos);
+    }
+
+    @Test
+    public void testLimitGrowsWhileLatencyIsStable() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, 5, 200);
+        for (int i = 0; i < 100; i++) {
+            sample(limiter, 10 * MILLIS);
+        }
+        assertEquals(200, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhileUnused() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, 5, 200);
+        for (int i = 0; i < 100; i++) {
+            limiter.update(ROUTE, 10 * MILLIS, false, 2);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitShrinksWhenLatencyIncreases() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(100, 5, 200);
+        sample(limiter, 10 * MILLIS);
+        for (int i = 0; i < 200; i++) {
+            sample(limiter, 30 * MILLIS);
+        }
+        // settles where only a few requests are queued.
+        assertTrue(limiter.getLimit() < 10);
+    }
+
+    @Test
+    public void testSlowRoutesAreComparedToThemselves() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(20, 5, 200);
+        for (int i = 0; i < 100; i++) {
+            sample(limiter, 10 * MILLIS);
+            // always ten times slower, but not getting any slower.
+            sample(limiter, "GET /kraken/search/channels", 100 * MILLIS);
+        }
+        assertEquals(200, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitShrinksOnDrops() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(100, 5, 200);
+        for (int i = 0; i < 10; i++) {
+            limiter.update(ROUTE, 0, true, 100);
+        }
+        assertEquals(80, limiter.getLimit());
+    }
+
+    @Test
+    public void testConcurrentDropsAreNotSkipped() throws Exception {
+        AdaptiveLimiter expected = new AdaptiveLimiter(1000, 1, 1000);
+        for (int i = 0; i < 200; i++) {
+            expected.update(ROUTE, 0, true, 1000);
+        }
+
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1000, 1, 1000);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 25; i++) {
+                        limiter.update(ROUTE, 0, true, 1000);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // drops of threads that found the limit being updated were applied by the updating thread.
+        assertEquals(expected.getLimit(), limiter.getLimit());
+    }
+
+    @Test
+    public void testPriorityShares() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(10, 5, 200);
+        assertEquals(5, acquireAll(limiter, AdaptiveLimiter.Priority.LOW));
+        assertEquals(4, acquireAll(limiter, AdaptiveLimiter.Priority.NORMAL));
+        assertEquals(1, acquireAll(limiter, AdaptiveLimiter.Priority.HIGH));
+        assertEquals(10, limiter.getInFlight());
+
+        limiter.release();
+        limiter.release();
+        assertFalse(limiter.tryAcquire(AdaptiveLimiter.Priority.LOW));
+        assertTrue(limiter.tryAcquire(AdaptiveLimiter.Priority.NORMAL));
+    }
+
+    private static int acquireAll(AdaptiveLimiter limiter, AdaptiveLimiter.Priority priority) {
+        int acquired = 0;
+        while (limiter.tryAcquire(priority)) {
+            acquired++;
+        }
+        return acquired;
+    }
+
+    @Test
+    public void testBadLimits() {
+        try {
+            new AdaptiveLimiter(5, 10, 100);
+            fail("initial limit below the minimum was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Load a slow upstream that can only serve one request at a time with many more concurrent clients than
+     * it can handle, through the running proxy with and without load shedding. Without it, every request queues
+     * behind all others; with it, the excess requests are rejected and the admitted ones stay fast.
+     */
+    @Test
+    public void testAdmittedLatencyStaysFlatUnderOverload() throws Exception {
+        Object serviceLock = new Object();
+        try (StubUpstream upstream = new StubUpstream(exchange -> {
+            synchronized (serviceLock) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            StubUpstream.respond(exchange, 200, "{}");
+        })) {
+            LoadResult unlimited;
+            try (RunningProxy proxy = new RunningProxy(upstream, "loadShedding.enabled=false")) {
+                unlimited = load(proxy.getUrl());
+            }
+            LoadResult limited;
+            try (RunningProxy proxy = new RunningProxy(upstream,
+                    "loadShedding.initialLimit=20",
+                    "loadShedding.minLimit=2",
+                    "loadShedding.maxLimit=200")) {
+                limited = load(proxy.getUrl());
+            }
+
+            assertEquals(0, unlimited.rejected);
+            assertTrue("limited: " + limited + ", unlimited: " + unlimited, limited.rejected > 0);
+            assertTrue("limited: " + limited + ", unlimited: " + unlimited,
+                    limited.p99Nanos * 2 < unlimited.p99Nanos);
+        }
+    }
+
+    private static class LoadResult {
+        final long p99Nanos;
+        final int admitted;
+        final int rejected;
+
+        LoadResult(long p99Nanos, int admitted, int rejected) {
+            this.p99Nanos = p99Nanos;
+            this.admitted = admitted;
+            this.rejected = rejected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("p99 %d ms, %d admitted, %d rejected",
+                    TimeUnit.NANOSECONDS.toMillis(p99Nanos), admitted, rejected);
+        }
+    }
+
+    private static LoadResult load(String proxyUrl) throws Exception {
+        int clients = 32;
+        long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        // skip the first half second, the limit starts out too high.
+        long measureFromNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger rejected = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try (CloseableHttpClient client = HttpClients.custom()
+                .setMaxConnTotal(clients)
+                .setMaxConnPerRoute(clients)
+                .setDefaultRequestConfig(RequestConfig.custom().setSocketTimeout(10_000).build())
+                .build()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                futures.add(executor.submit(() -> {
+                    while (System.nanoTime() < endNanos) {
+                        HttpGet request = new HttpGet(proxyUrl + "/kraken");
+                        request.setHeader("Client-ID", "test");
+                        long start = System.nanoTime();
+                        int status;
+                        try (CloseableHttpResponse response = client.execute(request)) {
+                            status = response.getStatusLine().getStatusCode();
+                            EntityUtils.consume(response.getEntity());
+                        }
+                        long latency = System.nanoTime() - start;
+                        if (status == 503) {
+                            rejected.incrementAndGet();
+                            // a well-behaved client backs off, see Retry-After.
+                            Thread.sleep(5);
+                            continue;
+                        }
+                        assertEquals(200, status);
+                        if (start > measureFromNanos) {
+                            latencies.add(latency);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        long p99 = sorted.get((int) (sorted.size() * 0.99));
+        return new LoadResult(p99, sorted.size(), rejected.get());
+    }
+}
@@ -0,0 +1,78 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class BatchControllerTest {
+
+    private static JsonObject write(BatchController.BatchResult result) throws IOException {
+        StringWriter out = new StringWriter();
+        result.writeTo(new JsonWriter(out));
+        return new JsonParser().parse(out.toString()).getAsJsonObject();
+    }
+
+    @Test
+    public void testJsonBodiesAreEmbedded() throws IOException {
+        JsonObject written = write(new BatchController.BatchResult(200, "application/json; charset=utf-8",
+                "{\"stream\":null}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(200, written.get("status").getAsInt());
+        assertTrue(written.get("body").getAsJsonObject().get("stream").isJsonNull());
+    }
+
+    @Test
+    public void testOtherBodiesAreStrings() throws IOException {
+        JsonObject written = write(new BatchController.BatchResult(502, "text/html",
+                "<h1>Bad Gateway</h1>".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("<h1>Bad Gateway</h1>", written.get("body").getAsString());
+
+        written = write(new BatchController.BatchResult(204, null, new byte[0]));
+        assertTrue(written.get("body").isJsonNull());
+    }
+
+    @Test
+    public void testErrorsAreMappedToStatusCodes() throws IOException {
+        JsonObject notFound = write(BatchController.BatchResult.error(
+                new UncheckedExecutionException(new NoSuchUserException("forsen"))));
+        assertEquals(404, notFound.get("status").getAsInt());
+        assertEquals(404, notFound.get("body").getAsJsonObject().get("status").getAsInt());
+
+        assertEquals(503, write(BatchController.BatchResult.error(
+                new CircuitBreakerOpenException("GET /kraken/streams/:channel"))).get("status").getAsInt());
+        assertEquals(503, write(BatchController.BatchResult.error(
+                new OverloadedException("Too many batch calls in progress"))).get("status").getAsInt());
+        // same as a single proxied request would get.
+        assertEquals(500, write(BatchController.BatchResult.error(
+                new ExecutionException(new IOException("Connection reset")))).get("status").getAsInt());
+    }
+
+    @Test
+    public void testMalformedJsonBodiesAreStrings() throws IOException {
+        JsonObject written = write(new BatchController.BatchResult(200, "application/json",
+                "{\"stream\":".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("{\"stream\":", written.get("body").getAsString());
+
+        written = write(new BatchController.BatchResult(200, "application/json",
+                "{}{}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("{}{}", written.get("body").getAsString());
+    }
+
+    @Test
+    public void testIsJson() {
+        assertTrue(BatchController.BatchResult.isJson("{\"stream\":null}"));
+        assertTrue(BatchController.BatchResult.isJson(" [1, 2] \n"));
+        assertFalse(BatchController.BatchResult.isJson("{\"stream\":"));
+        assertFalse(BatchController.BatchResult.isJson("{stream: null}"));
+        assertFalse(BatchController.BatchResult.isJson("[1] [2]"));
+        assertFalse(BatchController.BatchResult.isJson(""));
+    }
+}
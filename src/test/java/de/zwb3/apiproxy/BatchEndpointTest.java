@@ -0,0 +1,222 @@
+package de.zwb3.apiproxy;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends batch requests to the running application, against a stub upstream that counts the calls it receives.
+ */
+public class BatchEndpointTest {
+
+    private static final int CONCURRENCY = 2;
+
+    private static final Map<String, AtomicInteger> streamRequests = new ConcurrentHashMap<>();
+    private static final List<Integer> loginsPerLookup = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private static StubUpstream upstream;
+    private static RunningProxy proxy;
+    private static CloseableHttpClient client;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        upstream = new StubUpstream(BatchEndpointTest::handle);
+        proxy = new RunningProxy(upstream,
+                "batch.concurrency=" + CONCURRENCY,
+                "batch.maxItems=250",
+                "prefetch.enabled=false");
+        client = HttpClients.createDefault();
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        client.close();
+        proxy.close();
+        upstream.close();
+    }
+
+    @Before
+    public void reset() {
+        streamRequests.clear();
+        loginsPerLookup.clear();
+        maxInFlight.set(0);
+    }
+
+    /**
+     * User IDs are derived from the username, so that the tests can tell which call a result belongs to.
+     */
+    private static String userId(String username) {
+        return Integer.toString(username.hashCode() & Integer.MAX_VALUE);
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String query = exchange.getRequestURI().getQuery();
+
+        if (path.equals("/kraken/users")) {
+            String[] logins = query.substring(query.indexOf("login=") + "login=".length()).split(",");
+            loginsPerLookup.add(logins.length);
+            JsonArray users = new JsonArray();
+            for (String login : logins) {
+                JsonObject user = new JsonObject();
+                user.addProperty("name", login);
+                user.addProperty("_id", userId(login));
+                users.add(user);
+            }
+            JsonObject body = new JsonObject();
+            body.addProperty("_total", logins.length);
+            body.add("users", users);
+            StubUpstream.respond(exchange, 200, body.toString());
+            return;
+        }
+
+        streamRequests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+        int running = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(running, Math::max);
+        try {
+            if (query != null && query.startsWith("delay=")) {
+                Thread.sleep(Long.parseLong(query.substring("delay=".length())));
+            }
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            StubUpstream.respond(exchange, 200, "{\"stream\":{\"_id\":" + id + "}}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static String item(String channel, String query) {
+        JsonObject item = new JsonObject();
+        item.addProperty("path", "/kraken/streams/" + channel);
+        if (query != null) {
+            item.addProperty("query", query);
+        }
+        return item.toString();
+    }
+
+    private static String batch(List<String> items, String format) throws IOException {
+        HttpPost post = new HttpPost(proxy.getUrl() + "/apiproxy/batch" + (format != null ? "?format=" + format : ""));
+        post.setHeader("Client-ID", "test");
+        post.setEntity(new StringEntity("[" + String.join(",", items) + "]", ContentType.APPLICATION_JSON));
+        try (CloseableHttpResponse response = client.execute(post)) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            return EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    private static void assertStream(String channel, JsonElement result) {
+        assertEquals(200, result.getAsJsonObject().get("status").getAsInt());
+        assertEquals(userId(channel), result.getAsJsonObject().getAsJsonObject("body")
+                .getAsJsonObject("stream").get("_id").getAsString());
+    }
+
+    @Test
+    public void testResultsAreInRequestOrder() throws IOException {
+        List<String> items = new ArrayList<>();
+        // the first call takes the longest, but must still be the first result.
+        items.add(item("orderfirst", "delay=300"));
+        items.add(item("ordersecond", null));
+        items.add(item("orderthird", null));
+
+        JsonArray results = new JsonParser().parse(batch(items, null)).getAsJsonArray();
+        assertEquals(3, results.size());
+        assertStream("orderfirst", results.get(0));
+        assertStream("ordersecond", results.get(1));
+        assertStream("orderthird", results.get(2));
+    }
+
+    @Test
+    public void testConcurrencyIsLimited() throws IOException {
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            items.add(item("concurrent" + i, "delay=100"));
+        }
+
+        JsonArray results = new JsonParser().parse(batch(items, null)).getAsJsonArray();
+        assertEquals(6, results.size());
+        for (int i = 0; i < 6; i++) {
+            assertStream("concurrent" + i, results.get(i));
+        }
+        assertEquals(6, streamRequests.size());
+        assertTrue("at most " + CONCURRENCY + " calls at once, but were " + maxInFlight.get(),
+                maxInFlight.get() <= CONCURRENCY);
+    }
+
+    @Test
+    public void testIdenticalGetsAreMadeOnce() throws IOException {
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            items.add(item("shared", null));
+        }
+        items.add(item("notshared", null));
+
+        JsonArray results = new JsonParser().parse(batch(items, null)).getAsJsonArray();
+        assertEquals(4, results.size());
+        for (int i = 0; i < 3; i++) {
+            assertStream("shared", results.get(i));
+        }
+        assertStream("notshared", results.get(3));
+        assertEquals(1, streamRequests.get("/kraken/streams/" + userId("shared")).get());
+        assertEquals(1, streamRequests.get("/kraken/streams/" + userId("notshared")).get());
+    }
+
+    @Test
+    public void testNdjson() throws IOException {
+        List<String> items = new ArrayList<>();
+        items.add(item("ndjsonfirst", null));
+        items.add(item("ndjsonsecond", null));
+
+        String[] lines = batch(items, "ndjson").split("\n");
+        assertEquals(2, lines.length);
+        assertStream("ndjsonfirst", new JsonParser().parse(lines[0]));
+        assertStream("ndjsonsecond", new JsonParser().parse(lines[1]));
+    }
+
+    @Test
+    public void testUsernamesAreResolvedInChunks() throws IOException {
+        int count = 250;
+        List<String> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(item("chunk" + i, null));
+        }
+
+        JsonArray results = new JsonParser().parse(batch(items, null)).getAsJsonArray();
+        assertEquals(count, results.size());
+        for (int i = 0; i < count; i++) {
+            assertStream("chunk" + i, results.get(i));
+        }
+
+        // all usernames were looked up before the calls, each one once, at most 100 per lookup.
+        assertEquals(count, loginsPerLookup.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(3, loginsPerLookup.size());
+        for (int logins : loginsPerLookup) {
+            assertTrue(logins <= UserIdResolver.MAX_LOGINS_PER_LOOKUP);
+        }
+    }
+}
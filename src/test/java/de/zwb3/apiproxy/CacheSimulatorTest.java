@@ -0,0 +1,56 @@
+package de.zwb3.apiproxy;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CacheSimulatorTest {
+
+    /**
+     * 50 hot channels requested over and over, between scans over 200 channels that are only requested once.
+     */
+    private static List<String> scanTrace() {
+        List<String> trace = new ArrayList<>();
+        int scanned = 0;
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 50; i++) {
+                trace.add("hot_" + i);
+            }
+            for (int i = 0; i < 200; i++) {
+                trace.add("scan_" + scanned++);
+            }
+        }
+        return trace;
+    }
+
+    @Test
+    public void testReadTrace() {
+        assertEquals(Arrays.asList("forsen", "pajlada", "nymn"), CacheSimulator.readTrace(Arrays.asList(
+                "# comment", "Forsen", "", "2018-12-01T12:00:00Z\tpajlada", "  nymn  ")));
+    }
+
+    @Test
+    public void testHitRate() throws Exception {
+        List<String> trace = new ArrayList<>(Collections.nCopies(10, "forsen"));
+        trace.addAll(Collections.nCopies(10, "pajlada"));
+        CacheSimulator.Result result = CacheSimulator.simulate(trace, CachePolicy.LRU, 1024);
+        assertEquals(0.9, result.getHitRate(), 0.0001);
+        assertEquals(2, result.getEntries());
+    }
+
+    @Test
+    public void testTinyLfuKeepsHotEntriesDuringScans() throws Exception {
+        List<String> trace = scanTrace();
+        // room for roughly 100 entries
+        long maximumWeight = 100 * CachePolicy.weigh("scan_1000");
+
+        double lru = CacheSimulator.simulate(trace, CachePolicy.LRU, maximumWeight).getHitRate();
+        double tinyLfu = CacheSimulator.simulate(trace, CachePolicy.TINY_LFU, maximumWeight).getHitRate();
+        assertTrue("lru " + lru + ", tiny_lfu " + tinyLfu, tinyLfu > lru + 0.1);
+    }
+}
@@ -0,0 +1,126 @@
+package de.zwb3.apiproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ClientIdPoolTest {
+
+    @Test
+    public void testParse() {
+        assertEquals(Arrays.asList("abc", "def"), ClientIdPool.parse(" abc, def ,,"));
+        assertEquals(Collections.singletonList("abc"), ClientIdPool.parse("abc"));
+        assertEquals(Collections.emptyList(), ClientIdPool.parse(""));
+    }
+
+    @Test
+    public void testBadClientIdResponses() {
+        assertTrue(ClientIdPool.isBadClientIdResponse(400,
+                "{\"error\":\"Bad Request\",\"status\":400,\"message\":\"Invalid client id specified\"}"));
+        assertTrue(ClientIdPool.isBadClientIdResponse(400, "{\"message\":\"No client id specified\"}"));
+        assertFalse(ClientIdPool.isBadClientIdResponse(400, "{\"message\":\"Invalid login names\"}"));
+        assertFalse(ClientIdPool.isBadClientIdResponse(404, "{\"message\":\"Invalid client id specified\"}"));
+        assertFalse(ClientIdPool.isBadClientIdResponse(400, "{\"message\":{}}"));
+        assertFalse(ClientIdPool.isBadClientIdResponse(400, "[]"));
+        assertFalse(ClientIdPool.isBadClientIdResponse(400, "<html>"));
+        assertFalse(ClientIdPool.isBadClientIdResponse(400, null));
+    }
+
+    @Test
+    public void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(60, 2, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), bucket.waitNanos(0));
+
+        // one permit per second
+        assertTrue(bucket.tryAcquire(TimeUnit.SECONDS.toNanos(1)));
+        assertFalse(bucket.tryAcquire(TimeUnit.SECONDS.toNanos(1)));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), bucket.reserve(TimeUnit.SECONDS.toNanos(1),
+                TimeUnit.SECONDS.toNanos(5)));
+        assertEquals(-1, bucket.reserve(TimeUnit.SECONDS.toNanos(1), 0));
+
+        bucket.drainUntil(TimeUnit.SECONDS.toNanos(60));
+        assertFalse(bucket.tryAcquire(TimeUnit.SECONDS.toNanos(59)));
+        assertTrue(bucket.tryAcquire(TimeUnit.SECONDS.toNanos(60)));
+    }
+
+    @Test
+    public void testRequestsAreSpreadOverClientIds() throws IOException {
+        ClientIdPool pool = new ClientIdPool(Arrays.asList("a", "b", "c"), 60, 10, 0, 60);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 30; i++) {
+            counts.merge(pool.acquire(), 1, Integer::sum);
+        }
+        assertEquals(10, (int) counts.get("a"));
+        assertEquals(10, (int) counts.get("b"));
+        assertEquals(10, (int) counts.get("c"));
+
+        // all buckets are empty now
+        try {
+            pool.acquire();
+            fail();
+        } catch (ClientIdRateLimitedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testInvalidClientIdsAreQuarantined() throws IOException {
+        ClientIdPool pool = new ClientIdPool(Arrays.asList("a", "b"), 60, 10, 0, 60);
+        pool.quarantine("a");
+        assertEquals(1, pool.getAvailableCount());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("b", pool.acquire());
+        }
+
+        pool.quarantine("b");
+        try {
+            pool.acquire();
+            fail();
+        } catch (BadClientIDException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTryAcquireNeverWaits() {
+        ClientIdPool pool = new ClientIdPool(Arrays.asList("a", "b"), 60, 2, 1000, 60);
+        assertEquals(120, pool.getRequestsPerMinute(), 0);
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(pool.tryAcquire());
+        }
+        assertNull(pool.tryAcquire());
+
+        pool.quarantine("a");
+        pool.quarantine("b");
+        try {
+            pool.tryAcquire();
+            fail();
+        } catch (BadClientIDException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnhealthyClientIdsAreUsedLast() throws IOException {
+        ClientIdPool pool = new ClientIdPool(Arrays.asList("a", "b"), 60, 2, 0, 60);
+        for (int i = 0; i < 3; i++) {
+            pool.recordFailure("a");
+        }
+        assertEquals("b", pool.acquire());
+        assertEquals("b", pool.acquire());
+        assertEquals("a", pool.acquire());
+
+        pool.recordSuccess("a");
+        assertEquals("a", pool.acquire());
+    }
+}
@@ -0,0 +1,309 @@
+package de.zwb3.apiproxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class ClusterTest {
+
+    private static final List<String> NODES = Arrays.asList(
+            "http://10.0.0.1:7221", "http://10.0.0.2:7221", "http://10.0.0.3:7221");
+
+    private static final String SECRET = "s3cr3t";
+
+    private CloseableHttpClient client;
+
+    @Before
+    public void setUp() {
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    private static List<String> loginNames(int count) {
+        List<String> loginNames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            loginNames.add("user_" + i);
+        }
+        return loginNames;
+    }
+
+    @Test
+    public void testRingIsBalanced() {
+        HashRing ring = new HashRing(NODES, 160);
+        Map<String, Long> counts = loginNames(30_000).stream()
+                .collect(Collectors.groupingBy(ring::ownerOf, Collectors.counting()));
+        assertEquals(new HashSet<>(NODES), counts.keySet());
+        for (long count : counts.values()) {
+            assertEquals(10_000, count, 1_500);
+        }
+    }
+
+    @Test
+    public void testRingIsStable() {
+        HashRing ring = new HashRing(NODES, 160);
+        List<String> reordered = new ArrayList<>(NODES);
+        Collections.reverse(reordered);
+        HashRing sameRing = new HashRing(reordered, 160);
+        List<String> grown = new ArrayList<>(NODES);
+        grown.add("http://10.0.0.4:7221");
+        HashRing grownRing = new HashRing(grown, 160);
+
+        int moved = 0;
+        for (String loginName : loginNames(10_000)) {
+            String owner = ring.ownerOf(loginName);
+            assertEquals(owner, sameRing.ownerOf(loginName));
+            String newOwner = grownRing.ownerOf(loginName);
+            if (!owner.equals(newOwner)) {
+                // keys only ever move to the new node.
+                assertEquals("http://10.0.0.4:7221", newOwner);
+                moved++;
+            }
+        }
+        assertEquals(2_500, moved, 600);
+    }
+
+    @Test
+    public void testUsersEncoding() throws IOException {
+        Map<String, Optional<Long>> userIds = new HashMap<>();
+        userIds.put("forsen", Optional.of(22484632L));
+        userIds.put("deleted", Optional.empty());
+        assertEquals(userIds, Cluster.decodeUsers(Cluster.encodeUsers(userIds)));
+
+        try {
+            Cluster.decodeUsers("{\"error\":\"Not Found\"}");
+            fail("malformed response was accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testSelfMustBeANode() {
+        try {
+            new Cluster(NODES, "http://10.0.0.9:7221", SECRET, 160, client, 1000, 100, 60);
+            fail("unknown self was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            new Cluster(NODES, "http://10.0.0.1:7221", "", 160, client, 1000, 100, 60);
+            fail("empty secret was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals("http://10.0.0.1:7221", new Cluster(NODES, "http://10.0.0.1:7221/", SECRET, 160, client, 1000, 100, 60)
+                .getSelf());
+    }
+
+    /**
+     * Responds to user lookups with a user ID for every login name except {@code deleted_*}, and counts how
+     * often every login name was looked up.
+     */
+    private static void respondToLookup(HttpExchange exchange, ConcurrentMap<String, AtomicInteger> lookups)
+            throws IOException {
+        String login = StringUtils.substringAfter(exchange.getRequestURI().getQuery(), "login=");
+        StringBuilder users = new StringBuilder();
+        for (String loginName : login.split(",")) {
+            lookups.computeIfAbsent(loginName, l -> new AtomicInteger()).incrementAndGet();
+            if (loginName.startsWith("deleted_")) {
+                continue;
+            }
+            if (users.length() > 0) {
+                users.append(',');
+            }
+            users.append("{\"name\":\"").append(loginName).append("\",\"_id\":\"")
+                    .append(Math.abs(loginName.hashCode())).append("\"}");
+        }
+        StubUpstream.respond(exchange, 200, "{\"users\":[" + users + "]}");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Start one instance per node URL, all on localhost.
+     */
+    private static List<RunningProxy> startNodes(StubUpstream twitch, List<String> nodeUrls) {
+        List<RunningProxy> proxies = new ArrayList<>();
+        try {
+            for (String nodeUrl : nodeUrls) {
+                proxies.add(new RunningProxy(twitch,
+                        "server.port=" + StringUtils.substringAfterLast(nodeUrl, ":"),
+                        "cluster.nodes=" + String.join(",", nodeUrls),
+                        "cluster.self=" + nodeUrl,
+                        "cluster.secret=" + SECRET));
+            }
+            return proxies;
+        } catch (RuntimeException e) {
+            proxies.forEach(RunningProxy::close);
+            throw e;
+        }
+    }
+
+    @Test
+    public void testLookupsAreShardedOverNodes() throws Exception {
+        ConcurrentMap<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+        try (StubUpstream twitch = new StubUpstream(exchange -> respondToLookup(exchange, lookups))) {
+            List<String> nodeUrls = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                nodeUrls.add("http://127.0.0.1:" + freePort());
+            }
+            List<RunningProxy> proxies = startNodes(twitch, nodeUrls);
+            try {
+                List<String> loginNames = loginNames(300);
+                loginNames.add("deleted_1");
+                // every node resolves every name, some of them one by one.
+                for (RunningProxy proxy : proxies) {
+                    UserIdResolver resolver = proxy.getBean(UserIdResolver.class);
+                    Map<String, Optional<Long>> userIds = resolver.translateUsernames(loginNames);
+                    assertEquals(Optional.of((long) Math.abs("user_7".hashCode())), userIds.get("user_7"));
+                    assertEquals(Optional.empty(), userIds.get("deleted_1"));
+                    assertEquals(Optional.of((long) Math.abs("user_42".hashCode())),
+                            resolver.translateUsername("user_42"));
+                }
+
+                // each name was looked up at the upstream exactly once cluster-wide...
+                assertEquals(loginNames.size(), lookups.size());
+                for (Map.Entry<String, AtomicInteger> entry : lookups.entrySet()) {
+                    assertEquals(entry.getKey(), 1, entry.getValue().get());
+                }
+                // ...is only cached by its owner, and kept in the near cache of the other nodes.
+                long cached = 0;
+                for (RunningProxy proxy : proxies) {
+                    long count = proxy.getBean(UserIdResolver.class).getCacheCount();
+                    assertTrue(count < 300);
+                    assertEquals(300 - count, proxy.getBean(Cluster.class).getNearCacheCount());
+                    cached += count;
+                }
+                assertEquals(300, cached);
+            } finally {
+                proxies.forEach(RunningProxy::close);
+            }
+        }
+    }
+
+    private int getUsers(String nodeUrl, @Nullable String secret, String login) throws IOException {
+        HttpGet request = new HttpGet(nodeUrl + Cluster.USERS_PATH + "?login=" + login);
+        if (secret != null) {
+            request.setHeader(Cluster.SECRET_HEADER, secret);
+        }
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    @Test
+    public void testInternalEndpointIsRestricted() throws Exception {
+        ConcurrentMap<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+        try (StubUpstream twitch = new StubUpstream(exchange -> respondToLookup(exchange, lookups))) {
+            String nodeUrl = "http://127.0.0.1:" + freePort();
+            List<RunningProxy> proxies = startNodes(twitch, Collections.singletonList(nodeUrl));
+            try {
+                assertEquals(403, getUsers(nodeUrl, null, "forsen"));
+                assertEquals(403, getUsers(nodeUrl, "wrong", "forsen"));
+                assertTrue(lookups.isEmpty());
+
+                assertEquals(200, getUsers(nodeUrl, SECRET, "forsen"));
+                assertEquals(1, lookups.get("forsen").get());
+
+                String tooMany = String.join(",", loginNames(Cluster.MAX_LOGINS_PER_REQUEST + 1));
+                assertEquals(400, getUsers(nodeUrl, SECRET, tooMany));
+                assertEquals(1, lookups.size());
+            } finally {
+                proxies.forEach(RunningProxy::close);
+            }
+        }
+    }
+
+    @Test
+    public void testRemoteLookupsAreChunkedAndNearCached() throws Exception {
+        List<Integer> loginsPerRequest = new CopyOnWriteArrayList<>();
+        try (StubUpstream node = new StubUpstream(exchange -> {
+            if (!SECRET.equals(exchange.getRequestHeaders().getFirst(Cluster.SECRET_HEADER))) {
+                StubUpstream.respond(exchange, 403, "{}");
+                return;
+            }
+            List<String> login = Cluster.parse(
+                    StringUtils.substringAfter(exchange.getRequestURI().getQuery(), "login="));
+            loginsPerRequest.add(login.size());
+            Map<String, Optional<Long>> userIds = new HashMap<>();
+            for (String loginName : login) {
+                userIds.put(loginName, loginName.startsWith("deleted_") ?
+                        Optional.empty() : Optional.of((long) Math.abs(loginName.hashCode())));
+            }
+            StubUpstream.respond(exchange, 200, Cluster.encodeUsers(userIds));
+        })) {
+            List<String> nodeUrls = Arrays.asList("http://127.0.0.1:1", node.getUrl());
+            Cluster cluster = new Cluster(nodeUrls, nodeUrls.get(0), SECRET, 160, client, 1000, 1000, 60);
+
+            List<String> loginNames = loginNames(250);
+            loginNames.add("deleted_1");
+            Map<String, Optional<Long>> userIds = cluster.lookup(node.getUrl(), loginNames);
+            assertEquals(251, userIds.size());
+            assertEquals(Optional.of((long) Math.abs("user_7".hashCode())), userIds.get("user_7"));
+            assertEquals(Optional.empty(), userIds.get("deleted_1"));
+            assertEquals(Arrays.asList(100, 100, 51), loginsPerRequest);
+            assertEquals(250, cluster.getNearCacheCount());
+
+            // only the name that was not found is asked for again.
+            userIds = cluster.lookup(node.getUrl(), loginNames);
+            assertEquals(Optional.of((long) Math.abs("user_7".hashCode())), userIds.get("user_7"));
+            assertEquals(Arrays.asList(100, 100, 51, 1), loginsPerRequest);
+        }
+    }
+
+    @Test
+    public void testUnavailableOwnerIsResolvedLocally() throws Exception {
+        ConcurrentMap<String, AtomicInteger> lookups = new ConcurrentHashMap<>();
+        UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+        FailureTracker failureTracker = new FailureTracker(64, 10, 2);
+        try (StubUpstream twitch = new StubUpstream(exchange -> respondToLookup(exchange, lookups));
+             StubUpstream brokenNode = new StubUpstream(exchange -> StubUpstream.respond(exchange, 503, "{}"))) {
+            List<String> nodeUrls = Arrays.asList("http://127.0.0.1:1", brokenNode.getUrl());
+            UserIdResolver resolver = new UserIdResolver(
+                    new ClientIdPool(Collections.singletonList("clientid"), 1_000_000, 1000, 1000, 60),
+                    new UpstreamPool(UpstreamPool.parse(twitch.getUrl(), 10_000), 5, 30_000), executor,
+                    new NegativeLookupCache(300, 1000), CachePolicy.LRU,
+                    UserIdResolver.DEFAULT_CACHE_MAXIMUM_WEIGHT,
+                    new Cluster(nodeUrls, nodeUrls.get(0), SECRET, 160, client, 1000, 100, 60), failureTracker);
+
+            List<String> loginNames = loginNames(50);
+            Map<String, Optional<Long>> userIds = resolver.translateUsernames(loginNames);
+            for (String loginName : loginNames) {
+                assertEquals(Optional.of((long) Math.abs(loginName.hashCode())), userIds.get(loginName));
+            }
+            assertTrue(brokenNode.getRequestCount() > 0);
+            assertEquals(50, resolver.getCacheCount());
+            // listed, but the names were resolved after all, so the failure rate of lookups is unaffected.
+            assertEquals("cluster node " + brokenNode.getUrl(), failureTracker.getLastFailure().getSource());
+            assertEquals(0, failureTracker.getWindowFailures());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
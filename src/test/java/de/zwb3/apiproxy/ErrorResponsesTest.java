@@ -0,0 +1,55 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.gson.Gson;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class ErrorResponsesTest {
+
+    @Test
+    public void testStatusOfException() {
+        assertEquals(HttpStatus.NOT_FOUND, ErrorResponses.statusOf(new NoSuchUserException("forsen")));
+        assertEquals(HttpStatus.BAD_REQUEST, ErrorResponses.statusOf(new BadClientIDException("abc")));
+        assertEquals(HttpStatus.SERVICE_UNAVAILABLE, ErrorResponses.statusOf(new CircuitBreakerOpenException()));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS, ErrorResponses.statusOf(new ClientIdRateLimitedException()));
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, ErrorResponses.statusOf(new IOException("Connection reset")));
+    }
+
+    @Test
+    public void testUnwrap() {
+        BadClientIDException badClientId = new BadClientIDException("abc");
+        assertSame(badClientId, ErrorResponses.unwrap(new UncheckedExecutionException(badClientId)));
+        assertSame(badClientId, ErrorResponses.unwrap(new ExecutionException(new UncheckedExecutionException(badClientId))));
+        assertSame(badClientId, ErrorResponses.unwrap(badClientId));
+    }
+
+    @Test
+    public void testEncode() {
+        String message = "Username forsen at segment :channel (#2) could not be translated: user not found";
+        assertEquals("{\"error\":\"Not Found\",\"status\":404,\"message\":\"" + message + "\"}",
+                new String(ErrorResponses.encode(HttpStatus.NOT_FOUND, message), StandardCharsets.UTF_8));
+        assertEquals("{\"error\":\"Service Unavailable\",\"status\":503,\"message\":null}",
+                new String(ErrorResponses.encode(HttpStatus.SERVICE_UNAVAILABLE, null), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testEncodeEscapesMessage() {
+        String message = "Username \"a\\b\"\n\u0001 at segment :channel (#2) could not be translated: ü";
+        String body = new String(ErrorResponses.encode(HttpStatus.NOT_FOUND, message), StandardCharsets.UTF_8);
+        assertEquals(new ErrorStatus("Not Found", 404, message), new Gson().fromJson(body, ErrorStatus.class));
+    }
+
+    @Test
+    public void testNoStackTrace() {
+        assertEquals(0, new NoSuchUserException("forsen").getStackTrace().length);
+        assertEquals(0, new CircuitBreakerOpenException().getStackTrace().length);
+        assertEquals(0, new ClientIdRateLimitedException().getStackTrace().length);
+    }
+}
@@ -0,0 +1,158 @@
+package de.zwb3.apiproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FailureTrackerTest {
+
+    private static final long SECONDS = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testRecentFailuresAreNewestFirst() {
+        FailureTracker tracker = new FailureTracker(4, 10, 2);
+        assertNull(tracker.getLastFailure());
+        assertTrue(tracker.getRecentFailures().isEmpty());
+
+        for (int i = 0; i < 6; i++) {
+            tracker.recordFailure("user lookup", new IOException("failure " + i), 0);
+        }
+        List<FailureTracker.Failure> failures = tracker.getRecentFailures();
+        // only the last four are kept.
+        assertEquals(4, failures.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("failure " + (5 - i), failures.get(i).getCause().getMessage());
+        }
+        assertEquals("failure 5", tracker.getLastFailure().getCause().getMessage());
+        assertEquals("user lookup", tracker.getLastFailure().getSource());
+        assertEquals(6, tracker.getFailureCount());
+    }
+
+    @Test
+    public void testRecentFailuresAreNotCounted() {
+        FailureTracker tracker = new FailureTracker(4, 10, 2);
+        for (int i = 0; i < 100; i++) {
+            tracker.recordRecentFailure("GET /kraken/streams/:channel", new IOException("failure " + i));
+        }
+        assertEquals("failure 99", tracker.getLastFailure().getCause().getMessage());
+        assertEquals(100, tracker.getFailureCount());
+        assertEquals(0, tracker.getWindowFailures(0));
+        assertEquals(0, tracker.getWindowFailureRate(0), 0.001);
+        assertTrue(tracker.tryAcquire(0, 0));
+    }
+
+    @Test
+    public void testCapacityIsRoundedToPowerOfTwo() {
+        FailureTracker tracker = new FailureTracker(5, 10, 2);
+        for (int i = 0; i < 20; i++) {
+            tracker.recordFailure("user lookup", new IOException(), 0);
+        }
+        assertEquals(8, tracker.getRecentFailures().size());
+    }
+
+    @Test
+    public void testWindowSlides() {
+        FailureTracker tracker = new FailureTracker(4, 10, 2);
+        tracker.recordFailure("user lookup", new IOException(), 0);
+        tracker.recordSuccess(0);
+        tracker.recordFailure("user lookup", new IOException(), 5 * SECONDS);
+        tracker.recordFailure("user lookup", new IOException(), 5 * SECONDS);
+
+        assertEquals(3, tracker.getWindowFailures(9 * SECONDS));
+        assertEquals(0.75, tracker.getWindowFailureRate(9 * SECONDS), 0.001);
+        // the first second is out of the window now.
+        assertEquals(2, tracker.getWindowFailures(10 * SECONDS));
+        assertEquals(1.0, tracker.getWindowFailureRate(10 * SECONDS), 0.001);
+        assertEquals(0, tracker.getWindowFailures(15 * SECONDS));
+        assertEquals(0, tracker.getWindowFailureRate(15 * SECONDS), 0.001);
+
+        // a bucket that is used again for a later second starts over.
+        tracker.recordFailure("user lookup", new IOException(), 25 * SECONDS);
+        assertEquals(1, tracker.getWindowFailures(25 * SECONDS));
+    }
+
+    @Test
+    public void testNoBackoffWhileSucceeding() {
+        FailureTracker tracker = new FailureTracker(4, 10, 2);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(tracker.tryAcquire(0, 0));
+            tracker.recordSuccess(0);
+        }
+    }
+
+    @Test
+    public void testBackoffWhileFailing() {
+        FailureTracker tracker = new FailureTracker(4, 10, 2);
+        for (int i = 0; i < 100; i++) {
+            // always allowed with the highest random number, so that every request goes through.
+            assertTrue(tracker.tryAcquire(0, 0.999));
+            tracker.recordFailure("user lookup", new IOException(), 0);
+        }
+        // 101 requests and no successes: rejected with probability 101/102.
+        assertFalse(tracker.tryAcquire(0, 0.98));
+        assertTrue(tracker.tryAcquire(0, 0.999));
+
+        // once the failures are out of the window, requests go through again.
+        assertTrue(tracker.tryAcquire(10 * SECONDS, 0));
+    }
+
+    @Test
+    public void testCancelledRequestsAreNotBackedOff() {
+        FailureTracker tracker = new FailureTracker(4, 10, 2);
+        assertTrue(tracker.tryAcquire(0, 0));
+        tracker.recordSuccess(0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(tracker.tryAcquire(0, 0));
+            tracker.cancel(0);
+        }
+    }
+
+    @Test
+    public void testPartialFailuresWithinMultiplierAreNotBackedOff() {
+        FailureTracker tracker = new FailureTracker(4, 10, 2);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(tracker.tryAcquire(0, 0));
+            if (i % 2 == 0) {
+                tracker.recordSuccess(0);
+            } else {
+                tracker.recordFailure("user lookup", new IOException(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentFailures() throws Exception {
+        FailureTracker tracker = new FailureTracker(64, 10, 2);
+        int threads = 8;
+        int failuresPerThread = 10_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                String source = "thread " + i;
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < failuresPerThread; j++) {
+                        tracker.recordFailure(source, new IOException(Integer.toString(j)), 0);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(threads * failuresPerThread, tracker.getFailureCount());
+        assertEquals(threads * failuresPerThread, tracker.getWindowFailures(0));
+        assertEquals(64, tracker.getRecentFailures().size());
+    }
+}
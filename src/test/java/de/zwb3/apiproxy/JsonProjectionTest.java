@@ -0,0 +1,127 @@
+package de.zwb3.apiproxy;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.*;
+
+public class JsonProjectionTest {
+
+    private static String project(String fields, String json) throws IOException {
+        StringWriter writer = new StringWriter();
+        JsonProjection.parse(fields).project(new StringReader(json), writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void testNestedFields() throws IOException {
+        String stream = "{\"stream\":{\"_id\":1,\"game\":\"Dota 2\",\"viewers\":5," +
+                "\"channel\":{\"status\":\"hi \\\"there\\\"\",\"name\":\"forsen\",\"partner\":true}}}";
+        assertEquals("{\"stream\":{\"game\":\"Dota 2\",\"channel\":{\"status\":\"hi \\\"there\\\"\"}}}",
+                project("stream.game, stream.channel.status", stream));
+        // a selected member is copied with everything below it.
+        assertEquals("{\"stream\":{\"channel\":{\"status\":\"hi \\\"there\\\"\",\"name\":\"forsen\",\"partner\":true}}}",
+                project("stream.channel,stream.channel.name", stream));
+        // offline streams keep their null.
+        assertEquals("{\"stream\":null}", project("stream.game", "{\"stream\":null}"));
+        assertEquals("{}", project("stream.game", "{\"_links\":{}}"));
+    }
+
+    @Test
+    public void testArraysAreTransparent() throws IOException {
+        String follows = "{\"_total\":2,\"follows\":[" +
+                "{\"created_at\":\"2018-01-01T00:00:00Z\",\"user\":{\"_id\":\"1\",\"name\":\"a\",\"bio\":null}}," +
+                "{\"created_at\":\"2018-01-02T00:00:00Z\",\"user\":{\"_id\":\"2\",\"name\":\"b\",\"bio\":\"x\"}}]}";
+        assertEquals("{\"_total\":2,\"follows\":[{\"user\":{\"name\":\"a\"}},{\"user\":{\"name\":\"b\"}}]}",
+                project("_total,follows.user.name", follows));
+    }
+
+    @Test
+    public void testNumbersAreCopiedAsIs() throws IOException {
+        assertEquals("{\"a\":12345678901234567890,\"b\":1.50}",
+                project("a,b", "{\"a\":12345678901234567890,\"b\":1.50,\"c\":1}"));
+    }
+
+    @Test
+    public void testBadFields() {
+        for (String fields : new String[]{"", " , ", "stream..game", "stream.", ".stream"}) {
+            try {
+                JsonProjection.parse(fields);
+                fail("bad fields were accepted: " + fields);
+            } catch (BadFieldsException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedJson() throws IOException {
+        project("stream.game", "{\"stream\":{\"game\":");
+    }
+
+    /**
+     * A list response far larger than the heap used for it, generated on the fly.
+     */
+    @Test
+    public void testLargeListIsStreamed() throws IOException {
+        int elements = 500_000;
+        Reader reader = new Reader() {
+            private final StringBuilder pending = new StringBuilder("{\"follows\":[");
+            private int next = 0;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) {
+                while (pending.length() < length && next <= elements) {
+                    if (next == elements) {
+                        pending.append("]}");
+                    } else {
+                        pending.append(next == 0 ? "" : ",")
+                                .append("{\"created_at\":\"2018-01-01T00:00:00Z\",\"notifications\":false,")
+                                .append("\"user\":{\"_id\":\"").append(next).append("\",\"name\":\"user_")
+                                .append(next).append("\",\"bio\":\"a fairly long bio that nobody asked for\"}}");
+                    }
+                    next++;
+                }
+                if (pending.length() == 0) {
+                    return -1;
+                }
+                int count = Math.min(length, pending.length());
+                pending.getChars(0, count, buffer, offset);
+                pending.delete(0, count);
+                return count;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        long[] written = new long[1];
+        char[] last = new char[1];
+        Writer writer = new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+                written[0] += length;
+                if (length > 0) {
+                    last[0] = buffer[offset + length - 1];
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        JsonProjection.parse("follows.user._id").project(reader, writer);
+        // {"user":{"_id":"123456"}} per element, instead of ~150 characters.
+        assertTrue(written[0] < elements * 30L);
+        assertEquals('}', last[0]);
+    }
+}
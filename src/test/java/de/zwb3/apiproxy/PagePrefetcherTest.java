@@ -0,0 +1,229 @@
+package de.zwb3.apiproxy;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.jetbrains.annotations.Nullable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PagePrefetcherTest {
+
+    private static final int FOLLOWERS = 1000;
+
+    private static final String CHANNEL = "forsen";
+
+    private static final String CHANNEL_ID = "22484632";
+
+    private static final String CLIENT = PagePrefetcher.clientKey("clientid", null);
+
+    private CloseableHttpClient client;
+
+    @Before
+    public void setUp() {
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    private static byte[] bytes(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testNextPageByOffset() {
+        URI uri = URI.create("/kraken/channels/22484632/follows?limit=2&offset=4");
+        assertEquals(URI.create("/kraken/channels/22484632/follows?limit=2&offset=6"),
+                PagePrefetcher.nextPage(uri, bytes("{\"_total\":10,\"follows\":[{},{}]}")));
+        // a short page is the last one.
+        assertNull(PagePrefetcher.nextPage(uri, bytes("{\"_total\":10,\"follows\":[{}]}")));
+        // so is a full one that reaches the total.
+        assertNull(PagePrefetcher.nextPage(uri, bytes("{\"_total\":6,\"follows\":[{},{}]}")));
+        assertNull(PagePrefetcher.nextPage(uri, bytes("{\"error\":\"Not Found\"}")));
+        assertNull(PagePrefetcher.nextPage(uri, bytes("not json")));
+
+        // without a limit, pages have the default size.
+        assertEquals(URI.create("/kraken/users/22484632/follows/channels?offset=25"),
+                PagePrefetcher.nextPage(URI.create("/kraken/users/22484632/follows/channels"),
+                        bytes("{\"follows\":[" + String.join(",", Collections.nCopies(25, "{}")) + "]}")));
+    }
+
+    @Test
+    public void testNextPageByCursor() {
+        URI uri = URI.create("/kraken/channels/22484632/follows?limit=2&cursor=abc");
+        assertEquals(URI.create("/kraken/channels/22484632/follows?limit=2&cursor=def"),
+                PagePrefetcher.nextPage(uri, bytes("{\"_cursor\":\"def\",\"follows\":[{},{}]}")));
+        assertNull(PagePrefetcher.nextPage(uri, bytes("{\"_cursor\":\"\",\"follows\":[{},{}]}")));
+        assertNull(PagePrefetcher.nextPage(uri, bytes("{\"_cursor\":\"def\",\"follows\":[]}")));
+    }
+
+    @Test
+    public void testIsContinuation() {
+        assertFalse(PagePrefetcher.isContinuation(URI.create("/kraken/channels/1/follows")));
+        assertFalse(PagePrefetcher.isContinuation(URI.create("/kraken/channels/1/follows?offset=0&limit=100")));
+        assertTrue(PagePrefetcher.isContinuation(URI.create("/kraken/channels/1/follows?offset=100&limit=100")));
+        assertTrue(PagePrefetcher.isContinuation(URI.create("/kraken/channels/1/follows?cursor=abc")));
+    }
+
+    @Test
+    public void testBufferKey() {
+        assertEquals(PagePrefetcher.bufferKey(CLIENT, URI.create("/kraken/channels/1/follows?offset=100&limit=100")),
+                PagePrefetcher.bufferKey(CLIENT, URI.create("/kraken/channels/1/follows?limit=100&offset=100")));
+        assertNotEquals(PagePrefetcher.bufferKey(CLIENT, URI.create("/kraken/channels/1/follows?offset=100")),
+                PagePrefetcher.bufferKey(PagePrefetcher.clientKey("clientid", "OAuth abc"),
+                        URI.create("/kraken/channels/1/follows?offset=100")));
+    }
+
+    @Test
+    public void testReplayedHeaders() {
+        PagePrefetcher.Page page = new PagePrefetcher.Page(new Header[]{
+                new BasicHeader("Content-Type", "application/json"),
+                new BasicHeader("Date", "Thu, 01 Jan 1970 00:00:00 GMT"),
+                new BasicHeader("Ratelimit-Limit", "800"),
+                new BasicHeader("RateLimit-Remaining", "799"),
+                new BasicHeader("Ratelimit-Reset", "1500000000")}, bytes("{}"));
+        Header[] replayed = page.getReplayedHeaders();
+        assertEquals(1, replayed.length);
+        assertEquals("Content-Type", replayed[0].getName());
+        assertEquals(5, page.getHeaders().length);
+    }
+
+    /**
+     * Resolves {@link #CHANNEL} and responds to follows requests with a page of {@link #FOLLOWERS} followers in
+     * total, and the given rate limit header.
+     */
+    private static HttpHandler upstream(int rateLimitRemaining, AtomicInteger followsRequests) {
+        return exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            if (path.equals("/kraken/users")) {
+                StubUpstream.respond(exchange, 200, "{\"_total\":1,\"users\":[{\"name\":\"" + CHANNEL +
+                        "\",\"_id\":\"" + CHANNEL_ID + "\"}]}");
+                return;
+            }
+            if (!path.equals("/kraken/channels/" + CHANNEL_ID + "/follows")) {
+                StubUpstream.respond(exchange, 404, "{}");
+                return;
+            }
+            followsRequests.incrementAndGet();
+            respondWithFollows(exchange, rateLimitRemaining);
+        };
+    }
+
+    private static void respondWithFollows(HttpExchange exchange, int rateLimitRemaining) throws IOException {
+        int offset = 0;
+        int limit = PagePrefetcher.DEFAULT_LIMIT;
+        for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+            String[] split = parameter.split("=");
+            if (split[0].equals("offset")) {
+                offset = Integer.parseInt(split[1]);
+            } else if (split[0].equals("limit")) {
+                limit = Integer.parseInt(split[1]);
+            }
+        }
+        StringBuilder follows = new StringBuilder();
+        for (int i = offset; i < Math.min(offset + limit, FOLLOWERS); i++) {
+            if (follows.length() > 0) {
+                follows.append(',');
+            }
+            follows.append("{\"user\":{\"_id\":\"").append(i).append("\"}}");
+        }
+        exchange.getResponseHeaders().set(PagePrefetcher.RATELIMIT_REMAINING_HEADER,
+                Integer.toString(rateLimitRemaining));
+        StubUpstream.respond(exchange, 200, "{\"_total\":" + FOLLOWERS + ",\"follows\":[" + follows + "]}");
+    }
+
+    /**
+     * Ask the proxy for one page of the followers of {@link #CHANNEL}, like a client would.
+     *
+     * @return Whether the page was served from the buffer, i.e. without the rate limit header of the upstream.
+     */
+    private boolean getFollows(String proxyUrl, int offset, @Nullable String authorization) throws IOException {
+        HttpGet request = new HttpGet(proxyUrl + "/kraken/channels/" + CHANNEL + "/follows?limit=100&offset=" +
+                offset);
+        request.setHeader("Client-ID", "clientid");
+        if (authorization != null) {
+            request.setHeader("Authorization", authorization);
+        }
+        try (CloseableHttpResponse response = client.execute(request)) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertTrue(response.getFirstHeader("Content-Type").getValue().contains("json"));
+            String body = EntityUtils.toString(response.getEntity());
+            assertTrue(body, body.contains("{\"_id\":\"" + offset + "\"}"));
+            return response.getFirstHeader(PagePrefetcher.RATELIMIT_REMAINING_HEADER) == null;
+        }
+    }
+
+    /**
+     * Walk through all followers page by page.
+     *
+     * @return The number of pages that were served from the buffer.
+     */
+    private int walkFollows(String proxyUrl) throws IOException {
+        int prefetched = 0;
+        for (int offset = 0; offset < FOLLOWERS; offset += 100) {
+            if (getFollows(proxyUrl, offset, null)) {
+                prefetched++;
+            }
+        }
+        return prefetched;
+    }
+
+    @Test
+    public void testFollowerSyncIsServedFromPrefetchedPages() throws Exception {
+        AtomicInteger followsRequests = new AtomicInteger();
+        try (StubUpstream upstream = new StubUpstream(upstream(800, followsRequests));
+             RunningProxy proxy = new RunningProxy(upstream)) {
+            // the first two pages are requested by the client, the others were prefetched.
+            assertEquals(8, walkFollows(proxy.getUrl()));
+            PagePrefetcher prefetcher = proxy.getBean(PagePrefetcher.class);
+            assertEquals(8, prefetcher.getHitCount());
+            assertEquals(8, prefetcher.getPrefetchCount());
+            // nothing after the last page.
+            assertEquals(10, followsRequests.get());
+        }
+    }
+
+    @Test
+    public void testPrefetchedPagesAreKeptPerClient() throws Exception {
+        AtomicInteger followsRequests = new AtomicInteger();
+        try (StubUpstream upstream = new StubUpstream(upstream(800, followsRequests));
+             RunningProxy proxy = new RunningProxy(upstream)) {
+            assertFalse(getFollows(proxy.getUrl(), 0, "OAuth first"));
+            assertFalse(getFollows(proxy.getUrl(), 100, "OAuth first"));
+            // the page prefetched for the first user is not served to the second one.
+            assertFalse(getFollows(proxy.getUrl(), 200, "OAuth second"));
+            assertEquals(0, proxy.getBean(PagePrefetcher.class).getHitCount());
+            assertTrue(getFollows(proxy.getUrl(), 200, "OAuth first"));
+            assertEquals(1, proxy.getBean(PagePrefetcher.class).getHitCount());
+        }
+    }
+
+    @Test
+    public void testNothingIsPrefetchedWithoutRateLimitBudget() throws Exception {
+        AtomicInteger followsRequests = new AtomicInteger();
+        try (StubUpstream upstream = new StubUpstream(upstream(50, followsRequests));
+             RunningProxy proxy = new RunningProxy(upstream)) {
+            assertEquals(0, walkFollows(proxy.getUrl()));
+            assertEquals(0, proxy.getBean(PagePrefetcher.class).getPrefetchCount());
+            assertEquals(10, followsRequests.get());
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package de.zwb3.apiproxy;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which requests are served by the {@link ProxyFilter} ({@code proxy.leanDispatch=true}, the default)
+ * and which still go through Spring MVC.
+ */
+public class ProxyDispatchTest {
+
+    /**
+     * Counts the requests that reach a Spring MVC handler.
+     */
+    public static class CountingMvcConfigurer implements WebMvcConfigurer {
+        static final AtomicInteger handled = new AtomicInteger();
+
+        @Override
+        public void addInterceptors(InterceptorRegistry registry) {
+            registry.addInterceptor(new HandlerInterceptor() {
+                @Override
+                public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+                    handled.incrementAndGet();
+                    return true;
+                }
+            });
+        }
+    }
+
+    private static final Set<String> upstreamPaths = ConcurrentHashMap.newKeySet();
+
+    private static StubUpstream upstream;
+    private static RunningProxy proxy;
+    private static CloseableHttpClient client;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        upstream = new StubUpstream(exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            upstreamPaths.add(path);
+            StubUpstream.respond(exchange, 200, path.equals("/kraken/users") ?
+                    "{\"_total\":1,\"users\":[{\"name\":\"forsen\",\"_id\":\"22484632\"}]}" :
+                    "{\"stream\":null}");
+        });
+        proxy = new RunningProxy(upstream, new Class<?>[]{CountingMvcConfigurer.class});
+        client = HttpClients.createDefault();
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        client.close();
+        proxy.close();
+        upstream.close();
+    }
+
+    @Before
+    public void reset() {
+        CountingMvcConfigurer.handled.set(0);
+        upstreamPaths.clear();
+    }
+
+    @Test
+    public void testKrakenRequestsAreServedByTheFilter() throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(proxy.getUrl() + "/kraken/streams/forsen"))) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertEquals("{\"stream\":null}", EntityUtils.toString(response.getEntity()));
+        }
+        assertTrue(upstreamPaths.toString(), upstreamPaths.contains("/kraken/streams/22484632"));
+        assertEquals(0, CountingMvcConfigurer.handled.get());
+    }
+
+    @Test
+    public void testFilterErrorsHaveJsonBodies() throws IOException {
+        try (CloseableHttpResponse response = client.execute(
+                new HttpGet(proxy.getUrl() + "/kraken/streams/not-a-username"))) {
+            assertEquals(404, response.getStatusLine().getStatusCode());
+            assertTrue(response.getFirstHeader("Content-Type").getValue().startsWith("application/json"));
+
+            JsonObject body = new JsonParser().parse(EntityUtils.toString(response.getEntity())).getAsJsonObject();
+            assertEquals("Not Found", body.get("error").getAsString());
+            assertEquals(404, body.get("status").getAsInt());
+            assertTrue(body.get("message").getAsString().contains("not-a-username"));
+            // the error response is committed by the filter, the access log can't add it later.
+            assertTrue(response.getFirstHeader("Server-Timing").getValue().contains("total;dur="));
+        }
+        // neither a lookup nor Spring's /error dispatch.
+        assertTrue(upstreamPaths.isEmpty());
+        assertEquals(0, CountingMvcConfigurer.handled.get());
+    }
+
+    @Test
+    public void testBadFieldsAreRejectedBeforeLookups() throws IOException {
+        try (CloseableHttpResponse response = client.execute(
+                new HttpGet(proxy.getUrl() + "/kraken/streams/pajlada?fields=stream..game"))) {
+            assertEquals(400, response.getStatusLine().getStatusCode());
+            JsonObject body = new JsonParser().parse(EntityUtils.toString(response.getEntity())).getAsJsonObject();
+            assertTrue(body.get("message").getAsString().contains("stream..game"));
+        }
+        // the username was not looked up.
+        assertTrue(upstreamPaths.toString(), upstreamPaths.isEmpty());
+    }
+
+    @Test
+    public void testOtherRequestsReachSpringMvc() throws IOException {
+        try (CloseableHttpResponse response = client.execute(new HttpGet(proxy.getUrl() + "/apiproxy/status"))) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertTrue(response.getFirstHeader("Content-Type").getValue().startsWith("text/plain"));
+            EntityUtils.consume(response.getEntity());
+        }
+        assertEquals(1, CountingMvcConfigurer.handled.get());
+    }
+
+    @Test
+    public void testShedRequestsHaveJsonBodies() throws Exception {
+        CountDownLatch arrived = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (StubUpstream slowUpstream = new StubUpstream(exchange -> {
+            if (exchange.getRequestURI().getPath().equals("/kraken/users")) {
+                StubUpstream.respond(exchange, 200,
+                        "{\"_total\":1,\"users\":[{\"name\":\"forsen\",\"_id\":\"22484632\"}]}");
+                return;
+            }
+            arrived.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            StubUpstream.respond(exchange, 200, "{\"stream\":null}");
+        }); RunningProxy sheddingProxy = new RunningProxy(slowUpstream, "loadShedding.initialLimit=1",
+                "loadShedding.minLimit=1", "loadShedding.maxLimit=1")) {
+            // the only slot is taken by a request the upstream holds back.
+            Future<Integer> first = executor.submit(() -> {
+                try (CloseableHttpResponse response = client.execute(
+                        new HttpGet(sheddingProxy.getUrl() + "/kraken/streams/forsen"))) {
+                    EntityUtils.consume(response.getEntity());
+                    return response.getStatusLine().getStatusCode();
+                }
+            });
+            assertTrue(arrived.await(5, TimeUnit.SECONDS));
+
+            try (CloseableHttpResponse response = client.execute(
+                    new HttpGet(sheddingProxy.getUrl() + "/kraken/streams/forsen"))) {
+                assertEquals(503, response.getStatusLine().getStatusCode());
+                assertEquals("1", response.getFirstHeader("Retry-After").getValue());
+                assertTrue(response.getFirstHeader("Server-Timing").getValue().contains("total;dur="));
+
+                JsonObject body = new JsonParser().parse(EntityUtils.toString(response.getEntity()))
+                        .getAsJsonObject();
+                assertEquals(503, body.get("status").getAsInt());
+            } finally {
+                release.countDown();
+            }
+            assertEquals(200, (int) first.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package de.zwb3.apiproxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends requests with a body through the running application, and checks what the upstream received.
+ */
+public class ProxyRequestBodyTest {
+
+    private static final AtomicInteger requests = new AtomicInteger();
+
+    private static volatile String receivedMethod;
+    private static volatile String receivedPath;
+    private static volatile byte[] receivedBody;
+    private static volatile String receivedContentLength;
+    private static volatile String receivedTransferEncoding;
+    private static volatile String receivedAccept;
+    private static volatile String receivedClientId;
+
+    private static StubUpstream upstream;
+    private static RunningProxy proxy;
+    private static CloseableHttpClient client;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        upstream = new StubUpstream(exchange -> {
+            requests.incrementAndGet();
+            if (exchange.getRequestURI().getPath().equals("/kraken/users")) {
+                StubUpstream.respond(exchange, 200,
+                        "{\"_total\":1,\"users\":[{\"name\":\"forsen\",\"_id\":\"22484632\"}]}");
+                return;
+            }
+            receivedMethod = exchange.getRequestMethod();
+            receivedPath = exchange.getRequestURI().getPath();
+            receivedContentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            receivedTransferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            receivedAccept = exchange.getRequestHeaders().getFirst("Accept");
+            receivedClientId = exchange.getRequestHeaders().getFirst("Client-ID");
+            receivedBody = IOUtils.toByteArray(exchange.getRequestBody());
+            StubUpstream.respond(exchange, 200, "{}");
+        });
+        proxy = new RunningProxy(upstream);
+        client = HttpClients.createDefault();
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        client.close();
+        proxy.close();
+        upstream.close();
+    }
+
+    @Before
+    public void reset() {
+        requests.set(0);
+        receivedMethod = null;
+        receivedPath = null;
+        receivedBody = null;
+        receivedContentLength = null;
+        receivedTransferEncoding = null;
+        receivedAccept = null;
+        receivedClientId = null;
+    }
+
+    private static int put(String channel, HttpPut request) throws IOException {
+        request.setURI(URI.create(proxy.getUrl() + "/kraken/channels/" + channel));
+        request.setHeader("Client-ID", "test");
+        request.setHeader("Accept", "application/json");
+        try (CloseableHttpResponse response = client.execute(request)) {
+            EntityUtils.consume(response.getEntity());
+            return response.getStatusLine().getStatusCode();
+        }
+    }
+
+    @Test
+    public void testKnownLengthBodyIsForwarded() throws IOException {
+        byte[] body = "{\"channel\":{\"status\":\"xD\",\"game\":\"Hearthstone\"}}".getBytes(StandardCharsets.UTF_8);
+        HttpPut request = new HttpPut();
+        request.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+
+        assertEquals(200, put("forsen", request));
+        assertEquals("PUT", receivedMethod);
+        assertEquals("/kraken/channels/22484632", receivedPath);
+        assertArrayEquals(body, receivedBody);
+        assertEquals(String.valueOf(body.length), receivedContentLength);
+        assertNull(receivedTransferEncoding);
+        // the Accept header of the client is replaced, other headers are copied.
+        assertEquals("application/vnd.twitchtv.v5+json", receivedAccept);
+        assertEquals("test", receivedClientId);
+    }
+
+    @Test
+    public void testChunkedBodyIsForwarded() throws IOException {
+        byte[] body = new byte[256 * 1024];
+        new Random(42).nextBytes(body);
+        HttpPut request = new HttpPut();
+        request.setEntity(new InputStreamEntity(new ByteArrayInputStream(body), -1,
+                ContentType.APPLICATION_OCTET_STREAM));
+
+        assertEquals(200, put("forsen", request));
+        assertEquals("PUT", receivedMethod);
+        assertEquals("/kraken/channels/22484632", receivedPath);
+        assertArrayEquals(body, receivedBody);
+        assertNull(receivedContentLength);
+        assertEquals("chunked", receivedTransferEncoding);
+    }
+
+    @Test
+    public void testUnknownUsernameSendsNothingUpstream() throws IOException {
+        byte[] body = "{\"channel\":{\"status\":\"xD\"}}".getBytes(StandardCharsets.UTF_8);
+        HttpPut request = new HttpPut();
+        request.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_JSON));
+
+        assertEquals(404, put("not-a-username", request));
+        // neither a lookup nor the request with its body.
+        assertEquals(0, requests.get());
+        assertNull(receivedBody);
+    }
+}
@@ -0,0 +1,125 @@
+package de.zwb3.apiproxy;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProxyRequestsTest {
+
+    private StubUpstream upstream;
+    private CloseableHttpClient client;
+
+    private volatile String receivedMethod;
+    private volatile byte[] receivedBody;
+    private volatile String receivedContentLength;
+    private volatile String receivedTransferEncoding;
+    private volatile String receivedExpect;
+
+    @Before
+    public void setUp() throws IOException {
+        upstream = new StubUpstream(exchange -> {
+            receivedMethod = exchange.getRequestMethod();
+            receivedContentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            receivedTransferEncoding = exchange.getRequestHeaders().getFirst("Transfer-Encoding");
+            receivedExpect = exchange.getRequestHeaders().getFirst("Expect");
+            receivedBody = IOUtils.toByteArray(exchange.getRequestBody());
+            StubUpstream.respond(exchange, 200, "{}");
+        });
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        upstream.close();
+    }
+
+    private void send(String method, byte[] body, long contentLength) throws IOException {
+        RequestBuilder builder = RequestBuilder.create(method)
+                .setUri(upstream.getUrl() + "/kraken/channels/22484632")
+                .setEntity(ProxyRequests.createBodyEntity(new ByteArrayInputStream(body), contentLength))
+                .setConfig(ProxyRequests.bodyRequestConfig(RequestConfig.DEFAULT));
+        try (CloseableHttpResponse response = client.execute(builder.build())) {
+            assertEquals(200, response.getStatusLine().getStatusCode());
+        }
+    }
+
+    @Test
+    public void testKnownLengthBodyIsForwarded() throws IOException {
+        byte[] body = "{\"channel\":{\"status\":\"xD\",\"game\":\"Hearthstone\"}}".getBytes(StandardCharsets.UTF_8);
+        send("PUT", body, body.length);
+
+        assertEquals("PUT", receivedMethod);
+        assertArrayEquals(body, receivedBody);
+        assertEquals(String.valueOf(body.length), receivedContentLength);
+        assertNull(receivedTransferEncoding);
+        assertEquals("100-continue", receivedExpect);
+    }
+
+    @Test
+    public void testUnknownLengthBodyIsStreamedChunked() throws IOException {
+        byte[] body = new byte[256 * 1024];
+        new Random(42).nextBytes(body);
+        send("PATCH", body, -1);
+
+        assertEquals("PATCH", receivedMethod);
+        assertArrayEquals(body, receivedBody);
+        assertNull(receivedContentLength);
+        assertEquals("chunked", receivedTransferEncoding);
+    }
+
+    @Test
+    public void testDeleteBodyIsForwarded() throws IOException {
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        send("DELETE", body, body.length);
+
+        assertEquals("DELETE", receivedMethod);
+        assertArrayEquals(body, receivedBody);
+    }
+
+    @Test
+    public void testHasBody() {
+        assertTrue(ProxyRequests.hasBody(12, null));
+        assertTrue(ProxyRequests.hasBody(-1, "chunked"));
+        assertFalse(ProxyRequests.hasBody(0, null));
+        assertFalse(ProxyRequests.hasBody(-1, null));
+    }
+
+    @Test
+    public void testForwardedHeaders() {
+        assertTrue(ProxyRequests.isForwardedHeader("Authorization"));
+        assertTrue(ProxyRequests.isForwardedHeader("Client-ID"));
+        assertTrue(ProxyRequests.isForwardedHeader("Content-Type"));
+        assertFalse(ProxyRequests.isForwardedHeader("accept"));
+        assertFalse(ProxyRequests.isForwardedHeader("Content-Length"));
+        assertFalse(ProxyRequests.isForwardedHeader("Transfer-Encoding"));
+        assertFalse(ProxyRequests.isForwardedHeader("Expect"));
+        assertFalse(ProxyRequests.isForwardedHeader("X-Fields"));
+    }
+
+    @Test
+    public void testQueryParameters() {
+        String query = "limit=100&fields=follows.user.name%2Cfollows.created_at&offset=200";
+        assertEquals("follows.user.name,follows.created_at", ProxyRequests.getQueryParameter(query, "fields"));
+        assertEquals("100", ProxyRequests.getQueryParameter(query, "limit"));
+        assertNull(ProxyRequests.getQueryParameter(query, "cursor"));
+        assertNull(ProxyRequests.getQueryParameter(null, "fields"));
+
+        assertEquals("limit=100&offset=200", ProxyRequests.removeQueryParameter(query, "fields"));
+        assertEquals(query, ProxyRequests.removeQueryParameter(query, "cursor"));
+        assertNull(ProxyRequests.removeQueryParameter("fields=stream.game", "fields"));
+    }
+}
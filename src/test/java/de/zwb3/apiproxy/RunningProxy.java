@@ -0,0 +1,81 @@
+package de.zwb3.apiproxy;
+
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The whole application running on a random local port against a {@link StubUpstream}, used by tests that
+ * send real requests to the proxy.
+ */
+public class RunningProxy implements AutoCloseable {
+
+    private final ConfigurableApplicationContext context;
+    private final String url;
+
+    /**
+     * Start the application.
+     *
+     * @param upstream   The stub all upstream requests are sent to.
+     * @param properties Additional {@code key=value} properties, these override the defaults for tests.
+     */
+    public RunningProxy(StubUpstream upstream, String... properties) {
+        this(upstream, new Class<?>[0], properties);
+    }
+
+    /**
+     * Start the application with additional beans, e.g. to observe how requests are dispatched.
+     *
+     * @param upstream     The stub all upstream requests are sent to.
+     * @param extraSources Additional classes to register as beans or configuration.
+     * @param properties   Additional {@code key=value} properties, these override the defaults for tests.
+     */
+    public RunningProxy(StubUpstream upstream, Class<?>[] extraSources, String... properties) {
+        List<String> allProperties = new ArrayList<>(Arrays.asList(
+                "server.address=127.0.0.1",
+                "server.port=0",
+                "logging.level.root=WARN",
+                "spring.jmx.enabled=false",
+                "clientId=test",
+                "clientIdPool.requestsPerMinute=1000000",
+                "upstreamUrl=" + upstream.getUrl(),
+                "upstream.healthCheck.enabled=false",
+                "hedging.enabled=false",
+                "accessLog.enabled=false"));
+        allProperties.addAll(Arrays.asList(properties));
+
+        List<Class<?>> sources = new ArrayList<>();
+        sources.add(ApiProxy.class);
+        sources.addAll(Arrays.asList(extraSources));
+
+        context = new SpringApplicationBuilder()
+                .bannerMode(Banner.Mode.OFF)
+                .sources(sources.toArray(new Class<?>[0]))
+                .properties(allProperties.toArray(new String[0]))
+                .run();
+        url = "http://127.0.0.1:" + context.getEnvironment().getProperty("local.server.port");
+    }
+
+    /**
+     * @return The base URL of the proxy, e.g. {@code http://127.0.0.1:41234}
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return The bean of the given type, e.g. to inspect its state after some requests.
+     */
+    public <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+}
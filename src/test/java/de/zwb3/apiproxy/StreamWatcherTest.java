@@ -0,0 +1,275 @@
+package de.zwb3.apiproxy;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StreamWatcherTest {
+
+    private static final String LIVE = "{\"stream\":{\"_id\":1,\"game\":\"Hearthstone\",\"viewers\":%d," +
+            "\"average_fps\":%d,\"channel\":{\"status\":\"%s\"}}}";
+
+    private static final String OFFLINE = "{\"stream\":null}";
+
+    @Test
+    public void testOnlyRelevantChangesAreStateChanges() {
+        assertEquals(StreamWatcher.stateOf(String.format(LIVE, 1000, 60, "xD")),
+                StreamWatcher.stateOf(String.format(LIVE, 1234, 59, "xD")));
+        assertNotEquals(StreamWatcher.stateOf(String.format(LIVE, 1000, 60, "xD")),
+                StreamWatcher.stateOf(String.format(LIVE, 1000, 60, "new title")));
+        assertNotEquals(StreamWatcher.stateOf(String.format(LIVE, 1000, 60, "xD")),
+                StreamWatcher.stateOf(OFFLINE));
+        assertEquals(StreamWatcher.stateOf(OFFLINE), StreamWatcher.stateOf(OFFLINE));
+    }
+
+    @Test
+    public void testPollIntervalAdaptsToSubscribers() {
+        StreamWatcher watcher = new StreamWatcher(new ClientIdPool(Collections.singletonList("clientid"), 60, 30, 1000, 60),
+                new UpstreamPool(UpstreamPool.parse("http://127.0.0.1", 10000), 5, 30000), 5, 60, 30, 1, 1, 0.5,
+                HttpClients.createDefault(), null);
+        assertEquals(60_000, watcher.pollIntervalMillis(1));
+        assertEquals(30_000, watcher.pollIntervalMillis(4));
+        assertEquals(5_000, watcher.pollIntervalMillis(1000));
+        watcher.shutdown();
+    }
+
+    /**
+     * Records the data of the {@code stream} events it is sent, heartbeats are ignored.
+     */
+    private static class RecordingEmitter extends SseEmitter {
+        private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void send(SseEventBuilder builder) {
+            StringBuilder event = new StringBuilder();
+            for (ResponseBodyEmitter.DataWithMediaType data : builder.build()) {
+                event.append(data.getData());
+            }
+            if (event.toString().startsWith("event:stream")) {
+                events.add(event.toString());
+            }
+        }
+
+        /**
+         * @return The next event, waiting up to five seconds for it.
+         */
+        private String next() throws InterruptedException {
+            String event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no event received", event);
+            return event;
+        }
+    }
+
+    /**
+     * Channel 1 goes through three states over its first polls (the viewers change on every poll, which is no
+     * state change), channel 2 stays offline.
+     */
+    private static String respondWithStream(String path, int poll) {
+        if (!path.equals("/kraken/streams/1")) {
+            return OFFLINE;
+        }
+        if (poll <= 2) {
+            return String.format(LIVE, 1000 + poll, 60, "xD");
+        }
+        if (poll <= 4) {
+            return String.format(LIVE, 1000 + poll, 60, "new title");
+        }
+        return OFFLINE;
+    }
+
+    @Test
+    public void testChangesArePushedToAllSubscribers() throws Exception {
+        ConcurrentMap<String, AtomicInteger> polls = new ConcurrentHashMap<>();
+        CountDownLatch subscribed = new CountDownLatch(1);
+        try (StubUpstream upstream = new StubUpstream(exchange -> {
+            try {
+                // hold the first polls back until all subscribers are there.
+                subscribed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String path = exchange.getRequestURI().getPath();
+            int poll = polls.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            StubUpstream.respond(exchange, 200, respondWithStream(path, poll));
+        }); CloseableHttpClient client = HttpClients.createDefault()) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            StreamWatcher watcher = new StreamWatcher(
+                    new ClientIdPool(Collections.singletonList("clientid"), 6000, 100, 1000, 60),
+                    new UpstreamPool(UpstreamPool.parse(upstream.getUrl(), 10000), 5, 30000),
+                    50, 50, TimeUnit.MILLISECONDS, 60_000, 2, 2, 0.5, client, executor);
+            try {
+                RecordingEmitter first = new RecordingEmitter();
+                RecordingEmitter second = new RecordingEmitter();
+                RecordingEmitter other = new RecordingEmitter();
+                watcher.subscribe(1, "forsen", first);
+                watcher.subscribe(1, "forsen", second);
+                watcher.subscribe(2, "pajlada", other);
+                assertEquals(2, watcher.getWatchedChannelCount());
+                subscribed.countDown();
+
+                for (RecordingEmitter subscriber : new RecordingEmitter[]{first, second}) {
+                    List<String> events = new ArrayList<>();
+                    for (int i = 0; i < 3; i++) {
+                        events.add(subscriber.next());
+                    }
+                    assertTrue(events.get(0), events.get(0).contains("\"status\":\"xD\""));
+                    assertTrue(events.get(1), events.get(1).contains("\"status\":\"new title\""));
+                    assertTrue(events.get(2), events.get(2).contains(OFFLINE));
+                }
+                assertTrue(other.next().contains(OFFLINE));
+
+                // a few more polls without changes.
+                Thread.sleep(300);
+                assertTrue(first.events.isEmpty());
+                assertTrue(second.events.isEmpty());
+                assertTrue(other.events.isEmpty());
+
+                // one poll per channel, no matter how many subscribers it has.
+                int channelPolls = polls.get("/kraken/streams/1").get();
+                int otherPolls = polls.get("/kraken/streams/2").get();
+                assertTrue(channelPolls + " vs " + otherPolls, Math.abs(channelPolls - otherPolls) <= 2);
+
+                // late subscribers get the current state right away.
+                RecordingEmitter late = new RecordingEmitter();
+                watcher.subscribe(1, "forsen", late);
+                assertTrue(late.next().contains(OFFLINE));
+            } finally {
+                watcher.shutdown();
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidClientIdsAreQuarantined() throws Exception {
+        AtomicInteger invalidRequests = new AtomicInteger();
+        try (StubUpstream upstream = new StubUpstream(exchange -> {
+            if ("invalid".equals(exchange.getRequestHeaders().getFirst("Client-ID"))) {
+                invalidRequests.incrementAndGet();
+                StubUpstream.respond(exchange, 400,
+                        "{\"error\":\"Bad Request\",\"status\":400,\"message\":\"Invalid client id specified\"}");
+            } else {
+                StubUpstream.respond(exchange, 200, OFFLINE);
+            }
+        }); CloseableHttpClient client = HttpClients.createDefault()) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            ClientIdPool clientIdPool = new ClientIdPool(Arrays.asList("invalid", "valid"), 6000, 100, 1000, 60);
+            StreamWatcher watcher = new StreamWatcher(clientIdPool,
+                    new UpstreamPool(UpstreamPool.parse(upstream.getUrl(), 10000), 5, 30000),
+                    50, 50, TimeUnit.MILLISECONDS, 60_000, 1, 1, 0.5, client, executor);
+            try {
+                RecordingEmitter subscriber = new RecordingEmitter();
+                watcher.subscribe(1, "forsen", subscriber);
+                assertTrue(subscriber.next().contains(OFFLINE));
+
+                // a few more polls, all of them with the valid client ID.
+                Thread.sleep(300);
+                assertEquals(1, clientIdPool.getAvailableCount());
+                assertEquals(1, invalidRequests.get());
+                assertTrue(upstream.getRequestCount() >= 4);
+            } finally {
+                watcher.shutdown();
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testPollsUseTheirShareOfTheClientIdPool() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 200, OFFLINE));
+             CloseableHttpClient client = HttpClients.createDefault()) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            // 60 requests per minute and a burst of 10, polls may take half of that.
+            ClientIdPool clientIdPool = new ClientIdPool(Collections.singletonList("clientid"), 60, 10, 0, 60);
+            StreamWatcher watcher = new StreamWatcher(clientIdPool,
+                    new UpstreamPool(UpstreamPool.parse(upstream.getUrl(), 10000), 5, 30000),
+                    10, 10, TimeUnit.MILLISECONDS, 60_000, 2, 2, 0.5, client, executor);
+            try {
+                // many more channels than the budget allows to poll.
+                for (long userId = 1; userId <= 20; userId++) {
+                    watcher.subscribe(userId, "channel" + userId, new RecordingEmitter());
+                }
+                Thread.sleep(500);
+
+                // the burst of polls, and at most one more permit refilled since.
+                assertTrue(String.valueOf(upstream.getRequestCount()), upstream.getRequestCount() <= 6);
+                // the rest of the pool is still there for lookups, without waiting.
+                for (int i = 0; i < 4; i++) {
+                    clientIdPool.acquire();
+                }
+            } finally {
+                watcher.shutdown();
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testSlowSubscribersAreDisconnected() throws Exception {
+        AtomicInteger polls = new AtomicInteger();
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 200,
+                String.format(LIVE, 1000, 60, "title " + polls.incrementAndGet())));
+             CloseableHttpClient client = HttpClients.createDefault()) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            StreamWatcher watcher = new StreamWatcher(
+                    new ClientIdPool(Collections.singletonList("clientid"), 60000, 100, 1000, 60),
+                    new UpstreamPool(UpstreamPool.parse(upstream.getUrl(), 10000), 5, 30000),
+                    5, 5, TimeUnit.MILLISECONDS, 60_000, 1, 2, 1, client, executor);
+            CountDownLatch stuck = new CountDownLatch(1);
+            AtomicInteger completed = new AtomicInteger();
+            SseEmitter slow = new SseEmitter() {
+                @Override
+                public void send(SseEventBuilder builder) {
+                    try {
+                        // a client that stopped reading, its first send never returns until the end of the test.
+                        stuck.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public void complete() {
+                    completed.incrementAndGet();
+                }
+            };
+            try {
+                RecordingEmitter fast = new RecordingEmitter();
+                watcher.subscribe(1, "forsen", slow);
+                watcher.subscribe(1, "forsen", fast);
+
+                // the title changes on every poll, the fast subscriber keeps getting events.
+                for (int i = 0; i < 40; i++) {
+                    fast.next();
+                }
+                stuck.countDown();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+                while (completed.get() == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(1, completed.get());
+                assertEquals(1, watcher.getWatchedChannelCount());
+            } finally {
+                stuck.countDown();
+                watcher.shutdown();
+                executor.shutdown();
+            }
+        }
+    }
+}
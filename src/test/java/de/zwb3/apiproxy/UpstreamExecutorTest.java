@@ -0,0 +1,202 @@
+package de.zwb3.apiproxy;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UpstreamExecutorTest {
+
+    private CloseableHttpClient client;
+
+    @Before
+    public void setUp() {
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    private static UpstreamExecutor executor(boolean hedgingEnabled) {
+        return new UpstreamExecutor(hedgingEnabled, 95, 100, 20, 2000,
+                0.5, 10, 10, 60);
+    }
+
+    private String get(UpstreamExecutor executor, String url) throws IOException {
+        return get(executor, url, true);
+    }
+
+    private String get(UpstreamExecutor executor, String url, boolean failFast) throws IOException {
+        try (CloseableHttpResponse response = executor.execute("GET /test", true, failFast,
+                () -> new HedgedAttempt<CloseableHttpResponse>() {
+                    private final HttpGet get = new HttpGet(url);
+
+                    @Override
+                    public CloseableHttpResponse call() throws IOException {
+                        return client.execute(get);
+                    }
+
+                    @Override
+                    public void abort() {
+                        get.abort();
+                    }
+                },
+                r -> r.getStatusLine().getStatusCode() >= 500)) {
+            return response.getStatusLine().getStatusCode() + " " + EntityUtils.toString(response.getEntity());
+        }
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        try (StubUpstream upstream = new StubUpstream(exchange -> {
+            // the first request hangs, all following requests are answered immediately.
+            if (received.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                StubUpstream.respond(exchange, 200, "{\"slow\":true}");
+            } else {
+                StubUpstream.respond(exchange, 200, "{\"slow\":false}");
+            }
+        })) {
+            UpstreamExecutor executor = executor(true);
+            long start = System.nanoTime();
+            assertEquals("200 {\"slow\":false}", get(executor, upstream.getUrl() + "/kraken/streams/22484632"));
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertTrue("hedged request took " + elapsedMillis + "ms", elapsedMillis < 2000);
+            assertEquals(2, upstream.getRequestCount());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFastRequestIsNotHedged() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 200, "{}"))) {
+            UpstreamExecutor executor = executor(true);
+            for (int i = 0; i < 5; i++) {
+                assertEquals("200 {}", get(executor, upstream.getUrl() + "/kraken/streams/22484632"));
+            }
+            assertEquals(5, upstream.getRequestCount());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testBusyAttemptThreadsDisableHedging() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        try (StubUpstream upstream = new StubUpstream(exchange -> {
+            // the first request is slow, all following requests are answered immediately.
+            if (received.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                StubUpstream.respond(exchange, 200, "{\"slow\":true}");
+            } else {
+                StubUpstream.respond(exchange, 200, "{\"slow\":false}");
+            }
+        })) {
+            // a single attempt thread, taken by the first call.
+            UpstreamExecutor executor = new UpstreamExecutor(true, 95, 100, 20, 2000, 1,
+                    0.5, 10, 10, 60);
+            ExecutorService callers = Executors.newSingleThreadExecutor();
+            try {
+                Future<String> slow = callers.submit(() -> get(executor, upstream.getUrl() + "/kraken/streams/1"));
+                Thread.sleep(300);
+                // no thread left for this call, so it runs on the calling thread.
+                assertEquals("200 {\"slow\":false}", get(executor, upstream.getUrl() + "/kraken/streams/2"));
+                // the first call could not be hedged, and waited for its only attempt.
+                assertEquals("200 {\"slow\":true}", slow.get());
+                assertEquals(2, upstream.getRequestCount());
+            } finally {
+                callers.shutdownNow();
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testHedgesNeedAClientIdPermit() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            StubUpstream.respond(exchange, 200, "{}");
+        })) {
+            UpstreamExecutor executor = executor(true);
+            // a single permit, taken by the first attempt.
+            ClientIdPool clientIdPool = new ClientIdPool(Collections.singletonList("clientid"), 1, 1, 0, 60);
+            try {
+                String clientId = clientIdPool.acquire();
+                try (CloseableHttpResponse response = executor.execute("GET /test", true, false,
+                        clientIdPool.attempts(clientId, id -> {
+                            HttpGet get = new HttpGet(upstream.getUrl() + "/kraken/streams/22484632");
+                            get.addHeader("Client-ID", id);
+                            return () -> client.execute(get);
+                        }),
+                        r -> r.getStatusLine().getStatusCode() >= 500)) {
+                    assertEquals(200, response.getStatusLine().getStatusCode());
+                }
+                // slower than the hedge delay, but not hedged without another permit.
+                assertEquals(1, upstream.getRequestCount());
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerFailsFast() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 503, "{}"))) {
+            UpstreamExecutor executor = executor(false);
+            for (int i = 0; i < 10; i++) {
+                assertEquals("503 {}", get(executor, upstream.getUrl() + "/kraken/streams/22484632"));
+            }
+
+            try {
+                get(executor, upstream.getUrl() + "/kraken/streams/22484632");
+                fail("Expected the circuit breaker to be open");
+            } catch (CircuitBreakerOpenException expected) {
+                // the request must not have reached the upstream
+                assertEquals(10, upstream.getRequestCount());
+            }
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCallsWithoutFailFastSkipTheCircuitBreaker() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 503, "{}"))) {
+            UpstreamExecutor executor = executor(false);
+            for (int i = 0; i < 20; i++) {
+                assertEquals("503 {}", get(executor, upstream.getUrl() + "/kraken/streams/22484632", false));
+            }
+            // nothing was counted, so the breaker is still closed for calls that go through it.
+            assertEquals("503 {}", get(executor, upstream.getUrl() + "/kraken/streams/22484632"));
+            assertEquals(21, upstream.getRequestCount());
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package de.zwb3.apiproxy;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UpstreamPoolTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private CloseableHttpClient client;
+
+    @Before
+    public void setUp() {
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    private static UpstreamPool pool(String upstreamUrls) {
+        return new UpstreamPool(UpstreamPool.parse(upstreamUrls, 10_000), 3, 1000);
+    }
+
+    @Test
+    public void testParse() {
+        List<UpstreamPool.Upstream> upstreams = UpstreamPool.parse(
+                "http://cache-1:8080/;weight=3, https://api.twitch.tv", 10_000);
+        assertEquals(2, upstreams.size());
+        assertEquals("http://cache-1:8080", upstreams.get(0).getBaseUrl());
+        assertEquals(3, upstreams.get(0).getWeight());
+        assertEquals("https://api.twitch.tv", upstreams.get(1).getBaseUrl());
+        assertEquals(1, upstreams.get(1).getWeight());
+        assertEquals(URI.create("http://cache-1:8080/kraken/streams/22484632?limit=1"),
+                upstreams.get(0).resolve(URI.create("/kraken/streams/22484632?limit=1")));
+
+        try {
+            UpstreamPool.parse("cache-1:8080", 10_000);
+            fail("relative URL was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            UpstreamPool.parse("http://cache-1:8080;weight=0", 10_000);
+            fail("weight 0 was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testPeakEwma() {
+        UpstreamPool.Upstream upstream = new UpstreamPool.Upstream("http://cache-1", 1, 10_000);
+        long now = 0;
+        upstream.observe(10 * MILLIS, now);
+        assertEquals(10 * MILLIS, upstream.score(now), MILLIS / 10);
+
+        // a slow sample takes effect immediately
+        now += 100 * MILLIS;
+        upstream.observe(200 * MILLIS, now);
+        assertEquals(200 * MILLIS, upstream.score(now), MILLIS / 10);
+
+        // fast samples only pull it back down gradually
+        now += 100 * MILLIS;
+        upstream.observe(10 * MILLIS, now);
+        assertTrue(upstream.score(now) > 150 * MILLIS);
+
+        // requests in flight make it more expensive
+        double idle = upstream.score(now);
+        upstream.begin();
+        assertEquals(2 * idle, upstream.score(now), MILLIS / 10);
+    }
+
+    @Test
+    public void testWeights() {
+        UpstreamPool pool = pool("http://cache-1;weight=3, http://cache-2");
+        UpstreamPool.Upstream heavy = pool.getUpstreams().get(0);
+        int heavyCount = 0;
+        for (int i = 0; i < 4000; i++) {
+            if (pool.choose(0) == heavy) {
+                heavyCount++;
+            }
+        }
+        // without latency samples, the first pick of the two wins, so the weights apply directly.
+        assertEquals(0.75, heavyCount / 4000.0, 0.05);
+    }
+
+    @Test
+    public void testOutlierEjection() {
+        UpstreamPool pool = pool("http://cache-1, http://cache-2");
+        UpstreamPool.Upstream bad = pool.getUpstreams().get(0);
+        UpstreamPool.Upstream good = pool.getUpstreams().get(1);
+
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            pool.complete(bad, bad.begin(), false, now);
+        }
+        assertFalse(bad.isAvailable(now));
+        for (int i = 0; i < 100; i++) {
+            assertSame(good, pool.choose(now));
+        }
+
+        // back after the ejection time, but ejected for twice as long the next time.
+        now += 1001 * MILLIS;
+        assertTrue(bad.isAvailable(now));
+        for (int i = 0; i < 3; i++) {
+            pool.complete(bad, bad.begin(), false, now);
+        }
+        assertFalse(bad.isAvailable(now + 1500 * MILLIS));
+        assertTrue(bad.isAvailable(now + 2001 * MILLIS));
+
+        // if everything is ejected, requests still go somewhere.
+        for (int i = 0; i < 3; i++) {
+            pool.complete(good, good.begin(), false, now);
+        }
+        assertNotNull(pool.choose(now));
+    }
+
+    @Test
+    public void testHealthChecks() throws Exception {
+        try (StubUpstream healthy = new StubUpstream(exchange -> StubUpstream.respond(exchange, 400, "{}"));
+             StubUpstream unhealthy = new StubUpstream(exchange -> StubUpstream.respond(exchange, 503, "{}"))) {
+            UpstreamPool pool = pool(healthy.getUrl() + "," + unhealthy.getUrl());
+            UpstreamPool.Upstream bad = pool.getUpstreams().get(1);
+
+            for (int i = 0; i < 2; i++) {
+                assertTrue(bad.isHealthy());
+                for (UpstreamPool.Upstream upstream : pool.getUpstreams()) {
+                    upstream.recordProbe(UpstreamPool.probe(client, upstream, "/kraken", RequestConfig.DEFAULT), 2);
+                }
+            }
+            assertFalse(bad.isHealthy());
+            assertTrue(pool.getUpstreams().get(0).isHealthy());
+            assertEquals(1, pool.getAvailableCount());
+            assertEquals(2, unhealthy.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testRequestsPreferFastUpstream() throws Exception {
+        try (StubUpstream fast = new StubUpstream(exchange -> StubUpstream.respond(exchange, 200, "{}"));
+             StubUpstream slow = new StubUpstream(exchange -> {
+                 try {
+                     Thread.sleep(50);
+                 } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                 }
+                 StubUpstream.respond(exchange, 200, "{}");
+             })) {
+            UpstreamPool pool = pool(slow.getUrl() + "," + fast.getUrl());
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            UpstreamClient upstreamClient = new UpstreamClient(pool, client, RequestConfig.DEFAULT, executor,
+                    new FailureTracker(64, 10, 2));
+
+            for (int i = 0; i < 50; i++) {
+                URI uri = upstreamClient.buildUri("/kraken/streams/22484632", null);
+                try (CloseableHttpResponse response = upstreamClient.execute("GET /kraken/streams/:channel",
+                        upstreamClient.newRequest("GET", uri))) {
+                    assertEquals(200, response.getStatusLine().getStatusCode());
+                    EntityUtils.consume(response.getEntity());
+                }
+            }
+
+            assertEquals(50, fast.getRequestCount() + slow.getRequestCount());
+            assertTrue("slow upstream got " + slow.getRequestCount() + " requests", slow.getRequestCount() <= 5);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedRequestsAreRecorded() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 503, "{}"))) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            FailureTracker failureTracker = new FailureTracker(64, 10, 2);
+            UpstreamClient upstreamClient = new UpstreamClient(pool(upstream.getUrl()), client, RequestConfig.DEFAULT,
+                    executor, failureTracker);
+
+            URI uri = upstreamClient.buildUri("/kraken/streams/22484632", null);
+            try (CloseableHttpResponse response = upstreamClient.execute("GET /kraken/streams/:channel",
+                    upstreamClient.newRequest("GET", uri))) {
+                assertEquals(503, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+            }
+            FailureTracker.Failure failure = failureTracker.getLastFailure();
+            assertEquals("GET /kraken/streams/:channel", failure.getSource());
+            assertTrue(failure.getCause().getMessage(), failure.getCause().getMessage().contains("503"));
+            // only listed, proxied requests are not backed off by the tracker.
+            assertEquals(0, failureTracker.getWindowFailures());
+            executor.shutdown();
+        }
+    }
+}
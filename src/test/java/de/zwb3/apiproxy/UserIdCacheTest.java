@@ -0,0 +1,67 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class UserIdCacheTest {
+
+    @Test
+    public void testNamesAreLoadedInChunks() throws ExecutionException {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            names.add("user" + i);
+        }
+        List<Integer> chunkSizes = new ArrayList<>();
+        Map<String, Optional<Long>> userIds = UserIdCache.loadInChunks(loginNames -> {
+            chunkSizes.add(loginNames.size());
+            Map<String, Optional<Long>> result = new HashMap<>();
+            for (String loginName : loginNames) {
+                result.put(loginName, Optional.of((long) loginName.length()));
+            }
+            return result;
+        }, names);
+
+        assertEquals(250, userIds.size());
+        assertEquals(Optional.of(6L), userIds.get("user42"));
+        assertEquals(3, chunkSizes.size());
+        for (int size : chunkSizes) {
+            assertTrue(size <= UserIdResolver.MAX_LOGINS_PER_LOOKUP);
+        }
+    }
+
+    @Test
+    public void testLoaderExceptionsAreWrapped() {
+        IOException ioException = new IOException("Connection reset");
+        try {
+            UserIdCache.loadInChunks(loginNames -> {
+                throw ioException;
+            }, Collections.singletonList("forsen"));
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(ioException, e.getCause());
+        }
+
+        IllegalStateException runtimeException = new IllegalStateException();
+        try {
+            UserIdCache.loadInChunks(loginNames -> {
+                throw runtimeException;
+            }, Collections.singletonList("forsen"));
+            fail();
+        } catch (UncheckedExecutionException e) {
+            assertSame(runtimeException, e.getCause());
+        } catch (ExecutionException e) {
+            fail();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package de.zwb3.apiproxy;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class UserIdResolverTest {
+
+    @Test
+    public void testLoginNameValidation() {
+        assertTrue(UserIdResolver.isValidLoginName("forsen"));
+        assertTrue(UserIdResolver.isValidLoginName("Pajlada"));
+        assertTrue(UserIdResolver.isValidLoginName("a_b_123"));
+        assertTrue(UserIdResolver.isValidLoginName("x"));
+        assertTrue(UserIdResolver.isValidLoginName("abcdefghijklmnopqrstuvwxy"));
+
+        assertFalse(UserIdResolver.isValidLoginName(""));
+        assertFalse(UserIdResolver.isValidLoginName("abcdefghijklmnopqrstuvwxyz"));
+        assertFalse(UserIdResolver.isValidLoginName("for sen"));
+        assertFalse(UserIdResolver.isValidLoginName("forsen%20"));
+        assertFalse(UserIdResolver.isValidLoginName("for-sen"));
+        assertFalse(UserIdResolver.isValidLoginName("f\u00f6rs"));
+    }
+
+    @Test
+    public void testInvalidNamesAreNotLookedUp() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 200,
+                "{\"_total\":0,\"users\":[]}"))) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            UserIdResolver resolver = new UserIdResolver(new ClientIdPool(Collections.singletonList("clientid"), 60, 30, 1000, 60),
+                    new UpstreamPool(UpstreamPool.parse(upstream.getUrl(), 10000), 5, 30000), executor,
+                    new NegativeLookupCache(300, 100));
+
+            assertEquals(Optional.empty(), resolver.translateUsername("not a user"));
+            assertEquals(Optional.empty(), resolver.translateUsername("waytoolongtobeatwitchloginname"));
+            assertEquals(0, upstream.getRequestCount());
+            assertEquals(0, resolver.getCacheCount());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testNotFoundNamesAreAnsweredFromNegativeTier() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 200,
+                exchange.getRequestURI().getQuery().contains("forsen") ?
+                        "{\"_total\":1,\"users\":[{\"name\":\"forsen\",\"_id\":\"22484632\"}]}" :
+                        "{\"_total\":0,\"users\":[]}"))) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            UserIdResolver resolver = new UserIdResolver(new ClientIdPool(Collections.singletonList("clientid"), 60, 30, 1000, 60),
+                    new UpstreamPool(UpstreamPool.parse(upstream.getUrl(), 10000), 5, 30000), executor,
+                    new NegativeLookupCache(300, 100));
+
+            assertEquals(Optional.empty(), resolver.translateUsername("nobody"));
+            assertEquals(Optional.empty(), resolver.translateUsername("NoBody"));
+            assertEquals(1, upstream.getRequestCount());
+            // the name never took a place in the main cache.
+            assertEquals(0, resolver.getCacheCount());
+            assertEquals(1, resolver.getNegativeCacheCount());
+
+            // the same goes for names that are not found as part of a batch.
+            Map<String, Optional<Long>> userIds = resolver.translateUsernames(Arrays.asList("forsen", "somebody"));
+            assertEquals(Optional.of(22484632L), userIds.get("forsen"));
+            assertEquals(Optional.empty(), userIds.get("somebody"));
+            assertEquals(2, upstream.getRequestCount());
+            userIds = resolver.translateUsernames(Arrays.asList("forsen", "somebody", "nobody"));
+            assertEquals(Optional.of(22484632L), userIds.get("forsen"));
+            assertEquals(Optional.empty(), userIds.get("somebody"));
+            assertEquals(Optional.empty(), userIds.get("nobody"));
+            assertEquals(2, upstream.getRequestCount());
+            assertEquals(1, resolver.getCacheCount());
+            assertEquals(2, resolver.getNegativeCacheCount());
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testNegativeLookupCache() {
+        NegativeLookupCache cache = new NegativeLookupCache(300, 100);
+        assertFalse(cache.contains("forsen"));
+        cache.put("forsen");
+        assertTrue(cache.contains("forsen"));
+        assertFalse(cache.contains("pajlada"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testRateLimitedClientIdsAreNotBackedOff() throws Exception {
+        try (StubUpstream upstream = new StubUpstream(exchange -> StubUpstream.respond(exchange, 200,
+                "{\"_total\":0,\"users\":[]}"))) {
+            UpstreamExecutor executor = new UpstreamExecutor(false, 95, 500, 20, 2000, 0.5, 20, 10, 5);
+            // a single token per second, and no waiting for it.
+            UserIdResolver resolver = new UserIdResolver(new ClientIdPool(Collections.singletonList("clientid"), 60, 1, 0, 60),
+                    new UpstreamPool(UpstreamPool.parse(upstream.getUrl(), 10000), 5, 30000), executor,
+                    new NegativeLookupCache(300, 100));
+
+            resolver.translateUsername("first");
+            for (int i = 0; i < 50; i++) {
+                try {
+                    resolver.translateUsername("limited" + i);
+                    fail("Expected the client ID to be rate limited");
+                } catch (ExecutionException | UncheckedExecutionException e) {
+                    assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ClientIdRateLimitedException);
+                }
+            }
+            assertEquals(1, upstream.getRequestCount());
+
+            // as soon as there is a token again, lookups go through.
+            Thread.sleep(1100);
+            assertEquals(Optional.empty(), resolver.translateUsername("second"));
+            assertEquals(2, upstream.getRequestCount());
+            executor.shutdown();
+        }
+    }
+}